@@ -1,3 +1,5 @@
+import java.util.List;
+
 public class ASMBuilder {
     private StringBuilder content;
 
@@ -11,6 +13,27 @@ public class ASMBuilder {
         content.append("  .word ").append(op).append("\n\n");
     }
 
+    // 全局数组的初始值按 {值, 连续个数} 分段给出, 为 0 的段用一个 .zero 占满; 整个数组都是 0 时放进 .bss, 不占文件空间
+    public void buildGlobalVar(String varName, List<int[]> runs) {
+        if (runs.size() == 1 && runs.get(0)[0] == 0) {
+            content.append("  .bss\n");
+            content.append(varName).append(":\n");
+            content.append("  .zero ").append(runs.get(0)[1] * 4).append("\n\n");
+            return;
+        }
+        content.append("  .data\n");
+        content.append(varName).append(":\n");
+        for (int[] run : runs) {
+            if (run[0] == 0) {
+                content.append("  .zero ").append(run[1] * 4).append("\n");
+                continue;
+            }
+            for (int i = 0; i < run[1]; i++)
+                content.append("  .word ").append(run[0]).append("\n");
+        }
+        content.append("\n");
+    }
+
     public void buildFuncdef(String funcDef, String spSize) {
         content.append("  .text\n");
         content.append("  .globl ").append(funcDef).append("\n");
@@ -0,0 +1,64 @@
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// 按函数缓存控制流图和支配树, 第一次用到时才计算。
+// pass 改动了函数的跳转之后由 PassManager 调用 invalidate, 依赖控制流图的分析会一起失效, 其余函数的结果不受影响
+public class AnalysisManager {
+    private Map<LLVMValueRef, ControlFlowGraph> cfgs = new HashMap<>();
+    private Map<LLVMValueRef, DominatorTree> dominators = new HashMap<>();
+    private int computed = 0;
+
+    public ControlFlowGraph getCFG(LLVMValueRef function) {
+        ControlFlowGraph cfg = cfgs.get(function);
+        if (cfg == null) {
+            cfg = new ControlFlowGraph(function);
+            cfgs.put(function, cfg);
+            computed++;
+        }
+        return cfg;
+    }
+
+    public DominatorTree getDominators(LLVMValueRef function) {
+        DominatorTree tree = dominators.get(function);
+        if (tree == null) {
+            tree = new DominatorTree(getCFG(function));
+            dominators.put(function, tree);
+            computed++;
+        }
+        return tree;
+    }
+
+    // 算好 pass 声明需要的分析
+    public void prepare(LLVMValueRef function, Set<FunctionPass.Analysis> analyses) {
+        if (analyses.contains(FunctionPass.Analysis.CFG))
+            getCFG(function);
+        if (analyses.contains(FunctionPass.Analysis.DOMINATORS))
+            getDominators(function);
+    }
+
+    public boolean isCached(LLVMValueRef function, FunctionPass.Analysis analysis) {
+        switch (analysis) {
+            case CFG:
+                return cfgs.containsKey(function);
+            default:
+                return dominators.containsKey(function);
+        }
+    }
+
+    // 支配树依赖控制流图, 控制流图失效时支配树也一起失效
+    public void invalidate(LLVMValueRef function, Set<FunctionPass.Analysis> analyses) {
+        boolean cfg = analyses.contains(FunctionPass.Analysis.CFG);
+        if (cfg)
+            cfgs.remove(function);
+        if (cfg || analyses.contains(FunctionPass.Analysis.DOMINATORS))
+            dominators.remove(function);
+    }
+
+    // 一共算了多少次分析, 用来观察缓存的效果
+    public int getComputedCount() {
+        return computed;
+    }
+}
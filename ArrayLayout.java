@@ -0,0 +1,149 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMBuilderRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.llvm4j.llvm4j.Value;
+
+// 数组在 IR 里的布局, VisitorForIR 和 AstToIR 共用。
+// 数组变量保存的是整个数组 [d0 x [d1 x ... i32]] 的地址; 数组形参保存的是指向第一个元素的指针, 第一维长度未知, 记为 0。
+// 初始值列表先按 C 的规则摊平成 size() 个元素, 没有给出的元素为 null, 表示 0
+public class ArrayLayout {
+    private int[] dims;
+    private boolean pointer;
+    // types[k] 是去掉前 k 维之后的类型, types[dims.length] 是 i32; 形参的 types[0] 是指向 types[1] 的指针
+    private LLVMTypeRef[] types;
+    // sizes[k] 是 types[k] 里 i32 的个数
+    private int[] sizes;
+    // const 数组摊平后的元素值, 常量求值时按下标取; 不是 const 数组时为 null
+    private int[] constants;
+
+    public ArrayLayout(LLVMTypeRef i32, int[] dims, boolean pointer) {
+        this.dims = dims;
+        this.pointer = pointer;
+        int n = dims.length;
+        this.types = new LLVMTypeRef[n + 1];
+        this.sizes = new int[n + 1];
+        types[n] = i32;
+        sizes[n] = 1;
+        for (int k = n - 1; k >= 0; k--) {
+            sizes[k] = dims[k] * sizes[k + 1];
+            types[k] = k == 0 && pointer ? LLVM.LLVMPointerType(types[1], 0) : LLVM.LLVMArrayType(types[k + 1], dims[k]);
+        }
+    }
+
+    // 变量本身的类型, 用来 alloca 或者作为形参类型
+    public LLVMTypeRef getType() {
+        return types[0];
+    }
+
+    public int getDimCount() {
+        return dims.length;
+    }
+
+    public boolean isPointer() {
+        return pointer;
+    }
+
+    public int size() {
+        return sizes[0];
+    }
+
+    // 去掉前 level 维之后的子数组里有多少个元素
+    public int sizeOf(int level) {
+        return sizes[Math.min(level, dims.length)];
+    }
+
+    // 初始值列表里嵌套的花括号初始化 level 层下一级的子数组, 从 pos 往后对齐到这个子数组的开头; offset 是当前层的开头
+    public int nestedStart(int offset, int pos, int level) {
+        int sub = sizeOf(level + 1);
+        return offset + (pos - offset + sub - 1) / sub * sub;
+    }
+
+    // base 是数组的地址, 形参则是从形参变量里 load 出来的指针。
+    // 下标个数等于维数时得到元素的地址; 不足时得到子数组第一个元素的地址, 也就是数组退化成的指针, 用于传参
+    public Value elementPointer(LLVMBuilderRef builder, Value base, Value[] indices, LLVMValueRef zero) {
+        if (pointer && indices.length == 0)
+            return base;
+        int count = indices.length + (pointer ? 0 : 1) + (indices.length < dims.length ? 1 : 0);
+        LLVMValueRef[] refs = new LLVMValueRef[count];
+        int i = 0;
+        if (!pointer)
+            refs[i++] = zero;
+        for (Value index : indices)
+            refs[i++] = index.getRef();
+        if (i < count)
+            refs[i] = zero;
+        LLVMTypeRef type = pointer ? types[1] : types[0];
+        return new Value(LLVM.LLVMBuildGEP2(builder, type, base.getRef(), new PointerPointer<>(refs), count, "arrayidx"));
+    }
+
+    // const 数组记下摊平后的初始值, elements 为 null 或者元素为 null 都是 0; 有元素不是常量时不记录
+    public void setConstants(Value[] elements) {
+        int[] values = new int[size()];
+        for (int i = 0; elements != null && i < values.length; i++) {
+            if (elements[i] == null)
+                continue;
+            Integer value = ConstantFolder.valueOf(elements[i]);
+            if (value == null)
+                return;
+            values[i] = value;
+        }
+        constants = values;
+    }
+
+    // const 数组的元素值; 下标个数不等于维数、越界或者不是 const 数组时返回 null
+    public Integer constantAt(int[] indices) {
+        if (constants == null || indices.length != dims.length)
+            return null;
+        int offset = 0;
+        for (int k = 0; k < dims.length; k++) {
+            if (indices[k] < 0 || indices[k] >= dims[k])
+                return null;
+            offset += indices[k] * sizes[k + 1];
+        }
+        return constants[offset];
+    }
+
+    // 全局数组的初始值, 全 0 的子数组直接用 zeroinitializer, 不逐个列出元素
+    public LLVMValueRef constant(Value[] elements) {
+        return constant(elements, 0, 0);
+    }
+
+    private LLVMValueRef constant(Value[] elements, int level, int offset) {
+        if (isZero(elements, offset, sizes[level]))
+            return LLVM.LLVMConstNull(types[level]);
+        if (level == dims.length)
+            return elements[offset].getRef();
+        LLVMValueRef[] parts = new LLVMValueRef[dims[level]];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = constant(elements, level + 1, offset + i * sizes[level + 1]);
+        return LLVM.LLVMConstArray(types[level + 1], new PointerPointer<>(parts), parts.length);
+    }
+
+    // 局部数组先整体存一个 zeroinitializer, 再逐个存不为 0 的元素
+    public void initialize(LLVMBuilderRef builder, Value base, Value[] elements, LLVMValueRef zero) {
+        LLVM.LLVMBuildStore(builder, LLVM.LLVMConstNull(types[0]), base.getRef());
+        for (int i = 0; i < elements.length; i++) {
+            if (isZero(elements, i, 1))
+                continue;
+            LLVMValueRef[] refs = new LLVMValueRef[dims.length + 1];
+            refs[0] = zero;
+            for (int k = 0; k < dims.length; k++)
+                refs[k + 1] = LLVM.LLVMConstInt(types[dims.length], i / sizes[k + 1] % dims[k], 0);
+            LLVMValueRef element = LLVM.LLVMBuildGEP2(builder, types[0], base.getRef(), new PointerPointer<>(refs), refs.length, "arrayidx");
+            LLVM.LLVMBuildStore(builder, elements[i].getRef(), element);
+        }
+    }
+
+    private static boolean isZero(Value[] elements, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            if (elements[i] == null)
+                continue;
+            Integer value = ConstantFolder.valueOf(elements[i]);
+            if (value == null || value != 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -2,7 +2,8 @@ public class ArrayType extends Type {
     private Type contained;
     private int count;
 
-    public ArrayType(Type contained, int count) {
+    // 通过 TypeFactory.getArrayType 获取, 不要直接创建
+    ArrayType(Type contained, int count) {
         this.contained = contained;
         this.count = count;
     }
@@ -0,0 +1,219 @@
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// 把 ANTLR 语法树转换成 CompactAst, 之后语法树和 token 都可以释放。
+// 子结点先压到 scratch 栈上, 一个结点的子结点全部转换完后再整段拷进 CompactAst, 这样子结点下标是连续的
+public class AstLowering {
+    private CompactAst ast;
+    private IdentTable identTable;
+    private int[] scratch = new int[64];
+    private int scratchSize = 0;
+
+    private AstLowering(CompactAst ast, IdentTable identTable) {
+        this.ast = ast;
+        this.identTable = identTable;
+    }
+
+    public static CompactAst lower(SysYParser.ProgramContext program, IdentTable identTable) {
+        // 结点数和 token 数差不多, 用源码区间粗略估一个初始容量
+        int tokens = program.getStop() == null ? 0 : program.getStop().getTokenIndex();
+        AstLowering lowering = new AstLowering(new CompactAst(tokens / 2), identTable);
+        int root = lowering.ast.addNode(CompactAst.PROGRAM, 0, 0);
+        int mark = lowering.scratchSize;
+        for (ParseTree child : program.compUnit().children) {
+            if (child instanceof SysYParser.FuncDefContext)
+                lowering.push(lowering.lowerFuncDef((SysYParser.FuncDefContext) child));
+            else if (child instanceof SysYParser.DeclContext)
+                lowering.lowerDecl((SysYParser.DeclContext) child);
+        }
+        lowering.finish(root, mark);
+        lowering.ast.trim();
+        return lowering.ast;
+    }
+
+    private void push(int node) {
+        if (scratchSize == scratch.length)
+            scratch = Arrays.copyOf(scratch, scratchSize * 2);
+        scratch[scratchSize++] = node;
+    }
+
+    // 从 mark 开始压进来的都是 node 的子结点
+    private int finish(int node, int mark) {
+        ast.setChildren(node, scratch, mark, scratchSize);
+        scratchSize = mark;
+        return node;
+    }
+
+    // 词法分析时已经驻留过的 IDENT 直接取 id, 否则现在驻留
+    private int ident(TerminalNode node) {
+        Token token = node.getSymbol();
+        if (token instanceof IdentToken && ((IdentToken) token).getIdentTable() == identTable)
+            return ((IdentToken) token).getIdent();
+        return identTable.intern(token.getText());
+    }
+
+    private int lowerFuncDef(SysYParser.FuncDefContext ctx) {
+        int retType = ctx.funcType().VOID() != null ? SysYLexer.VOID : SysYLexer.INT;
+        int node = ast.addNode(CompactAst.FUNC_DEF, ident(ctx.IDENT()), retType);
+        int mark = scratchSize;
+        if (ctx.funcFParams() != null) {
+            for (SysYParser.FuncFParamContext param : ctx.funcFParams().funcFParam()) {
+                if (param.L_BRACKT().isEmpty()) {
+                    int paramNode = ast.addNode(CompactAst.PARAM, ident(param.IDENT()), 0);
+                    push(finish(paramNode, scratchSize));
+                } else {
+                    int paramNode = ast.addNode(CompactAst.ARRAY_PARAM, ident(param.IDENT()), 0);
+                    int paramMark = scratchSize;
+                    for (SysYParser.ExpContext dim : param.exp())
+                        push(lowerExp(dim));
+                    push(finish(paramNode, paramMark));
+                }
+            }
+        }
+        push(lowerBlock(ctx.block()));
+        return finish(node, mark);
+    }
+
+    // decl 不单独成为结点, 它的每个定义直接压给外层
+    private void lowerDecl(SysYParser.DeclContext ctx) {
+        for (SysYParser.ConstDefContext constDef : ctx.constDef()) {
+            int node = ast.addNode(CompactAst.CONST_DEF, ident(constDef.IDENT()), constDef.constExp().size());
+            int mark = scratchSize;
+            for (SysYParser.ConstExpContext dim : constDef.constExp())
+                push(lowerExp(dim.exp()));
+            push(lowerConstInitVal(constDef.constInitVal()));
+            push(finish(node, mark));
+        }
+        for (SysYParser.VarDefContext varDef : ctx.varDef()) {
+            int node = ast.addNode(CompactAst.VAR_DEF, ident(varDef.IDENT()), varDef.constExp().size());
+            int mark = scratchSize;
+            for (SysYParser.ConstExpContext dim : varDef.constExp())
+                push(lowerExp(dim.exp()));
+            if (varDef.ASSIGN() != null)
+                push(lowerInitVal(varDef.initVal()));
+            push(finish(node, mark));
+        }
+    }
+
+    private int lowerConstInitVal(SysYParser.ConstInitValContext ctx) {
+        if (ctx.constExp() != null)
+            return lowerExp(ctx.constExp().exp());
+        int node = ast.addNode(CompactAst.INIT_LIST, 0, 0);
+        int mark = scratchSize;
+        for (SysYParser.ConstInitValContext element : ctx.constInitVal())
+            push(lowerConstInitVal(element));
+        return finish(node, mark);
+    }
+
+    private int lowerInitVal(SysYParser.InitValContext ctx) {
+        if (ctx.exp() != null)
+            return lowerExp(ctx.exp());
+        int node = ast.addNode(CompactAst.INIT_LIST, 0, 0);
+        int mark = scratchSize;
+        for (SysYParser.InitValContext element : ctx.initVal())
+            push(lowerInitVal(element));
+        return finish(node, mark);
+    }
+
+    private int lowerBlock(SysYParser.BlockContext ctx) {
+        int node = ast.addNode(CompactAst.BLOCK, 0, 0);
+        int mark = scratchSize;
+        for (SysYParser.BlockItemContext item : ctx.blockItem()) {
+            if (item.decl() != null)
+                lowerDecl(item.decl());
+            else
+                push(lowerStmt(item.stmt()));
+        }
+        return finish(node, mark);
+    }
+
+    private int lowerStmt(SysYParser.StmtContext ctx) {
+        if (ctx.block() != null)
+            return lowerBlock(ctx.block());
+        int node;
+        int mark = scratchSize;
+        if (ctx.ASSIGN() != null) {
+            node = ast.addNode(CompactAst.ASSIGN, 0, 0);
+            push(lowerLVal(ctx.lVal()));
+            push(lowerExp(ctx.exp()));
+        } else if (ctx.RETURN() != null) {
+            node = ast.addNode(CompactAst.RETURN, 0, 0);
+            if (ctx.exp() != null)
+                push(lowerExp(ctx.exp()));
+        } else if (ctx.IF() != null) {
+            node = ast.addNode(CompactAst.IF, 0, 0);
+            push(lowerCond(ctx.cond()));
+            for (SysYParser.StmtContext stmt : ctx.stmt())
+                push(lowerStmt(stmt));
+        } else if (ctx.WHILE() != null) {
+            node = ast.addNode(CompactAst.WHILE, 0, 0);
+            push(lowerCond(ctx.cond()));
+            push(lowerStmt(ctx.stmt(0)));
+        } else if (ctx.BREAK() != null) {
+            node = ast.addNode(CompactAst.BREAK, 0, 0);
+        } else if (ctx.CONTINUE() != null) {
+            node = ast.addNode(CompactAst.CONTINUE, 0, 0);
+        } else {
+            node = ast.addNode(CompactAst.EXP_STMT, 0, 0);
+            if (ctx.exp() != null)
+                push(lowerExp(ctx.exp()));
+        }
+        return finish(node, mark);
+    }
+
+    private int lowerCond(SysYParser.CondContext ctx) {
+        if (ctx.exp() != null)
+            return lowerExp(ctx.exp());
+        int node;
+        if (ctx.AND() != null)
+            node = ast.addNode(CompactAst.AND, 0, 0);
+        else if (ctx.OR() != null)
+            node = ast.addNode(CompactAst.OR, 0, 0);
+        else
+            node = ast.addNode(CompactAst.BINARY, 0, ((TerminalNode) ctx.getChild(1)).getSymbol().getType());
+        int mark = scratchSize;
+        push(lowerCond(ctx.cond(0)));
+        push(lowerCond(ctx.cond(1)));
+        return finish(node, mark);
+    }
+
+    private int lowerLVal(SysYParser.LValContext ctx) {
+        int node = ast.addNode(CompactAst.LVAL, ident(ctx.IDENT()), 0);
+        int mark = scratchSize;
+        for (SysYParser.ExpContext index : ctx.exp())
+            push(lowerExp(index));
+        return finish(node, mark);
+    }
+
+    private int lowerExp(SysYParser.ExpContext ctx) {
+        if (ctx.L_PAREN() != null && ctx.exp().size() == 1)
+            return lowerExp(ctx.exp(0));
+        if (ctx.lVal() != null)
+            return lowerLVal(ctx.lVal());
+        int mark = scratchSize;
+        if (ctx.number() != null) {
+            int node = ast.addNode(CompactAst.NUMBER, IREmitter.parseNumber(ctx.number().getText()), 0);
+            return finish(node, mark);
+        }
+        if (ctx.IDENT() != null) {
+            int node = ast.addNode(CompactAst.CALL, ident(ctx.IDENT()), 0);
+            if (ctx.funcRParams() != null) {
+                for (SysYParser.ParamContext param : ctx.funcRParams().param())
+                    push(lowerExp(param.exp()));
+            }
+            return finish(node, mark);
+        }
+        if (ctx.unaryOp() != null) {
+            int node = ast.addNode(CompactAst.UNARY, 0, ((TerminalNode) ctx.unaryOp().getChild(0)).getSymbol().getType());
+            push(lowerExp(ctx.exp(0)));
+            return finish(node, mark);
+        }
+        int node = ast.addNode(CompactAst.BINARY, 0, ((TerminalNode) ctx.getChild(1)).getSymbol().getType());
+        push(lowerExp(ctx.exp(0)));
+        push(lowerExp(ctx.exp(1)));
+        return finish(node, mark);
+    }
+}
@@ -0,0 +1,321 @@
+import org.llvm4j.llvm4j.*;
+import org.llvm4j.llvm4j.Module;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+
+// 在 CompactAst 上生成 LLVM IR, 生成的 IR 与 VisitorForIR 在原语法树上生成的完全相同。
+// 结点就是 int 下标, 按 kind 分派, 不经过 ANTLR 的 accept/visit 和 Context 对象
+public class AstToIR {
+    private CompactAst ast;
+    private IdentTable identTable;
+    private IREmitter emitter;
+    private SymbolTable<Value> variables;
+    // 与 variables 同步进出作用域, 记录 const 的值, 见 VisitorForIR
+    private SymbolTable<ConstantInt> constants;
+    private SymbolTable<ArrayLayout> arrays;
+    // 表达式结点交给 IREmitter 时的视图, AND / OR 结点当作运算符是 SysYLexer.AND / OR 的二元运算
+    private ExpTree<Integer> exps = new ExpTree<Integer>() {
+        @Override
+        public int arity(Integer node) {
+            switch (ast.getKind(node)) {
+                case CompactAst.BINARY:
+                case CompactAst.AND:
+                case CompactAst.OR:
+                    return 2;
+                case CompactAst.UNARY:
+                    return 1;
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public int op(Integer node) {
+            int kind = ast.getKind(node);
+            if (kind == CompactAst.AND)
+                return SysYLexer.AND;
+            if (kind == CompactAst.OR)
+                return SysYLexer.OR;
+            return ast.getAux(node);
+        }
+
+        @Override
+        public Integer operand(Integer node, int index) {
+            return ast.getChild(node, index);
+        }
+
+        @Override
+        public Value leafValue(Integer node) {
+            switch (ast.getKind(node)) {
+                case CompactAst.NUMBER:
+                    return emitter.constant(ast.getData(node));
+                case CompactAst.LVAL:
+                    return lValue(node);
+                case CompactAst.CALL:
+                    return call(node);
+            }
+            return null;
+        }
+
+        @Override
+        public Integer leafConstant(Integer node) {
+            switch (ast.getKind(node)) {
+                case CompactAst.NUMBER:
+                    return ast.getData(node);
+                case CompactAst.LVAL: {
+                    if (ast.getChildCount(node) == 0)
+                        return ConstantFolder.valueOf(constants.get(ast.getData(node)));
+                    ArrayLayout layout = arrays.get(ast.getData(node));
+                    return layout == null ? null : constantElement(node, layout);
+                }
+            }
+            return null;
+        }
+    };
+
+    public AstToIR(CompactAst ast, IdentTable identTable) {
+        this.ast = ast;
+        this.identTable = identTable;
+        this.emitter = new IREmitter();
+        this.variables = new SymbolTable<>();
+        this.constants = new SymbolTable<>();
+        this.arrays = new SymbolTable<>();
+    }
+
+    public void generate() {
+        int root = ast.getRoot();
+        for (int i = 0; i < ast.getChildCount(root); i++) {
+            int item = ast.getChild(root, i);
+            if (ast.getKind(item) == CompactAst.FUNC_DEF)
+                funcDef(item);
+            else
+                def(item);
+        }
+    }
+
+    private void define(int name, Value value, ConstantInt constant) {
+        variables.put(name, value);
+        constants.put(name, constant);
+        arrays.put(name, null);
+    }
+
+    private void defineArray(int name, Value value, ArrayLayout layout) {
+        variables.put(name, value);
+        constants.put(name, null);
+        arrays.put(name, layout);
+    }
+
+    private String name(int node) {
+        return identTable.getName(ast.getData(node));
+    }
+
+    // CONST_DEF 或 VAR_DEF, 初始值是最后一个子结点
+    private void def(int node) {
+        String varName = name(node);
+        int dims = ast.getAux(node);
+        int init = ast.getChildCount(node) > dims ? ast.getChild(node, dims) : -1;
+        if (dims > 0) {
+            arrayDef(node, dims, init);
+            return;
+        }
+        boolean isConst = ast.getKind(node) == CompactAst.CONST_DEF;
+        if (variables.depth() > 0) {
+            Value rValue = init >= 0 ? exp(init) : null;
+            Integer constant = isConst ? ConstantFolder.valueOf(rValue) : null;
+            define(ast.getData(node), emitter.local(varName, rValue), constant == null ? null : emitter.constant(constant));
+        } else {
+            ConstantInt initValue = init >= 0 ? emitter.constant(init, exps) : emitter.getZero();
+            define(ast.getData(node), emitter.global(varName, initValue), isConst ? initValue : null);
+        }
+    }
+
+    // 数组定义, 与 VisitorForIR 相同
+    private void arrayDef(int node, int dimCount, int init) {
+        int[] dims = new int[dimCount];
+        for (int i = 0; i < dimCount; i++)
+            dims[i] = emitter.constantValue(ast.getChild(node, i), exps);
+        ArrayLayout layout = new ArrayLayout(emitter.getI32(), dims, false);
+        boolean global = variables.depth() == 0;
+        Value[] elements = null;
+        if (init >= 0) {
+            elements = new Value[layout.size()];
+            flatten(init, layout, 0, 0, elements, global);
+        }
+        if (ast.getKind(node) == CompactAst.CONST_DEF)
+            layout.setConstants(elements);
+        defineArray(ast.getData(node), emitter.array(name(node), layout, elements, global), layout);
+    }
+
+    // INIT_LIST 摊平到 elements 的 [offset, offset + layout.sizeOf(level)) 里, 规则见 VisitorForIR
+    private void flatten(int list, ArrayLayout layout, int level, int offset, Value[] elements, boolean global) {
+        int pos = offset;
+        int end = offset + layout.sizeOf(level);
+        for (int i = 0; i < ast.getChildCount(list) && pos < end; i++) {
+            int item = ast.getChild(list, i);
+            if (ast.getKind(item) != CompactAst.INIT_LIST) {
+                elements[pos++] = global ? emitter.constant(item, exps) : exp(item);
+            } else {
+                int start = layout.nestedStart(offset, pos, level);
+                if (start >= end)
+                    break;
+                flatten(item, layout, level + 1, start, elements, global);
+                pos = start + layout.sizeOf(level + 1);
+            }
+        }
+    }
+
+    private Value elementPointer(int lVal, ArrayLayout layout) {
+        Value base = emitter.arrayBase(layout, variables.get(ast.getData(lVal)), name(lVal));
+        Value[] indices = new Value[ast.getChildCount(lVal)];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = exp(ast.getChild(lVal, i));
+        return emitter.elementPointer(layout, base, indices);
+    }
+
+    private void funcDef(int node) {
+        int paramCount = ast.getChildCount(node) - 1;
+        LLVMTypeRef[] paramTypes = new LLVMTypeRef[paramCount];
+        ArrayLayout[] paramLayouts = new ArrayLayout[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            int param = ast.getChild(node, i);
+            if (ast.getKind(param) == CompactAst.ARRAY_PARAM) {
+                int[] dims = new int[ast.getChildCount(param) + 1];
+                for (int k = 1; k < dims.length; k++)
+                    dims[k] = emitter.constantValue(ast.getChild(param, k - 1), exps);
+                paramLayouts[i] = new ArrayLayout(emitter.getI32(), dims, true);
+                paramTypes[i] = paramLayouts[i].getType();
+            } else {
+                paramTypes[i] = emitter.getI32();
+            }
+        }
+        boolean returnsVoid = ast.getAux(node) == SysYLexer.VOID;
+        Function func = emitter.addFunction(name(node), returnsVoid, paramTypes);
+        emitter.beginBody(func, returnsVoid);
+        // 形参和函数体最外层的定义在同一个作用域里
+        variables.enterScope();
+        constants.enterScope();
+        arrays.enterScope();
+        for (int i = 0; i < paramCount; i++) {
+            int param = ast.getChild(node, i);
+            Value paramSlot = emitter.parameter(i, name(param), paramTypes[i]);
+            if (paramLayouts[i] == null)
+                define(ast.getData(param), paramSlot, null);
+            else
+                defineArray(ast.getData(param), paramSlot, paramLayouts[i]);
+        }
+        blockItems(ast.getChild(node, paramCount));
+        arrays.exitScope();
+        constants.exitScope();
+        variables.exitScope();
+    }
+
+    private void block(int node) {
+        variables.enterScope();
+        constants.enterScope();
+        arrays.enterScope();
+        blockItems(node);
+        arrays.exitScope();
+        constants.exitScope();
+        variables.exitScope();
+    }
+
+    private void blockItems(int node) {
+        int count = ast.getChildCount(node);
+        for (int i = 0; i < count; i++) {
+            int item = ast.getChild(node, i);
+            int kind = ast.getKind(item);
+            if (kind == CompactAst.CONST_DEF || kind == CompactAst.VAR_DEF)
+                def(item);
+            else
+                stmt(item);
+        }
+        if (variables.depth() == 1 && (count == 0 || ast.getKind(ast.getChild(node, count - 1)) != CompactAst.RETURN))
+            emitter.defaultReturn();
+    }
+
+    private void stmt(int node) {
+        switch (ast.getKind(node)) {
+            case CompactAst.RETURN:
+                emitter.ret(emitter.returnsVoid() || ast.getChildCount(node) == 0 ? null : exp(ast.getChild(node, 0)));
+                break;
+            case CompactAst.ASSIGN: {
+                int lVal = ast.getChild(node, 0);
+                ArrayLayout layout = arrays.get(ast.getData(lVal));
+                Value lValue = layout == null ? variables.get(ast.getData(lVal)) : elementPointer(lVal, layout);
+                Value rValue = exp(ast.getChild(node, 1));
+                emitter.store(lValue, rValue);
+                break;
+            }
+            case CompactAst.EXP_STMT:
+                if (ast.getChildCount(node) > 0)
+                    exp(ast.getChild(node, 0));
+                break;
+            case CompactAst.WHILE:
+                emitter.whileLoop(ast.getChild(node, 0), exps, () -> stmt(ast.getChild(node, 1)));
+                break;
+            case CompactAst.IF:
+                emitter.ifElse(ast.getChild(node, 0), exps, () -> stmt(ast.getChild(node, 1)),
+                        ast.getChildCount(node) > 2 ? () -> stmt(ast.getChild(node, 2)) : null);
+                break;
+            case CompactAst.BREAK:
+                emitter.breakLoop();
+                break;
+            case CompactAst.CONTINUE:
+                emitter.continueLoop();
+                break;
+            case CompactAst.BLOCK:
+                block(node);
+                break;
+        }
+    }
+
+    // exp 和 cond 共用结点, 比较和逻辑运算只会出现在 cond 里
+    private Value exp(int node) {
+        return emitter.value(node, exps);
+    }
+
+    private Value lValue(int node) {
+        ConstantInt constant = constants.get(ast.getData(node));
+        if (constant != null && ast.getChildCount(node) == 0)
+            return constant;
+        ArrayLayout layout = arrays.get(ast.getData(node));
+        if (layout != null) {
+            Integer value = constantElement(node, layout);
+            if (value != null)
+                return emitter.constant(value);
+            Value element = elementPointer(node, layout);
+            if (ast.getChildCount(node) < layout.getDimCount())
+                return element;
+            return emitter.load(element, name(node));
+        }
+        Value value = variables.get(ast.getData(node));
+        return value == null ? null : emitter.load(value, name(node));
+    }
+
+    // const 数组里下标都是常量的元素, 否则返回 null
+    private Integer constantElement(int lVal, ArrayLayout layout) {
+        int[] indices = new int[ast.getChildCount(lVal)];
+        for (int i = 0; i < indices.length; i++) {
+            Integer index = emitter.evaluate(ast.getChild(lVal, i), exps);
+            if (index == null)
+                return null;
+            indices[i] = index;
+        }
+        return layout.constantAt(indices);
+    }
+
+    private Value call(int node) {
+        Function func = emitter.getModule().getFunction(name(node)).unwrap();
+        Value[] paramValues = new Value[ast.getChildCount(node)];
+        for (int i = 0; i < paramValues.length; i++)
+            paramValues[i] = exp(ast.getChild(node, i));
+        return emitter.call(func, paramValues);
+    }
+
+    public Module getModule() {
+        return emitter.getModule();
+    }
+
+    public void dispose() {
+        emitter.dispose();
+    }
+}
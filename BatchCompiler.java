@@ -0,0 +1,156 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BatchCompiler {
+    private List<String[]> jobs;
+    private int threads;
+    private CompileOptions options;
+
+    public BatchCompiler(List<String[]> jobs, int threads, CompileOptions options) {
+        this.jobs = jobs;
+        this.threads = threads;
+        this.options = options;
+    }
+
+    private static class Result {
+        private String source;
+        private String output;
+        private long millis;
+        private boolean ok;
+        private String diagnostics;
+
+        public Result(String source, String output, long millis, boolean ok, String diagnostics) {
+            this.source = source;
+            this.output = output;
+            this.millis = millis;
+            this.ok = ok;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    // usage: --batch <dir | manifest> <outDir> [threads] [options]
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        CompileOptions options = CompileOptions.parse(args, positional);
+        if (positional.size() < 2) {
+            System.err.println("usage: --batch <dir | manifest> <outDir> [threads] [options]");
+            return;
+        }
+        int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : Runtime.getRuntime().availableProcessors();
+        List<String[]> jobs = collectJobs(Paths.get(positional.get(0)), Paths.get(positional.get(1)),
+                options.getOutputExtension());
+        BatchCompiler batchCompiler = new BatchCompiler(jobs, threads, options);
+        if (!batchCompiler.run(System.out)) {
+            System.exit(1);
+        }
+    }
+
+    // directory: every .sy file below it; manifest: one "source [output]" per line, # starts a comment
+    public static List<String[]> collectJobs(Path input, Path outDir, String extension) throws IOException {
+        List<String[]> jobs = new ArrayList<>();
+        if (Files.isDirectory(input)) {
+            List<Path> sources;
+            try (Stream<Path> walk = Files.walk(input)) {
+                sources = walk.filter(p -> p.toString().endsWith(".sy")).sorted().collect(Collectors.toList());
+            }
+            for (Path source : sources) {
+                Path relative = input.relativize(source);
+                jobs.add(new String[] { source.toString(), outDir.resolve(toOutputName(relative.toString(), extension)).toString() });
+            }
+        } else {
+            for (String line : Files.readAllLines(input)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\\s+");
+                String output = parts.length > 1 ? parts[1]
+                        : outDir.resolve(toOutputName(Paths.get(parts[0]).getFileName().toString(), extension)).toString();
+                jobs.add(new String[] { parts[0], output });
+            }
+        }
+        return jobs;
+    }
+
+    private static String toOutputName(String source, String extension) {
+        if (source.endsWith(".sy"))
+            return source.substring(0, source.length() - 3) + extension;
+        return source + extension;
+    }
+
+    public boolean run(PrintStream report) {
+        long begin = System.nanoTime();
+        ParserWarmup.warmUp();
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String[] job : jobs) {
+            futures.add(pool.submit(compileTask(job[0], job[1])));
+        }
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                results.add(new Result(jobs.get(i)[0], jobs.get(i)[1], 0, false, String.valueOf(e.getCause())));
+            }
+        }
+        pool.shutdown();
+        long total = (System.nanoTime() - begin) / 1_000_000;
+        return printReport(results, total, report);
+    }
+
+    private Callable<Result> compileTask(String source, String output) {
+        return () -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream err = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                File parent = new File(output).getAbsoluteFile().getParentFile();
+                if (parent != null)
+                    parent.mkdirs();
+                ok = Main.compile(source, output, options, err);
+            } catch (Exception e) {
+                err.println(e);
+                ok = false;
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            return new Result(source, output, millis, ok, buffer.toString(StandardCharsets.UTF_8));
+        };
+    }
+
+    private boolean printReport(List<Result> results, long totalMillis, PrintStream report) {
+        int failed = 0;
+        long cpuMillis = 0;
+        for (Result result : results) {
+            cpuMillis += result.millis;
+            report.println((result.ok ? "OK     " : "FAILED ") + String.format("%6d ms  ", result.millis)
+                    + result.source + " -> " + result.output);
+            if (!result.ok) {
+                failed++;
+                for (String line : result.diagnostics.split("\n")) {
+                    if (!line.isEmpty())
+                        report.println("         " + line);
+                }
+            }
+        }
+        report.println();
+        report.println("compiled " + results.size() + " files, " + (results.size() - failed) + " ok, " + failed
+                + " failed, " + totalMillis + " ms wall, " + cpuMillis + " ms total, " + threads + " threads");
+        return failed == 0;
+    }
+}
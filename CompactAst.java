@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+// 紧凑的抽象语法树, 按列存储 (struct of arrays): 每个结点只是一个下标, 种类、数据和子结点范围各放在一个 int 数组里。
+// 结点按先序编号, 根是 0; 一个结点的子结点下标连续地放在 children 里的 [first, first + count)。
+// 括号、bType、分号等只影响语法的结点都去掉了, decl 展开成若干个 CONST_DEF / VAR_DEF, cond 和 exp 共用表达式结点。
+// 每个结点的 data 和 aux 含义如下:
+//   FUNC_DEF      data: 函数名 id   aux: 返回类型 SysYLexer.INT / VOID   子结点: 形参..., BLOCK
+//   PARAM         data: 形参名 id                                          子结点: 无
+//   ARRAY_PARAM   data: 形参名 id                                          子结点: 第一维之后各维的长度
+//   CONST_DEF     data: 名字 id     aux: 维数                              子结点: 各维长度..., 初始值
+//   VAR_DEF       data: 名字 id     aux: 维数                              子结点: 各维长度..., 初始值 (可以没有)
+//   LVAL / CALL   data: 名字 id                                            子结点: 下标 / 实参
+//   NUMBER        data: 数值
+//   UNARY/BINARY  aux: 运算符的 token 类型, 比如 SysYLexer.MINUS、SysYLexer.LE
+public class CompactAst {
+    public static final int PROGRAM = 0;
+    public static final int FUNC_DEF = 1;
+    public static final int PARAM = 2;
+    public static final int ARRAY_PARAM = 3;
+    public static final int CONST_DEF = 4;
+    public static final int VAR_DEF = 5;
+    public static final int INIT_LIST = 6;
+    public static final int BLOCK = 7;
+    public static final int ASSIGN = 8;
+    public static final int EXP_STMT = 9;
+    public static final int IF = 10;
+    public static final int WHILE = 11;
+    public static final int BREAK = 12;
+    public static final int CONTINUE = 13;
+    public static final int RETURN = 14;
+    public static final int LVAL = 15;
+    public static final int NUMBER = 16;
+    public static final int CALL = 17;
+    public static final int UNARY = 18;
+    public static final int BINARY = 19;
+    public static final int AND = 20;
+    public static final int OR = 21;
+
+    private int[] kind;
+    private int[] data;
+    private int[] aux;
+    private int[] first;
+    private int[] count;
+    private int size;
+    private int[] children;
+    private int childrenSize;
+
+    public CompactAst(int capacity) {
+        capacity = Math.max(capacity, 16);
+        this.kind = new int[capacity];
+        this.data = new int[capacity];
+        this.aux = new int[capacity];
+        this.first = new int[capacity];
+        this.count = new int[capacity];
+        this.children = new int[capacity];
+    }
+
+    public int addNode(int kind, int data, int aux) {
+        if (size == this.kind.length) {
+            int capacity = size * 2;
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.data = Arrays.copyOf(this.data, capacity);
+            this.aux = Arrays.copyOf(this.aux, capacity);
+            this.first = Arrays.copyOf(this.first, capacity);
+            this.count = Arrays.copyOf(this.count, capacity);
+        }
+        this.kind[size] = kind;
+        this.data[size] = data;
+        this.aux[size] = aux;
+        return size++;
+    }
+
+    // 把 src[from, to) 作为 node 的子结点
+    public void setChildren(int node, int[] src, int from, int to) {
+        int length = to - from;
+        if (childrenSize + length > children.length)
+            children = Arrays.copyOf(children, Math.max(children.length * 2, childrenSize + length));
+        System.arraycopy(src, from, children, childrenSize, length);
+        first[node] = childrenSize;
+        count[node] = length;
+        childrenSize += length;
+    }
+
+    // 建好之后去掉数组多余的容量
+    public void trim() {
+        kind = Arrays.copyOf(kind, size);
+        data = Arrays.copyOf(data, size);
+        aux = Arrays.copyOf(aux, size);
+        first = Arrays.copyOf(first, size);
+        count = Arrays.copyOf(count, size);
+        children = Arrays.copyOf(children, childrenSize);
+    }
+
+    public int getRoot() {
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int node) {
+        return kind[node];
+    }
+
+    public int getData(int node) {
+        return data[node];
+    }
+
+    public int getAux(int node) {
+        return aux[node];
+    }
+
+    public int getChildCount(int node) {
+        return count[node];
+    }
+
+    public int getChild(int node, int i) {
+        return children[first[node] + i];
+    }
+}
@@ -0,0 +1,43 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+// CompileServer 的瘦客户端: 不加载 ANTLR 和 LLVM, 只负责转发参数和打印结果
+public class CompileClient {
+
+    // usage: --client <socket> <source> <output> [options] | --client <socket> shutdown
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: --client <socket> <source> <output> [options] | --client <socket> shutdown");
+            System.exit(2);
+        }
+        StringBuilder request = new StringBuilder();
+        if (args.length == 2 && args[1].equals("shutdown")) {
+            request.append("shutdown");
+        } else {
+            request.append("compile\t").append(Paths.get("").toAbsolutePath());
+            for (int i = 1; i < args.length; i++) {
+                request.append('\t').append(args[i]);
+            }
+        }
+        String status = null;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+            PrintStream out = new PrintStream(Channels.newOutputStream(channel), true, StandardCharsets.UTF_8);
+            out.println(request);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (status != null)
+                    System.err.println(status);
+                status = line;
+            }
+        }
+        System.exit(status != null && status.startsWith("OK ") ? 0 : 1);
+    }
+}
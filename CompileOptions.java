@@ -0,0 +1,109 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class CompileOptions {
+    public enum Stage {
+        CHECK, // 只做语义检查
+        IR, // 优化后的 LLVM IR
+        ASM // RISC-V 汇编
+    }
+
+    private Stage stage = Stage.IR;
+    private boolean semanticCheck = false;
+    private boolean unbuffered = false;
+    private boolean mapped = false;
+    private boolean fused = false;
+    private boolean compactAst = false;
+    private Path cacheDir = null;
+    private String timeReport = null;
+    private int optLevel = 2;
+
+    // 解析 "--" 开头的选项, 其余参数按顺序放入 positional
+    public static CompileOptions parse(String[] args, List<String> positional) {
+        CompileOptions options = new CompileOptions();
+        for (String arg : args) {
+            if (arg.matches("-O[0-2]")) {
+                options.optLevel = arg.charAt(2) - '0';
+            } else if (!arg.startsWith("--")) {
+                positional.add(arg);
+            } else if (arg.startsWith("--stage=")) {
+                options.stage = Stage.valueOf(arg.substring("--stage=".length()).toUpperCase());
+            } else if (arg.equals("--check")) {
+                options.semanticCheck = true;
+            } else if (arg.equals("--unbuffered")) {
+                options.unbuffered = true;
+            } else if (arg.equals("--mmap")) {
+                options.mapped = true;
+            } else if (arg.equals("--fused")) {
+                options.fused = true;
+            } else if (arg.equals("--compact-ast")) {
+                options.compactAst = true;
+            } else if (arg.equals("--time-report")) {
+                options.timeReport = "text";
+            } else if (arg.startsWith("--time-report=")) {
+                options.timeReport = arg.substring("--time-report=".length());
+                if (!options.timeReport.equals("text") && !options.timeReport.equals("json"))
+                    throw new IllegalArgumentException("unknown time report format: " + options.timeReport);
+            } else if (arg.startsWith("--cache-dir=")) {
+                options.cacheDir = Paths.get(arg.substring("--cache-dir=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        // 增量编译按函数拼接 VisitorForIR 的输出, 没有 CompactAst 的路径
+        if (options.compactAst && options.cacheDir != null)
+            throw new IllegalArgumentException("--compact-ast cannot be used with --cache-dir");
+        return options;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public boolean isSemanticCheck() {
+        return semanticCheck || stage == Stage.CHECK;
+    }
+
+    public boolean isUnbuffered() {
+        return unbuffered;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    // 语义检查和 IR 生成合成一遍, 见 FusedVisitor
+    public boolean isFused() {
+        return fused;
+    }
+
+    // IR 从 CompactAst 生成, 语法树在这之前释放, 见 AstLowering
+    public boolean isCompactAst() {
+        return compactAst;
+    }
+
+    // null 表示不输出计时报告, 否则是 "text" 或 "json", 报告写在输出文件旁边
+    public String getTimeReport() {
+        return timeReport;
+    }
+
+    // 0: 只删掉终结指令之后的代码和不可达的块; 1: 常量传播和死代码消除; 2: 再加上 mem2reg
+    public int getOptLevel() {
+        return optLevel;
+    }
+
+    public Path getCacheDir() {
+        return cacheDir;
+    }
+
+    // 把相对路径的选项按给定目录解析, 编译服务用它处理客户端工作目录下的路径
+    public void resolveAgainst(Path base) {
+        if (cacheDir != null)
+            cacheDir = base.resolve(cacheDir);
+    }
+
+    public String getOutputExtension() {
+        return stage == Stage.ASM ? ".s" : ".ll";
+    }
+}
@@ -0,0 +1,23 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// 编译阶段的 JFR 事件, 用 -XX:StartFlightRecording 启动后可以在 JMC 里按阶段查看耗时。
+// 没有开启记录时 commit() 几乎没有开销
+@Name("sysy.CompilePhase")
+@Label("Compile Phase")
+@Category({ "SysY", "Compiler" })
+@Description("One phase of compiling a SysY source file")
+public class CompilePhaseEvent extends Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Iteration")
+    @Description("Fixpoint iteration of the optimizer, 0 for phases outside the loop")
+    public int iteration;
+
+    @Label("Source")
+    public String source;
+}
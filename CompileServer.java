@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// 常驻编译服务: 词法/语法分析、IR 生成、优化和汇编生成的代码在同一个 JVM 里保持 JIT 预热,
+// 每个请求只付出真正的编译时间。
+//
+// 协议 (一行一个请求, 字段用 \t 分隔):
+//   compile <客户端工作目录> <与命令行相同的参数...>
+//   shutdown
+// 服务端先逐行返回诊断信息, 最后一行是 "OK <ms>" 或 "FAILED <ms>", 然后关闭连接。
+public class CompileServer {
+    private Path socketPath;
+    private ExecutorService pool;
+    private ServerSocketChannel server;
+    private volatile boolean running = true;
+
+    public CompileServer(Path socketPath, int threads) {
+        this.socketPath = socketPath;
+        this.pool = Executors.newWorkStealingPool(threads);
+    }
+
+    // usage: --server <socket> [threads]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: --server <socket> [threads]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        new CompileServer(Paths.get(args[0]), threads).serve();
+    }
+
+    public void serve() throws IOException {
+        Files.deleteIfExists(socketPath);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            ParserWarmup.warmUp();
+            System.err.println("compile server listening on " + socketPath + " (" + ParserWarmup.cachedDFAStates()
+                    + " DFA states warmed)");
+            while (running) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                pool.execute(() -> handle(client));
+            }
+        } finally {
+            server.close();
+            pool.shutdown();
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            PrintStream out = new PrintStream(Channels.newOutputStream(channel), true, StandardCharsets.UTF_8);
+            String line = in.readLine();
+            if (line == null)
+                return;
+            String[] fields = line.split("\t");
+            if (fields[0].equals("shutdown")) {
+                out.println("OK 0");
+                running = false;
+                server.close();
+            } else if (fields[0].equals("compile") && fields.length > 2) {
+                long start = System.nanoTime();
+                boolean ok = compile(Paths.get(fields[1]), Arrays.copyOfRange(fields, 2, fields.length), out);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                out.println((ok ? "OK " : "FAILED ") + millis);
+            } else {
+                out.println("unknown request: " + line);
+                out.println("FAILED 0");
+            }
+        } catch (IOException e) {
+            System.err.println("compile server: " + e);
+        }
+    }
+
+    private boolean compile(Path cwd, String[] args, PrintStream out) {
+        try {
+            List<String> paths = new ArrayList<>();
+            CompileOptions options = CompileOptions.parse(args, paths);
+            options.resolveAgainst(cwd);
+            // 只做语义检查时不需要输出路径, 其他阶段在开始编译前就报出来, 不要等到写文件时才失败
+            boolean check = options.getStage() == CompileOptions.Stage.CHECK;
+            if (paths.isEmpty() || (!check && paths.size() < 2)) {
+                out.println("usage: compile <cwd> <input> " + (check ? "" : "<output> ") + "[options]");
+                return false;
+            }
+            String source = cwd.resolve(paths.get(0)).toString();
+            String output = paths.size() > 1 ? cwd.resolve(paths.get(1)).toString() : null;
+            return Main.compile(source, output, options, out);
+        } catch (Exception e) {
+            out.println(e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.llvm4j.llvm4j.ConstantInt;
+import org.llvm4j.llvm4j.IntPredicate;
+import org.llvm4j.llvm4j.IntegerType;
+import org.llvm4j.llvm4j.Value;
+import org.bytedeco.llvm.global.LLVM;
+
+// 生成 IR 时的常量折叠, 运算符用 SysYLexer 的 token 类型表示, 语义与生成的指令相同 (32 位补码回绕, 比较得到 0/1)。
+// 运行时才有定义的情况 (除以 0, INT_MIN / -1) 不折叠, 返回 null, 照常生成指令
+public class ConstantFolder {
+    private ConstantFolder() {
+    }
+
+    // 值是整数常量时返回它, 否则返回 null; IRBuilder 对常量运算折叠出来的结果也是常量, 但不是 ConstantInt 对象
+    public static Integer valueOf(Value value) {
+        if (value == null || LLVM.LLVMIsAConstantInt(value.getRef()) == null)
+            return null;
+        return (int) LLVM.LLVMConstIntGetSExtValue(value.getRef());
+    }
+
+    // 两个操作数都是常量时直接算出结果, 调用者就不用生成指令了
+    public static ConstantInt fold(IntegerType i32, int op, Value left, Value right) {
+        Integer leftValue = valueOf(left);
+        Integer rightValue = valueOf(right);
+        if (leftValue == null || rightValue == null)
+            return null;
+        Integer result = binary(op, leftValue, rightValue);
+        return result == null ? null : i32.getConstant(result, false);
+    }
+
+    public static ConstantInt fold(IntegerType i32, int op, Value operand) {
+        Integer operandValue = valueOf(operand);
+        if (operandValue == null)
+            return null;
+        Integer result = unary(op, operandValue);
+        return result == null ? null : i32.getConstant(result, false);
+    }
+
+    public static Integer binary(int op, int left, int right) {
+        switch (op) {
+            case SysYLexer.PLUS:
+                return left + right;
+            case SysYLexer.MINUS:
+                return left - right;
+            case SysYLexer.MUL:
+                return left * right;
+            case SysYLexer.DIV:
+                if (right == 0 || (left == Integer.MIN_VALUE && right == -1))
+                    return null;
+                return left / right;
+            case SysYLexer.MOD:
+                if (right == 0 || (left == Integer.MIN_VALUE && right == -1))
+                    return null;
+                return left % right;
+            case SysYLexer.EQ:
+                return left == right ? 1 : 0;
+            case SysYLexer.NEQ:
+                return left != right ? 1 : 0;
+            case SysYLexer.LT:
+                return left < right ? 1 : 0;
+            case SysYLexer.GT:
+                return left > right ? 1 : 0;
+            case SysYLexer.LE:
+                return left <= right ? 1 : 0;
+            case SysYLexer.GE:
+                return left >= right ? 1 : 0;
+        }
+        return null;
+    }
+
+    // 比较运算对应的 icmp 谓词和生成的指令名
+    public static IntPredicate predicateOf(int op) {
+        switch (op) {
+            case SysYLexer.EQ:
+                return IntPredicate.Equal;
+            case SysYLexer.NEQ:
+                return IntPredicate.NotEqual;
+            case SysYLexer.LT:
+                return IntPredicate.SignedLessThan;
+            case SysYLexer.GT:
+                return IntPredicate.SignedGreaterThan;
+            case SysYLexer.LE:
+                return IntPredicate.SignedLessEqual;
+            case SysYLexer.GE:
+                return IntPredicate.SignedGreaterEqual;
+        }
+        return null;
+    }
+
+    public static String compareName(int op) {
+        switch (op) {
+            case SysYLexer.EQ:
+                return "eqtmp";
+            case SysYLexer.NEQ:
+                return "neqtmp";
+            case SysYLexer.LT:
+                return "lttmp";
+            case SysYLexer.GT:
+                return "gttmp";
+            case SysYLexer.LE:
+                return "letmp";
+            case SysYLexer.GE:
+                return "getmp";
+        }
+        return null;
+    }
+
+    public static Integer unary(int op, int operand) {
+        switch (op) {
+            case SysYLexer.PLUS:
+                return operand;
+            case SysYLexer.MINUS:
+                return -operand;
+            case SysYLexer.NOT:
+                return operand == 0 ? 1 : 0;
+        }
+        return null;
+    }
+}
@@ -4,76 +4,54 @@ import org.llvm4j.llvm4j.Module;
 
 import java.util.*;
 
-public class ConstantSpread {
-    // 常量传播的数据流值表示
-    private enum LatticeValue {
-        UNDEF, // 未初始化
-        NAC, // Not a Constant
-        CONST // 常量值 (需要与具体值一起使用)
-    }
-
-    private static class ConstantValue {
-        LatticeValue type;
-        LLVMValueRef constValue; // 当type为CONST时有意义
-
-        public ConstantValue(LatticeValue type) {
-            this.type = type;
-            this.constValue = null;
-        }
-
-        public ConstantValue(LLVMValueRef constValue) {
-            this.type = LatticeValue.CONST;
-            this.constValue = constValue;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof ConstantValue))
-                return false;
-            ConstantValue other = (ConstantValue) obj;
-
-            if (this.type != other.type)
-                return false;
-            if (this.type != LatticeValue.CONST)
-                return true; // UNDEF和NAC只需比较类型
-
-            // 对于常量，需要比较具体值
-            if (this.constValue == null || other.constValue == null)
-                return false;
-
-            // 比较两个LLVMValueRef是否相等
-            if (LLVMIsConstant(this.constValue) != 0 && LLVMIsConstant(other.constValue) != 0) {
-                return LLVMConstIntGetSExtValue(this.constValue) == LLVMConstIntGetSExtValue(other.constValue);
-            }
-
-            return false;
-        }
-    }
-
-    // 用于表示指令及其前驱后继关系
-    private static class InstructionNode {
-        LLVMValueRef instruction;
-        List<InstructionNode> predecessors = new ArrayList<>();
-        List<InstructionNode> successors = new ArrayList<>();
-
-        // 用于常量传播分析
-        Map<LLVMValueRef, ConstantValue> inValue = new HashMap<>(); // 存储变量到常量值的映射
-        Map<LLVMValueRef, ConstantValue> outValue = new HashMap<>(); // 存储变量到常量值的映射
-
-        public InstructionNode(LLVMValueRef instruction) {
-            this.instruction = instruction;
-        }
-    }
+// 稀疏条件常量传播 (SCCP), 以基本块为单位做数据流分析。
+// 指令的结果只定值一次, 整个函数共用一个格值向量; 只有内存里的标量 (局部变量和全局变量) 的值随程序点变化,
+// 每个块只保存出口处的内存状态, 块内在一份状态上原地执行。指令和内存槽位都编成连续的号, 格值存在 LatticeVector 里。
+// 同时记录哪些边可能执行: 从入口出发, 条件是常量的跳转只有一条边可执行, 只有从可执行边到达的块才参与计算,
+// phi 和块的入口状态也只看可执行的入边。最后把常量替换掉, 条件跳转改成无条件跳转, 删掉不会执行的块
+public class ConstantSpread implements FunctionPass {
+    // 操作数不是指令时的编码, 指令操作数用它的编号
+    private static final int OPERAND_CONST = -1;
+    private static final int OPERAND_UNDEF = -2; // 不可达块里的指令
+    private static final int OPERAND_NAC = -3; // 形参等
 
     private LLVMModuleRef modRef;
+    private AnalysisManager analyses;
     private int count = 0;
-    private Map<LLVMValueRef, InstructionNode> instructionMap = new LinkedHashMap<>();
-    // private Map<LLVMValueRef, ConstantValue> valueMap = new HashMap<>(); //
-    // 存储变量到常量值的映射
+    private Worklist.Order order = Worklist.Order.REVERSE_POSTORDER;
+    private int iterations = 0;
+    private int duplicates = 0;
+    private boolean cfgChanged;
     private Set<LLVMValueRef> globalVarsAssignedOnce = new HashSet<>(); // 只被赋值一次的全局变量
 
+    // 以下是当前函数的, 只包含可达的块。块按逆后序编号, 指令按所在块的顺序编号
+    private LLVMValueRef[] insts;
+    private int[] opcodes;
+    private int[] extras; // icmp 的谓词, zext / sext 的源操作数位宽
+    private int[] slots; // load / store 访问的内存槽位, 不跟踪的为 -1
+    private int[][] operands;
+    private int[][] operandConstants;
+    private int[] blockOf;
+    private int[] blockStart; // 块 b 的指令编号是 [blockStart[b], blockStart[b + 1])
+    private int[][] blockPreds;
+    private int[][] blockSuccs;
+    private int[][] users; // 在其他块里或者在 phi 里用到这条指令结果的块
+    private int[][] incomingBlocks; // phi 各个 incoming 的来源块, 不可达的为 -1
+    private int[] killedByCall; // 调用其他函数之后可能被改掉的全局变量槽位
+    private LatticeVector entryState;
+    private LatticeVector values;
+    private LatticeVector[] outStates;
+    private boolean[] blockExecutable;
+    private boolean[][] edgeExecutable; // 和 blockSuccs 对应
+    private LLVMBasicBlockRef[] blocks;
+
     public ConstantSpread(Module module) {
+        this(module, new AnalysisManager());
+    }
+
+    public ConstantSpread(Module module, AnalysisManager analyses) {
         this.modRef = module.getRef();
+        this.analyses = analyses;
         identifyGlobalsAssignedOnce();
     }
 
@@ -108,378 +86,400 @@ public class ConstantSpread {
         }
     }
 
-    // 构建控制流图
-    public void buildCFG() {
-        instructionMap.clear();
-        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
-
-            if (LLVMCountBasicBlocks(func) == 0)
-                continue; // 跳过声明
-
-            // 第一遍：创建所有指令节点
-            Map<LLVMBasicBlockRef, List<InstructionNode>> blockInstructions = new HashMap<>();
-
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(
-                    block)) {
-
-                List<InstructionNode> instructions = new ArrayList<>();
-                blockInstructions.put(block, instructions);
+    // 模块里看不到的 store, 例如增量编译时只生成了声明的函数里的赋值。这些全局变量不再当作只赋值一次
+    public void addStoredGlobals(Collection<String> names) {
+        for (String name : names) {
+            LLVMValueRef globalVar = LLVMGetNamedGlobal(modRef, name);
+            if (globalVar != null)
+                globalVarsAssignedOnce.remove(globalVar);
+        }
+    }
 
-                for (LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null; inst = LLVMGetNextInstruction(
-                        inst)) {
+    // 给可达块里的指令和它们访问的内存槽位编号, 记下求解时要用的操作数、前驱后继和使用者
+    private void number(LLVMValueRef func) {
+        ControlFlowGraph cfg = analyses.getCFG(func);
+        List<LLVMBasicBlockRef> order = cfg.getOrder();
+        int blockCount = order.size();
+        blocks = order.toArray(new LLVMBasicBlockRef[0]);
+        LongHashMap<Integer> ids = new LongHashMap<>();
+        List<LLVMValueRef> instList = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        blockStart = new int[blockCount + 1];
+        for (int b = 0; b < blockCount; b++) {
+            blockStart[b] = instList.size();
+            for (LLVMValueRef inst = LLVMGetFirstInstruction(order.get(b)); inst != null; inst = LLVMGetNextInstruction(inst)) {
+                ids.put(inst.address(), instList.size());
+                instList.add(inst);
+                owners.add(b);
+            }
+        }
+        blockStart[blockCount] = instList.size();
+        blockPreds = new int[blockCount][];
+        blockSuccs = new int[blockCount][];
+        for (int b = 0; b < blockCount; b++) {
+            blockPreds[b] = blockIndices(cfg, cfg.predecessors(order.get(b)));
+            blockSuccs[b] = blockIndices(cfg, cfg.successors(order.get(b)));
+        }
 
-                    InstructionNode node = new InstructionNode(inst);
-                    instructions.add(node);
-                    instructionMap.put(inst, node);
+        int n = instList.size();
+        insts = instList.toArray(new LLVMValueRef[0]);
+        opcodes = new int[n];
+        extras = new int[n];
+        slots = new int[n];
+        operands = new int[n][];
+        operandConstants = new int[n][];
+        blockOf = new int[n];
+        incomingBlocks = new int[n][];
+        List<List<Integer>> userLists = new ArrayList<>();
+        LongHashMap<Integer> slotIds = new LongHashMap<>();
+        List<LLVMValueRef> slotList = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            LLVMValueRef inst = insts[i];
+            int opcode = LLVMGetInstructionOpcode(inst);
+            opcodes[i] = opcode;
+            blockOf[i] = owners.get(i);
+            slots[i] = -1;
+            userLists.add(null);
+            int operandCount = 0;
+            switch (opcode) {
+                case LLVMLoad:
+                    slots[i] = slotOf(LLVMGetOperand(inst, 0), slotIds, slotList);
+                    break;
+                case LLVMStore:
+                    // 只跟踪存到标量里的整数; 数组经过 GEP 访问, 初始化局部数组时整体存的 zeroinitializer 也不是整数
+                    if (LLVMGetTypeKind(LLVMTypeOf(LLVMGetOperand(inst, 0))) == LLVMIntegerTypeKind)
+                        slots[i] = slotOf(LLVMGetOperand(inst, 1), slotIds, slotList);
+                    operandCount = 1;
+                    break;
+                case LLVMICmp:
+                    extras[i] = LLVMGetICmpPredicate(inst);
+                    operandCount = 2;
+                    break;
+                case LLVMZExt:
+                case LLVMSExt:
+                    extras[i] = LLVMGetIntTypeWidth(LLVMTypeOf(LLVMGetOperand(inst, 0)));
+                    operandCount = 1;
+                    break;
+                case LLVMAdd:
+                case LLVMSub:
+                case LLVMMul:
+                case LLVMSDiv:
+                case LLVMSRem:
+                    operandCount = 2;
+                    break;
+                case LLVMPHI:
+                    operandCount = LLVMCountIncoming(inst);
+                    incomingBlocks[i] = new int[operandCount];
+                    for (int k = 0; k < operandCount; k++)
+                        incomingBlocks[i][k] = cfg.indexOf(LLVMGetIncomingBlock(inst, k));
+                    break;
+                case LLVMBr:
+                    // 条件跳转的条件
+                    operandCount = LLVMGetNumOperands(inst) > 1 ? 1 : 0;
+                    break;
+            }
+            operands[i] = new int[operandCount];
+            operandConstants[i] = new int[operandCount];
+            for (int k = 0; k < operandCount; k++) {
+                LLVMValueRef operand = LLVMGetOperand(inst, k);
+                Integer id = ids.get(operand.address());
+                if (id != null) {
+                    operands[i][k] = id;
+                } else if (LLVMIsAConstantInt(operand) != null) {
+                    operands[i][k] = OPERAND_CONST;
+                    operandConstants[i][k] = constantOf(operand);
+                } else {
+                    operands[i][k] = LLVMIsAInstruction(operand) != null ? OPERAND_UNDEF : OPERAND_NAC;
                 }
             }
+        }
+        // 同一个块里在定值之后的使用, 在这个块的同一次执行里就能看到新的值, 不用记成使用者
+        users = new int[n][];
+        for (int i = 0; i < n; i++) {
+            for (int id : operands[i]) {
+                if (id < 0 || (blockOf[id] == blockOf[i] && opcodes[i] != LLVMPHI))
+                    continue;
+                if (userLists.get(id) == null)
+                    userLists.set(id, new ArrayList<>());
+                List<Integer> list = userLists.get(id);
+                if (list.isEmpty() || list.get(list.size() - 1) != blockOf[i])
+                    list.add(blockOf[i]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            List<Integer> list = userLists.get(i);
+            users[i] = list == null ? new int[0] : list.stream().mapToInt(Integer::intValue).toArray();
+        }
 
-            // 第二遍：建立指令间的前驱后继关系
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(
-                    block)) {
-
-                List<InstructionNode> instructions = blockInstructions.get(block);
+        // 局部变量在入口处是 UNDEF; 全局变量除非从来没有被赋值过, 否则在函数入口和调用之后都是未知的
+        entryState = new LatticeVector(slotList.size());
+        List<Integer> killed = new ArrayList<>();
+        for (int s = 0; s < slotList.size(); s++) {
+            LLVMValueRef pointer = slotList.get(s);
+            if (LLVMIsAGlobalVariable(pointer) == null)
+                continue;
+            LLVMValueRef initializer = LLVMGetInitializer(pointer);
+            if (!globalVarsAssignedOnce.contains(pointer)) {
+                entryState.setNac(s);
+                killed.add(s);
+            } else if (initializer != null && LLVMIsAConstantInt(initializer) != null) {
+                entryState.setConstant(s, constantOf(initializer));
+            } else {
+                entryState.setNac(s);
+            }
+        }
+        killedByCall = killed.stream().mapToInt(Integer::intValue).toArray();
+    }
 
-                // 块内指令的线性前驱后继关系
-                for (int i = 0; i < instructions.size() - 1; i++) {
-                    InstructionNode current = instructions.get(i);
-                    InstructionNode next = instructions.get(i + 1);
-                    current.successors.add(next);
-                    next.predecessors.add(current);
-                }
+    private static int[] blockIndices(ControlFlowGraph cfg, List<LLVMBasicBlockRef> blocks) {
+        int[] result = new int[blocks.size()];
+        int size = 0;
+        for (LLVMBasicBlockRef block : blocks) {
+            if (cfg.isReachable(block))
+                result[size++] = cfg.indexOf(block);
+        }
+        return Arrays.copyOf(result, size);
+    }
 
-                // 处理块间跳转
-                LLVMValueRef terminator = LLVMGetBasicBlockTerminator(block);
-                if (terminator != null) {
-                    InstructionNode terminatorNode = instructionMap.get(terminator);
-
-                    switch (LLVMGetInstructionOpcode(terminator)) {
-                        case LLVMBr:
-                            int numOperands = LLVMGetNumOperands(terminator);
-                            if (numOperands == 1) { // 无条件跳转
-                                LLVMBasicBlockRef targetBlock = LLVMValueAsBasicBlock(LLVMGetOperand(terminator, 0));
-                                if (!blockInstructions.containsKey(targetBlock))
-                                    continue;
-
-                                InstructionNode firstInTarget = blockInstructions.get(targetBlock).get(0);
-                                terminatorNode.successors.add(firstInTarget);
-                                firstInTarget.predecessors.add(terminatorNode);
-                            } else { // 条件跳转
-                                LLVMBasicBlockRef trueBlock = LLVMValueAsBasicBlock(LLVMGetOperand(terminator, 2));
-                                LLVMBasicBlockRef falseBlock = LLVMValueAsBasicBlock(LLVMGetOperand(terminator, 1));
-
-                                if (blockInstructions.containsKey(trueBlock)) {
-                                    InstructionNode firstInTrue = blockInstructions.get(trueBlock).get(0);
-                                    terminatorNode.successors.add(firstInTrue);
-                                    firstInTrue.predecessors.add(terminatorNode);
-                                }
-
-                                if (blockInstructions.containsKey(falseBlock)) {
-                                    InstructionNode firstInFalse = blockInstructions.get(falseBlock).get(0);
-                                    terminatorNode.successors.add(firstInFalse);
-                                    firstInFalse.predecessors.add(terminatorNode);
-                                }
-                            }
-                            break;
-                        case LLVMRet:
-                            // 返回指令没有后继
-                            break;
-                        default:
-                            // 处理其他终结指令
-                            break;
-                    }
-                }
-            }
+    // 整数类型的局部变量和全局变量才有内存槽位
+    private static int slotOf(LLVMValueRef pointer, LongHashMap<Integer> slotIds, List<LLVMValueRef> slotList) {
+        LLVMTypeRef type;
+        if (LLVMIsAAllocaInst(pointer) != null)
+            type = LLVMGetAllocatedType(pointer);
+        else if (LLVMIsAGlobalVariable(pointer) != null)
+            type = LLVMGlobalGetValueType(pointer);
+        else
+            return -1;
+        if (LLVMGetTypeKind(type) != LLVMIntegerTypeKind)
+            return -1;
+        Integer slot = slotIds.get(pointer.address());
+        if (slot == null) {
+            slot = slotList.size();
+            slotIds.put(pointer.address(), slot);
+            slotList.add(pointer);
         }
+        return slot;
     }
 
-    // 执行常量传播算法
-    public void performConstantPropagation() {
-        // 初始化worklist为所有指令
-        Queue<InstructionNode> worklist = new LinkedList<>(instructionMap.values());
+    // i1 的常量按 0 / 1 读, 其余按有符号数读
+    private static int constantOf(LLVMValueRef constant) {
+        if (LLVMGetIntTypeWidth(LLVMTypeOf(constant)) == 1)
+            return (int) LLVMConstIntGetZExtValue(constant);
+        return (int) LLVMConstIntGetSExtValue(constant);
+    }
 
+    private int operandKind(int i, int k) {
+        int id = operands[i][k];
+        if (id >= 0)
+            return values.kind(id);
+        if (id == OPERAND_CONST)
+            return LatticeVector.CONST;
+        return id == OPERAND_UNDEF ? LatticeVector.UNDEF : LatticeVector.NAC;
+    }
+
+    private int operandConstant(int i, int k) {
+        int id = operands[i][k];
+        return id >= 0 ? values.getConstant(id) : operandConstants[i][k];
+    }
+
+    // 执行常量传播算法, 从入口块开始, 只处理可执行的块
+    public void performConstantPropagation() {
+        int blockCount = blockPreds.length;
+        values = new LatticeVector(insts.length);
+        outStates = new LatticeVector[blockCount];
+        blockExecutable = new boolean[blockCount];
+        edgeExecutable = new boolean[blockCount][];
+        for (int b = 0; b < blockCount; b++) {
+            outStates[b] = new LatticeVector(entryState.size());
+            edgeExecutable[b] = new boolean[blockSuccs[b].length];
+        }
+        LatticeVector state = new LatticeVector(entryState.size());
+        // 块按逆后序编号, 默认按编号从小到大取
+        Worklist worklist = new Worklist(blockCount, order);
+        blockExecutable[0] = true;
+        worklist.add(0);
         while (!worklist.isEmpty()) {
-            InstructionNode node = worklist.poll();
-            Map<LLVMValueRef, ConstantValue> oldOutValue = node.outValue;
-            // 计算in值 - 所有前驱的out值的meet
-            Map<LLVMValueRef, ConstantValue> inValue = new HashMap<>(); // 存储变量到常量值的映射
-            for (InstructionNode pred : node.predecessors) {
-                for (Map.Entry<LLVMValueRef, ConstantValue> entry : pred.outValue.entrySet()) {
-                    LLVMValueRef var = entry.getKey();
-                    ConstantValue value = entry.getValue();
-                    // 计算meet
-                    if (inValue.containsKey(var)) {
-                        inValue.put(var, meet(inValue.get(var), value));
-                    } else {
-                        inValue.put(var, meet(new ConstantValue(LatticeValue.UNDEF), value));
+            int b = worklist.poll();
+            // 入口状态是可执行入边的前驱出口状态的 meet
+            if (b == 0)
+                state.copyFrom(entryState);
+            else
+                state.clear();
+            for (int pred : blockPreds[b]) {
+                if (isEdgeExecutable(pred, b))
+                    state.meet(outStates[pred]);
+            }
+            int end = blockStart[b + 1];
+            for (int i = blockStart[b]; i < end; i++) {
+                if (transfer(i, state)) {
+                    for (int user : users[i]) {
+                        if (blockExecutable[user])
+                            worklist.add(user);
                     }
                 }
             }
-            node.inValue = inValue;
-            node.outValue = transfer(node);
-
-            // 如果out值改变了，将所有后继加入worklist
-            if (!mapsEqual(oldOutValue, node.outValue)) {
-                worklist.addAll(node.successors);
+            boolean stateChanged = !state.sameAs(outStates[b]);
+            if (stateChanged)
+                outStates[b].copyFrom(state);
+            int[] succs = blockSuccs[b];
+            for (int k = 0; k < succs.length; k++) {
+                if (!edgeExecutable[b][k] && end > blockStart[b] && isTaken(end - 1, k)) {
+                    edgeExecutable[b][k] = true;
+                    blockExecutable[succs[k]] = true;
+                    worklist.add(succs[k]);
+                } else if (edgeExecutable[b][k] && stateChanged) {
+                    worklist.add(succs[k]);
+                }
             }
         }
+        iterations += worklist.getPops();
+        duplicates += worklist.getDuplicates();
     }
 
-    // 比较两个映射是否相等
-    private boolean mapsEqual(Map<LLVMValueRef, ConstantValue> map1, Map<LLVMValueRef, ConstantValue> map2) {
-        if (map1 == map2)
-            return true;
-        if (map1 == null || map2 == null)
-            return false;
-        if (map1.size() != map2.size())
-            return false;
-
-        for (Map.Entry<LLVMValueRef, ConstantValue> entry : map1.entrySet()) {
-            LLVMValueRef key = entry.getKey();
-            ConstantValue value1 = entry.getValue();
-            ConstantValue value2 = map2.get(key);
-
-            if (value2 == null || !value1.equals(value2)) {
-                return false;
-            }
+    private boolean isEdgeExecutable(int from, int to) {
+        int[] succs = blockSuccs[from];
+        for (int k = 0; k < succs.length; k++) {
+            if (succs[k] == to && edgeExecutable[from][k])
+                return true;
         }
-
-        return true;
+        return false;
     }
 
-    // 实现meet函数
-    private ConstantValue meet(ConstantValue v1, ConstantValue v2) {
-        if (v1.type == LatticeValue.UNDEF)
-            return v2;
-        if (v2.type == LatticeValue.UNDEF)
-            return v1;
-        if (v1.equals(v2))
-            return v1;
-        return new ConstantValue(LatticeValue.NAC);
+    // 终结指令 terminator 的第 k 个后继能不能走到。条件跳转的后继依次是真、假两个分支;
+    // 条件还是 UNDEF 时两边都算能走到, 不去猜它的值
+    private boolean isTaken(int terminator, int k) {
+        if (opcodes[terminator] != LLVMBr || operands[terminator].length == 0)
+            return true;
+        if (operandKind(terminator, 0) != LatticeVector.CONST)
+            return true;
+        return (operandConstant(terminator, 0) != 0) == (k == 0);
     }
 
-    // 实现transfer函数
-    private Map<LLVMValueRef, ConstantValue> transfer(InstructionNode node) {
-        LLVMValueRef inst = node.instruction;
-        int opcode = LLVMGetInstructionOpcode(inst);
-
-        // 拷贝输入值
-        Map<LLVMValueRef, ConstantValue> inValues = new HashMap<>(node.inValue);
-
+    // 在 state 上执行第 i 条指令, 返回指令结果的格值是否变了
+    private boolean transfer(int i, LatticeVector state) {
+        int opcode = opcodes[i];
         switch (opcode) {
-            case LLVMAlloca:
-                // 为变量分配内存，初值是UNDEF
-                inValues.put(inst, new ConstantValue(LatticeValue.UNDEF));
-                break;
-
             case LLVMLoad:
-                LLVMValueRef pointer = LLVMGetOperand(inst, 0);
-                // String pointerName = LLVMGetValueName(pointer).getString();
-
-                if (LLVMIsAGlobalVariable(pointer) != null) {
-                    LLVMValueRef initializer = LLVMGetInitializer(pointer);
-                    if (initializer != null && LLVMIsConstant(initializer) != 0) {
-                        ConstantValue loadValue = new ConstantValue(initializer);
-                        if (inValues.containsKey(pointer)) {
-                            loadValue = inValues.get(pointer);
-                        }
-                        inValues.put(inst, loadValue);
-                    } else if (inValues.containsKey(pointer)) {
-                        inValues.put(inst, inValues.get(pointer));
-                    } else {
-                        inValues.put(inst, new ConstantValue(LatticeValue.NAC));
-                    }
-                } else {
-                    if (inValues.containsKey(pointer)) {
-                        inValues.put(inst, inValues.get(pointer));
-                    } else {
-                        inValues.put(inst, new ConstantValue(LatticeValue.NAC));
-                    }
-                }
-                break;
+                if (slots[i] < 0)
+                    return values.set(i, LatticeVector.NAC, 0);
+                return values.set(i, state.kind(slots[i]), state.getConstant(slots[i]));
 
             case LLVMStore:
-                LLVMValueRef value = LLVMGetOperand(inst, 0);
-                LLVMValueRef storePointer = LLVMGetOperand(inst, 1);
+                if (slots[i] >= 0)
+                    state.set(slots[i], operandKind(i, 0), operandConstant(i, 0));
+                return false;
 
-                // 如果存储的是常量
-                if (LLVMIsConstant(value) != 0) {
-                    inValues.put(storePointer, new ConstantValue(value));
-                }
-                // 如果存储的是变量，检查该变量是否为常量
-                else if (inValues.containsKey(value)) {
-                    inValues.put(storePointer, inValues.get(value));
-                }
-                // 否则，存储的值是NAC
-                else {
-                    inValues.put(storePointer, new ConstantValue(LatticeValue.NAC));
-                }
-                break;
+            case LLVMBr:
+                return false;
+
+            case LLVMCall:
+                // 被调用的函数可能改了全局变量
+                for (int slot : killedByCall)
+                    state.setNac(slot);
+                return values.set(i, LatticeVector.NAC, 0);
 
             case LLVMAdd:
             case LLVMSub:
             case LLVMMul:
             case LLVMSDiv:
             case LLVMSRem:
-                LLVMValueRef op1 = LLVMGetOperand(inst, 0);
-                LLVMValueRef op2 = LLVMGetOperand(inst, 1);
-
-                ConstantValue v1 = getConstantValue(op1, inValues);
-                ConstantValue v2 = getConstantValue(op2, inValues);
-
-                // 如果两个操作数都是常量，计算结果
-                if (v1.type == LatticeValue.CONST && v2.type == LatticeValue.CONST) {
-                    int val1 = (int) LLVMConstIntGetSExtValue(v1.constValue);
-                    int val2 = (int) LLVMConstIntGetSExtValue(v2.constValue);
-                    int result = 0;
-
-                    switch (opcode) {
-                        case LLVMAdd:
-                            result = val1 + val2;
-                            break;
-                        case LLVMSub:
-                            result = val1 - val2;
-                            break;
-                        case LLVMMul:
-                            result = val1 * val2;
-                            break;
-                        case LLVMSDiv:
-                            if (val2 != 0)
-                                result = val1 / val2;
-                            else {
-                                inValues.put(inst, new ConstantValue(LatticeValue.NAC)); // 除零错误
-                                return inValues;
-                            }
-                            break;
-                        case LLVMSRem:
-                            if (val2 != 0)
-                                result = val1 % val2;
-                            else {
-                                inValues.put(inst, new ConstantValue(LatticeValue.NAC)); // 除零错误
-                                return inValues;
-                            }
-                            break;
-                    }
+            case LLVMICmp: {
+                int kind1 = operandKind(i, 0);
+                int kind2 = operandKind(i, 1);
+                // 如果有一个操作数是NAC，结果是NAC; 两个都是常量时计算结果; 其他情况，结果是UNDEF
+                if (kind1 == LatticeVector.NAC || kind2 == LatticeVector.NAC)
+                    return values.set(i, LatticeVector.NAC, 0);
+                if (kind1 == LatticeVector.UNDEF || kind2 == LatticeVector.UNDEF)
+                    return values.set(i, LatticeVector.UNDEF, 0);
+                int val1 = operandConstant(i, 0);
+                int val2 = operandConstant(i, 1);
+                if ((opcode == LLVMSDiv || opcode == LLVMSRem) && val2 == 0)
+                    return values.set(i, LatticeVector.NAC, 0); // 除零错误
+                return values.set(i, LatticeVector.CONST, fold(opcode, extras[i], val1, val2));
+            }
 
-                    LLVMContextRef context = LLVMGetModuleContext(modRef);
-                    LLVMTypeRef i32Type = LLVMInt32TypeInContext(context);
-                    LLVMValueRef constResult = LLVMConstInt(i32Type, result, 0);
-                    inValues.put(inst, new ConstantValue(constResult));
-                }
-                // 如果有一个操作数是NAC，结果是NAC
-                else if (v1.type == LatticeValue.NAC || v2.type == LatticeValue.NAC) {
-                    inValues.put(inst, new ConstantValue(LatticeValue.NAC));
-                }
-                // 其他情况，结果是UNDEF
-                else {
-                    inValues.put(inst, new ConstantValue(LatticeValue.UNDEF));
-                }
-                break;
+            case LLVMZExt:
+            case LLVMSExt: {
+                int kind = operandKind(i, 0);
+                int value = operandConstant(i, 0);
+                if (kind == LatticeVector.CONST && extras[i] == 1)
+                    value = opcode == LLVMZExt ? value & 1 : -(value & 1);
+                return values.set(i, kind, value); // 传递UNDEF或NAC
+            }
 
-            case LLVMICmp:
-                LLVMValueRef icmpOp1 = LLVMGetOperand(inst, 0);
-                LLVMValueRef icmpOp2 = LLVMGetOperand(inst, 1);
-                int predicate = LLVMGetICmpPredicate(inst);
-
-                ConstantValue icmpV1 = getConstantValue(icmpOp1, inValues);
-                ConstantValue icmpV2 = getConstantValue(icmpOp2, inValues);
-
-                // 如果两个操作数都是常量，计算结果
-                if (icmpV1.type == LatticeValue.CONST && icmpV2.type == LatticeValue.CONST) {
-                    int icmpVal1 = (int) LLVMConstIntGetSExtValue(icmpV1.constValue);
-                    int icmpVal2 = (int) LLVMConstIntGetSExtValue(icmpV2.constValue);
-                    boolean result = false;
-
-                    switch (predicate) {
-                        case LLVMIntEQ:
-                            result = icmpVal1 == icmpVal2;
-                            break;
-                        case LLVMIntNE:
-                            result = icmpVal1 != icmpVal2;
-                            break;
-                        case LLVMIntSGT:
-                            result = icmpVal1 > icmpVal2;
-                            break;
-                        case LLVMIntSGE:
-                            result = icmpVal1 >= icmpVal2;
-                            break;
-                        case LLVMIntSLT:
-                            result = icmpVal1 < icmpVal2;
-                            break;
-                        case LLVMIntSLE:
-                            result = icmpVal1 <= icmpVal2;
-                            break;
+            case LLVMPHI: {
+                // 各条可执行入边上的值取 meet; 还没有传播到的值是 UNDEF, 不影响结果
+                int kind = LatticeVector.UNDEF;
+                int value = 0;
+                for (int k = 0; k < operands[i].length && kind != LatticeVector.NAC; k++) {
+                    if (incomingBlocks[i][k] < 0 || !isEdgeExecutable(incomingBlocks[i][k], blockOf[i]))
+                        continue;
+                    int incoming = operandKind(i, k);
+                    if (incoming == LatticeVector.NAC
+                            || (incoming == LatticeVector.CONST && kind == LatticeVector.CONST && value != operandConstant(i, k))) {
+                        kind = LatticeVector.NAC;
+                    } else if (incoming == LatticeVector.CONST && kind == LatticeVector.UNDEF) {
+                        kind = LatticeVector.CONST;
+                        value = operandConstant(i, k);
                     }
-
-                    LLVMContextRef context = LLVMGetModuleContext(modRef);
-                    LLVMTypeRef i1Type = LLVMInt1TypeInContext(context);
-                    LLVMValueRef constResult = LLVMConstInt(i1Type, result ? 1 : 0, 0);
-                    inValues.put(inst, new ConstantValue(constResult));
-                }
-                // 如果有一个操作数是NAC，结果是NAC
-                else if (icmpV1.type == LatticeValue.NAC || icmpV2.type == LatticeValue.NAC) {
-                    inValues.put(inst, new ConstantValue(LatticeValue.NAC));
-                }
-                // 其他情况，结果是UNDEF
-                else {
-                    inValues.put(inst, new ConstantValue(LatticeValue.UNDEF));
                 }
-                break;
-
-            case LLVMZExt:
-            case LLVMSExt:
-                LLVMValueRef extOp = LLVMGetOperand(inst, 0);
-                ConstantValue extVal = getConstantValue(extOp, inValues);
-
-                if (extVal.type == LatticeValue.CONST) {
-                    int extValue = (int) LLVMConstIntGetSExtValue(extVal.constValue);
-                    LLVMTypeRef destType = LLVMTypeOf(inst);
-                    LLVMValueRef constResult = LLVMConstInt(destType, extValue, 0);
-                    inValues.put(inst, new ConstantValue(constResult));
-                } else {
-                    inValues.put(inst, extVal); // 传递UNDEF或NAC
-                }
-                break;
+                return values.set(i, kind, value);
+            }
 
             // 其他指令类型...
             default:
                 // 对于未处理的指令类型，假设结果是NAC
-                inValues.put(inst, new ConstantValue(LatticeValue.NAC));
-                break;
+                return values.set(i, LatticeVector.NAC, 0);
         }
-
-        // 返回当前指令的结果值
-        return inValues;
     }
 
-    private ConstantValue getConstantValue(LLVMValueRef operand, Map<LLVMValueRef, ConstantValue> values) {
-        if (LLVMIsConstant(operand) != 0) {
-            return new ConstantValue(operand);
-        }
-
-        if (values.containsKey(operand)) {
-            return values.get(operand);
+    private static int fold(int opcode, int predicate, int val1, int val2) {
+        switch (opcode) {
+            case LLVMAdd:
+                return val1 + val2;
+            case LLVMSub:
+                return val1 - val2;
+            case LLVMMul:
+                return val1 * val2;
+            case LLVMSDiv:
+                return val1 / val2;
+            case LLVMSRem:
+                return val1 % val2;
         }
-
-        if (LLVMIsAInstruction(operand) != null) {
-            return new ConstantValue(LatticeValue.NAC);
+        boolean result = false;
+        switch (predicate) {
+            case LLVMIntEQ:
+                result = val1 == val2;
+                break;
+            case LLVMIntNE:
+                result = val1 != val2;
+                break;
+            case LLVMIntSGT:
+                result = val1 > val2;
+                break;
+            case LLVMIntSGE:
+                result = val1 >= val2;
+                break;
+            case LLVMIntSLT:
+                result = val1 < val2;
+                break;
+            case LLVMIntSLE:
+                result = val1 <= val2;
+                break;
         }
-
-        return new ConstantValue(LatticeValue.UNDEF);
+        return result ? 1 : 0;
     }
 
+    // 把结果是常量的指令替换成常量并删掉
     public void replaceAndRemoveConstants() {
         List<LLVMValueRef> instructionsToRemove = new ArrayList<>();
-
-        for (Map.Entry<LLVMValueRef, InstructionNode> entry : instructionMap.entrySet()) {
-            LLVMValueRef inst = entry.getKey();
-            InstructionNode node = entry.getValue();
-            if (node.outValue.containsKey(inst) &&
-                    node.outValue.get(inst).type == LatticeValue.CONST) {
-                LLVMReplaceAllUsesWith(inst, node.outValue.get(inst).constValue);
-                instructionsToRemove.add(inst);
-                count++;
-            }
+        for (int i = 0; i < insts.length; i++) {
+            if (values.kind(i) != LatticeVector.CONST || !producesValue(opcodes[i]))
+                continue;
+            LLVMValueRef inst = insts[i];
+            LLVMReplaceAllUsesWith(inst, LLVMConstInt(LLVMTypeOf(inst), values.getConstant(i), 0));
+            instructionsToRemove.add(inst);
+            count++;
         }
 
         for (LLVMValueRef inst : instructionsToRemove) {
@@ -487,11 +487,114 @@ public class ConstantSpread {
         }
     }
 
+    // 只有一条出边可执行的条件跳转改成无条件跳转, 再删掉不会执行的块; 返回改动的块数
+    private int foldBranches(LLVMValueRef func) {
+        int folded = 0;
+        LLVMBuilderRef builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(modRef));
+        for (int b = 0; b < blocks.length; b++) {
+            int[] succs = blockSuccs[b];
+            if (!blockExecutable[b] || succs.length != 2 || succs[0] == succs[1] || edgeExecutable[b][0] == edgeExecutable[b][1])
+                continue;
+            int kept = edgeExecutable[b][0] ? 0 : 1;
+            LLVMValueRef terminator = insts[blockStart[b + 1] - 1];
+            PhiNodes.removeIncoming(blocks[succs[1 - kept]], blocks[b]);
+            LLVMPositionBuilderBefore(builder, terminator);
+            LLVMBuildBr(builder, blocks[succs[kept]]);
+            LLVMInstructionEraseFromParent(terminator);
+            folded++;
+        }
+        LLVMDisposeBuilder(builder);
+
+        // 包括本来就不可达的块
+        ControlFlowGraph cfg = analyses.getCFG(func);
+        List<LLVMBasicBlockRef> dead = new ArrayList<>();
+        for (LLVMBasicBlockRef block : cfg.getBlocks()) {
+            if (!isExecutable(cfg, block))
+                dead.add(block);
+        }
+        for (LLVMBasicBlockRef block : dead) {
+            for (LLVMBasicBlockRef succ : cfg.successors(block)) {
+                if (isExecutable(cfg, succ))
+                    PhiNodes.removeIncoming(succ, block);
+            }
+            LLVMRemoveBasicBlockFromParent(block);
+        }
+        cfgChanged = folded > 0 || !dead.isEmpty();
+        return folded + dead.size();
+    }
+
+    private boolean isExecutable(ControlFlowGraph cfg, LLVMBasicBlockRef block) {
+        return cfg.isReachable(block) && blockExecutable[cfg.indexOf(block)];
+    }
+
+    private static boolean producesValue(int opcode) {
+        switch (opcode) {
+            case LLVMLoad:
+            case LLVMAdd:
+            case LLVMSub:
+            case LLVMMul:
+            case LLVMSDiv:
+            case LLVMSRem:
+            case LLVMICmp:
+            case LLVMZExt:
+            case LLVMSExt:
+            case LLVMPHI:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     // 执行优化
     public int optimize() {
-        buildCFG();
+        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
+            if (LLVMCountBasicBlocks(func) == 0)
+                continue; // 跳过声明
+            if (run(func))
+                analyses.invalidate(func, invalidated());
+        }
+        return count;
+    }
+
+    // 工作表的取法, 默认按逆后序, 基准测试里拿来和 FIFO 对比
+    public void setOrder(Worklist.Order order) {
+        this.order = order;
+    }
+
+    // 一共处理了多少次基本块
+    public int getIterations() {
+        return iterations;
+    }
+
+    // 块已经在工作表里时又被加入的次数
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public String getName() {
+        return "ConstantSpread";
+    }
+
+    // 只被赋值一次的全局变量在构造时按整个模块统计 (加上 addStoredGlobals 给出的), 各个 pass 都不会新增 store, 之后一直有效
+    @Override
+    public boolean run(LLVMValueRef func) {
+        int before = count;
+        number(func);
         performConstantPropagation();
         replaceAndRemoveConstants();
-        return count;
+        count += foldBranches(func);
+        return count > before;
+    }
+
+    @Override
+    public Set<Analysis> required() {
+        return EnumSet.of(Analysis.CFG);
+    }
+
+    // 只有删改了跳转时分析才失效, 只替换常量时控制流图不变
+    @Override
+    public Set<Analysis> invalidated() {
+        return cfgChanged ? EnumSet.of(Analysis.CFG) : EnumSet.noneOf(Analysis.class);
     }
-}
\ No newline at end of file
+}
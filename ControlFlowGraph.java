@@ -0,0 +1,90 @@
+import org.bytedeco.llvm.LLVM.*;
+import static org.bytedeco.llvm.global.LLVM.*;
+
+import java.util.*;
+
+// 一个函数的控制流图: 所有块的前驱后继, 以及从入口可达的块的逆后序。
+// 后继按块的终结指令计算, 由 AnalysisManager 缓存, 改动了跳转的 pass 要让它失效
+public class ControlFlowGraph {
+    private List<LLVMBasicBlockRef> blocks = new ArrayList<>(); // 函数里块的排列顺序
+    private Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> predecessors = new HashMap<>();
+    private Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> successors = new HashMap<>();
+    private List<LLVMBasicBlockRef> order; // 逆后序, 只有可达的块
+    private Map<LLVMBasicBlockRef, Integer> orderIndex = new HashMap<>();
+
+    public ControlFlowGraph(LLVMValueRef func) {
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
+            blocks.add(block);
+            predecessors.put(block, new ArrayList<>());
+            successors.put(block, new ArrayList<>());
+        }
+        for (LLVMBasicBlockRef block : blocks) {
+            LLVMValueRef terminator = LLVMGetBasicBlockTerminator(block);
+            if (terminator == null)
+                continue;
+            for (int i = 0; i < LLVMGetNumSuccessors(terminator); i++) {
+                LLVMBasicBlockRef successor = LLVMGetSuccessor(terminator, i);
+                successors.get(block).add(successor);
+                predecessors.get(successor).add(block);
+            }
+        }
+        computeOrder(LLVMGetEntryBasicBlock(func));
+    }
+
+    // 非递归的深度优先遍历求后序, 块很多时不会栈溢出
+    private void computeOrder(LLVMBasicBlockRef entry) {
+        List<LLVMBasicBlockRef> postorder = new ArrayList<>();
+        Set<LLVMBasicBlockRef> visited = new HashSet<>();
+        Deque<LLVMBasicBlockRef> stack = new ArrayDeque<>();
+        Deque<Iterator<LLVMBasicBlockRef>> pending = new ArrayDeque<>();
+        visited.add(entry);
+        stack.push(entry);
+        pending.push(successors.get(entry).iterator());
+        while (!stack.isEmpty()) {
+            Iterator<LLVMBasicBlockRef> next = pending.peek();
+            if (next.hasNext()) {
+                LLVMBasicBlockRef successor = next.next();
+                if (visited.add(successor)) {
+                    stack.push(successor);
+                    pending.push(successors.get(successor).iterator());
+                }
+            } else {
+                postorder.add(stack.pop());
+                pending.pop();
+            }
+        }
+        Collections.reverse(postorder);
+        order = postorder;
+        for (int i = 0; i < order.size(); i++)
+            orderIndex.put(order.get(i), i);
+    }
+
+    public List<LLVMBasicBlockRef> getBlocks() {
+        return blocks;
+    }
+
+    public List<LLVMBasicBlockRef> predecessors(LLVMBasicBlockRef block) {
+        return predecessors.getOrDefault(block, Collections.emptyList());
+    }
+
+    public List<LLVMBasicBlockRef> successors(LLVMBasicBlockRef block) {
+        return successors.getOrDefault(block, Collections.emptyList());
+    }
+
+    public LLVMBasicBlockRef getEntry() {
+        return order.get(0);
+    }
+
+    public List<LLVMBasicBlockRef> getOrder() {
+        return order;
+    }
+
+    // 块在逆后序里的位置, 不可达的块为 -1
+    public int indexOf(LLVMBasicBlockRef block) {
+        return orderIndex.getOrDefault(block, -1);
+    }
+
+    public boolean isReachable(LLVMBasicBlockRef block) {
+        return orderIndex.containsKey(block);
+    }
+}
@@ -0,0 +1,89 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.*;
+
+// 用 Cooper-Harvey-Kennedy 的迭代算法求支配树和支配边界, 只包含从入口可达的块
+public class DominatorTree {
+    private ControlFlowGraph cfg;
+    private Map<LLVMBasicBlockRef, LLVMBasicBlockRef> idom = new HashMap<>();
+    private Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> children = new HashMap<>();
+    private Map<LLVMBasicBlockRef, Set<LLVMBasicBlockRef>> frontiers;
+
+    public DominatorTree(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        List<LLVMBasicBlockRef> order = cfg.getOrder();
+        LLVMBasicBlockRef entry = order.get(0);
+        idom.put(entry, entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < order.size(); i++) {
+                LLVMBasicBlockRef block = order.get(i);
+                LLVMBasicBlockRef newIdom = null;
+                for (LLVMBasicBlockRef pred : cfg.predecessors(block)) {
+                    if (!idom.containsKey(pred))
+                        continue;
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+                }
+                if (!newIdom.equals(idom.get(block))) {
+                    idom.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+        for (LLVMBasicBlockRef block : order)
+            children.put(block, new ArrayList<>());
+        for (int i = 1; i < order.size(); i++)
+            children.get(idom.get(order.get(i))).add(order.get(i));
+    }
+
+    private LLVMBasicBlockRef intersect(LLVMBasicBlockRef a, LLVMBasicBlockRef b) {
+        while (!a.equals(b)) {
+            while (cfg.indexOf(a) > cfg.indexOf(b))
+                a = idom.get(a);
+            while (cfg.indexOf(b) > cfg.indexOf(a))
+                b = idom.get(b);
+        }
+        return a;
+    }
+
+    // 入口的 idom 是它自己, 不可达的块为 null
+    public LLVMBasicBlockRef idom(LLVMBasicBlockRef block) {
+        return idom.get(block);
+    }
+
+    public List<LLVMBasicBlockRef> children(LLVMBasicBlockRef block) {
+        return children.getOrDefault(block, Collections.emptyList());
+    }
+
+    public boolean dominates(LLVMBasicBlockRef a, LLVMBasicBlockRef b) {
+        if (!idom.containsKey(b))
+            return false;
+        int index = cfg.indexOf(a);
+        // 支配者在逆后序里一定排在前面, 沿 idom 往上走到 a 的位置为止
+        while (cfg.indexOf(b) > index)
+            b = idom.get(b);
+        return b.equals(a);
+    }
+
+    // 支配边界第一次用到时才计算: 有多个前驱的块 b 在每个前驱到 idom(b) 之间 (不含 idom(b)) 各个块的支配边界里
+    public Set<LLVMBasicBlockRef> frontier(LLVMBasicBlockRef block) {
+        if (frontiers == null) {
+            frontiers = new HashMap<>();
+            for (LLVMBasicBlockRef b : cfg.getOrder())
+                frontiers.put(b, new HashSet<>());
+            for (LLVMBasicBlockRef b : cfg.getOrder()) {
+                List<LLVMBasicBlockRef> preds = cfg.predecessors(b);
+                if (preds.size() < 2)
+                    continue;
+                for (LLVMBasicBlockRef pred : preds) {
+                    if (!idom.containsKey(pred))
+                        continue;
+                    for (LLVMBasicBlockRef runner = pred; !runner.equals(idom.get(b)); runner = idom.get(runner))
+                        frontiers.get(runner).add(b);
+                }
+            }
+        }
+        return frontiers.getOrDefault(block, Collections.emptySet());
+    }
+}
@@ -4,227 +4,220 @@ import org.llvm4j.llvm4j.Module;
 
 import java.util.*;
 
-public class EliminateDead {
+public class EliminateDead implements FunctionPass {
     private LLVMModuleRef modRef;
+    private AnalysisManager analyses;
     private boolean changed;
+    private boolean cfgChanged;
     private int eliminatedCount = 0;
 
-    private Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> predecessors = new HashMap<>();
-    private Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> successors = new HashMap<>();
+    private ControlFlowGraph cfg;
 
     public EliminateDead(Module module) {
-        this.modRef = module.getRef();
+        this(module, new AnalysisManager());
     }
 
-    public int optimize() {
-        do {
-            changed = false;
-            eliminateInstructionsAfterReturn();
-            buildCFG();
-            eliminateUnreachableBlocks();
-            simplifyConstantBranches();
-            if (changed) buildCFG();
-            eliminateRedundantJumps();
-        } while (changed);
-        return eliminatedCount;
+    public EliminateDead(Module module, AnalysisManager analyses) {
+        this.modRef = module.getRef();
+        this.analyses = analyses;
     }
 
-    private void buildCFG() {
-        predecessors.clear();
-        successors.clear();
-
+    public int optimize() {
         for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
             if (LLVMCountBasicBlocks(func) == 0)
                 continue; // 跳过声明
-
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
-                predecessors.put(block, new ArrayList<>());
-                successors.put(block, new ArrayList<>());
-            }
-
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
-                LLVMValueRef termInst = LLVMGetBasicBlockTerminator(block);
-                if (termInst == null)
-                    continue;
-
-                int numSuccessors = LLVMGetNumSuccessors(termInst);
-                for (int i = 0; i < numSuccessors; i++) {
-                    LLVMBasicBlockRef successor = LLVMGetSuccessor(termInst, i);
-                    successors.get(block).add(successor);
-                    predecessors.get(successor).add(block);
-                }
-            }
+            if (run(func))
+                analyses.invalidate(func, invalidated());
         }
+        return eliminatedCount;
     }
 
-    private void eliminateUnreachableBlocks() {
-        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
-            if (LLVMCountBasicBlocks(func) == 0)
-                continue;
+    @Override
+    public String getName() {
+        return "EliminateDead";
+    }
 
-            LLVMBasicBlockRef entry = LLVMGetEntryBasicBlock(func);
-            Set<LLVMBasicBlockRef> reachable = new HashSet<>();
-            Queue<LLVMBasicBlockRef> queue = new LinkedList<>();
+    @Override
+    public boolean run(LLVMValueRef func) {
+        int before = eliminatedCount;
+        cfgChanged = false;
+        cfg = analyses.getCFG(func);
+        do {
+            changed = false;
+            eliminateInstructionsAfterReturn(func);
+            updateCFG(func);
+            eliminateUnreachableBlocks(func);
+            simplifyConstantBranches(func);
+            updateCFG(func);
+            eliminateRedundantJumps(func);
+            updateCFG(func);
+        } while (changed);
+        // 只改写了常量条件跳转时 eliminatedCount 不变, 但函数和控制流图都变了
+        return eliminatedCount > before || cfgChanged;
+    }
 
-            queue.add(entry);
-            reachable.add(entry);
+    @Override
+    public Set<Analysis> required() {
+        return EnumSet.of(Analysis.CFG);
+    }
 
-            while (!queue.isEmpty()) {
-                LLVMBasicBlockRef current = queue.poll();
+    @Override
+    public Set<Analysis> invalidated() {
+        return cfgChanged ? EnumSet.of(Analysis.CFG) : EnumSet.noneOf(Analysis.class);
+    }
 
-                for (LLVMBasicBlockRef succ : successors.getOrDefault(current, Collections.emptyList())) {
-                    if (!reachable.contains(succ)) {
-                        reachable.add(succ);
-                        queue.add(succ);
-                    }
-                }
-            }
+    // 这一轮有改动时控制流图可能变了, 重新算一份; 缓存里的那份由 PassManager 按 invalidated() 清掉
+    private void updateCFG(LLVMValueRef func) {
+        if (changed) {
+            cfg = new ControlFlowGraph(func);
+            cfgChanged = true;
+        }
+    }
 
-            List<LLVMBasicBlockRef> toRemove = new ArrayList<>();
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
-                if (!reachable.contains(block)) {
-                    toRemove.add(block);
-                }
+    private void eliminateUnreachableBlocks(LLVMValueRef func) {
+        // 控制流图里的逆后序只包含从入口可达的块
+        List<LLVMBasicBlockRef> toRemove = new ArrayList<>();
+        for (LLVMBasicBlockRef block : cfg.getBlocks()) {
+            if (!cfg.isReachable(block)) {
+                toRemove.add(block);
             }
+        }
 
-            for (LLVMBasicBlockRef block : toRemove) {
-                // System.out.println("删除不可达基本块: " + LLVMPrintValueToString(LLVMBasicBlockAsValue(block)).getString());
-                LLVMRemoveBasicBlockFromParent(block);
-                changed = true;
-                eliminatedCount++;
+        for (LLVMBasicBlockRef block : toRemove) {
+            // 可达的后继里的 phi 不能再引用这个块
+            for (LLVMBasicBlockRef succ : cfg.successors(block)) {
+                if (cfg.isReachable(succ))
+                    PhiNodes.removeIncoming(succ, block);
             }
+            // System.out.println("删除不可达基本块: " + LLVMPrintValueToString(LLVMBasicBlockAsValue(block)).getString());
+            LLVMRemoveBasicBlockFromParent(block);
+            changed = true;
+            eliminatedCount++;
         }
     }
 
-    private void simplifyConstantBranches() {
-        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
-            if (LLVMCountBasicBlocks(func) == 0)
+    private void simplifyConstantBranches(LLVMValueRef func) {
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(
+                block)) {
+            LLVMValueRef termInst = LLVMGetBasicBlockTerminator(block);
+            if (termInst == null)
                 continue;
 
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(
-                    block)) {
-                LLVMValueRef termInst = LLVMGetBasicBlockTerminator(block);
-                if (termInst == null)
-                    continue;
-
-                if (LLVMGetInstructionOpcode(termInst) == LLVMBr && LLVMGetNumOperands(termInst) > 1) {
-                    LLVMValueRef condition = LLVMGetOperand(termInst, 0);
-                    if (LLVMIsAConstantInt(condition) != null) {
-                        long condValue = LLVMConstIntGetSExtValue(condition);
-                        boolean condBool = condValue != 0;
+            if (LLVMGetInstructionOpcode(termInst) == LLVMBr && LLVMGetNumOperands(termInst) > 1) {
+                LLVMValueRef condition = LLVMGetOperand(termInst, 0);
+                if (LLVMIsAConstantInt(condition) != null) {
+                    long condValue = LLVMConstIntGetSExtValue(condition);
+                    boolean condBool = condValue != 0;
 
-                        LLVMBasicBlockRef trueBlock = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 2));
-                        LLVMBasicBlockRef falseBlock = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 1));
+                    LLVMBasicBlockRef trueBlock = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 2));
+                    LLVMBasicBlockRef falseBlock = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 1));
 
-                        LLVMBasicBlockRef targetBlock = condBool ? trueBlock : falseBlock;
+                    LLVMBasicBlockRef targetBlock = condBool ? trueBlock : falseBlock;
+                    LLVMBasicBlockRef droppedBlock = condBool ? falseBlock : trueBlock;
+                    if (!droppedBlock.equals(targetBlock))
+                        PhiNodes.removeIncoming(droppedBlock, block);
 
-                        // System.out.println("基于常量条件 " + condBool + " 替换条件分支为无条件跳转到 " +
-                        // LLVMGetValueName(LLVMBasicBlockAsValue(targetBlock)).getString());
+                    // System.out.println("基于常量条件 " + condBool + " 替换条件分支为无条件跳转到 " +
+                    // LLVMGetValueName(LLVMBasicBlockAsValue(targetBlock)).getString());
 
-                        // 创建新的无条件跳转
-                        LLVMBuilderRef builder = LLVMCreateBuilder();
-                        LLVMPositionBuilderBefore(builder, termInst);
-                        LLVMBuildBr(builder, targetBlock);
-                        LLVMDisposeBuilder(builder);
+                    // 创建新的无条件跳转
+                    LLVMBuilderRef builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(modRef));
+                    LLVMPositionBuilderBefore(builder, termInst);
+                    LLVMBuildBr(builder, targetBlock);
+                    LLVMDisposeBuilder(builder);
 
-                        LLVMInstructionEraseFromParent(termInst);
+                    LLVMInstructionEraseFromParent(termInst);
 
-                        changed = true;
-                    }
+                    changed = true;
                 }
             }
         }
     }
 
-    private void eliminateRedundantJumps() {
-        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
-            if (LLVMCountBasicBlocks(func) == 0)
-                continue;
-
-            Map<LLVMBasicBlockRef, LLVMBasicBlockRef> blocksToMerge = new HashMap<>();
+    private void eliminateRedundantJumps(LLVMValueRef func) {
+        Map<LLVMBasicBlockRef, LLVMBasicBlockRef> blocksToMerge = new HashMap<>();
 
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
-                LLVMValueRef termInst = LLVMGetBasicBlockTerminator(block);
-                if (termInst == null)
-                    continue;
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
+            LLVMValueRef termInst = LLVMGetBasicBlockTerminator(block);
+            if (termInst == null)
+                continue;
 
-                if (LLVMGetInstructionOpcode(termInst) == LLVMBr && LLVMGetNumOperands(termInst) == 1) {
-                    LLVMBasicBlockRef target = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 0));
+            if (LLVMGetInstructionOpcode(termInst) == LLVMBr && LLVMGetNumOperands(termInst) == 1) {
+                LLVMBasicBlockRef target = LLVMValueAsBasicBlock(LLVMGetOperand(termInst, 0));
 
-                    if (predecessors.get(target).size() == 1 && !target.equals(block)) {
-                        // System.out.println("找到冗余跳转: " +
-                        //         LLVMGetValueName(LLVMBasicBlockAsValue(block)).getString() + " -> " +
-                        //         LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
-                        blocksToMerge.put(block, target);
-                    }
+                if (cfg.predecessors(target).size() == 1 && !target.equals(block)) {
+                    // System.out.println("找到冗余跳转: " +
+                    //         LLVMGetValueName(LLVMBasicBlockAsValue(block)).getString() + " -> " +
+                    //         LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
+                    blocksToMerge.put(block, target);
                 }
             }
+        }
 
-            int size = blocksToMerge.size();
-            while (size > 0) {
-                // System.out.println("找到 " + size + " 个冗余跳转块对");
-                Map.Entry<LLVMBasicBlockRef, LLVMBasicBlockRef> entry = blocksToMerge.entrySet().iterator().next();
-                LLVMBasicBlockRef source = entry.getKey();
-                LLVMBasicBlockRef target = entry.getValue();
-
-                // System.out.println("合并基本块: " + LLVMGetValueName(LLVMBasicBlockAsValue(source)).getString() +
-                //         " 和 " + LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
-                LLVMValueRef termInst = LLVMGetBasicBlockTerminator(source);
-                LLVMInstructionEraseFromParent(termInst);
-                LLVMBuilderRef builder = LLVMCreateBuilder();
-                LLVMPositionBuilderAtEnd(builder, source);
-                while (LLVMGetFirstInstruction(target) != null) {
-                    LLVMValueRef inst = LLVMGetFirstInstruction(target);
-                    LLVMInstructionRemoveFromParent(inst);
-                    LLVMInsertIntoBuilderWithName(builder, inst, LLVMGetValueName(inst));
-                }
-                LLVMDisposeBuilder(builder);
-                if (blocksToMerge.containsKey(target)) {
-                    LLVMBasicBlockRef blockToReplace = blocksToMerge.get(target);
-                    // blocksToMerge.remove(source);
-                    blocksToMerge.remove(target);
-                    blocksToMerge.put(source, blockToReplace);
-                } else {
-                    blocksToMerge.remove(source);
-                }
-                LLVMRemoveBasicBlockFromParent(target);
-                size--;
-                eliminatedCount++;
-                // System.out.println("删除冗余基本块: " + LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
-
-                changed = true;
+        int size = blocksToMerge.size();
+        while (size > 0) {
+            // System.out.println("找到 " + size + " 个冗余跳转块对");
+            Map.Entry<LLVMBasicBlockRef, LLVMBasicBlockRef> entry = blocksToMerge.entrySet().iterator().next();
+            LLVMBasicBlockRef source = entry.getKey();
+            LLVMBasicBlockRef target = entry.getValue();
+
+            // System.out.println("合并基本块: " + LLVMGetValueName(LLVMBasicBlockAsValue(source)).getString() +
+            //         " 和 " + LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
+            LLVMValueRef termInst = LLVMGetBasicBlockTerminator(source);
+            LLVMInstructionEraseFromParent(termInst);
+            // target 只有 source 一个前驱, 它的 phi 都只有一个 incoming
+            PhiNodes.replaceSingleIncoming(target);
+            LLVMBuilderRef builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(modRef));
+            LLVMPositionBuilderAtEnd(builder, source);
+            while (LLVMGetFirstInstruction(target) != null) {
+                LLVMValueRef inst = LLVMGetFirstInstruction(target);
+                LLVMInstructionRemoveFromParent(inst);
+                LLVMInsertIntoBuilderWithName(builder, inst, LLVMGetValueName(inst));
             }
+            LLVMDisposeBuilder(builder);
+            LLVMValueRef movedTerm = LLVMGetBasicBlockTerminator(source);
+            for (int i = 0; movedTerm != null && i < LLVMGetNumSuccessors(movedTerm); i++)
+                PhiNodes.replaceIncoming(LLVMGetSuccessor(movedTerm, i), target, source);
+            if (blocksToMerge.containsKey(target)) {
+                LLVMBasicBlockRef blockToReplace = blocksToMerge.get(target);
+                // blocksToMerge.remove(source);
+                blocksToMerge.remove(target);
+                blocksToMerge.put(source, blockToReplace);
+            } else {
+                blocksToMerge.remove(source);
+            }
+            LLVMRemoveBasicBlockFromParent(target);
+            size--;
+            eliminatedCount++;
+            // System.out.println("删除冗余基本块: " + LLVMGetValueName(LLVMBasicBlockAsValue(target)).getString());
+
+            changed = true;
         }
     }
 
-    private void eliminateInstructionsAfterReturn() {
+    private void eliminateInstructionsAfterReturn(LLVMValueRef func) {
         boolean localChanged = false;
         int removedCount = 0;
 
-        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
-            if (LLVMCountBasicBlocks(func) == 0)
-                continue;
-
-            for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
-                List<LLVMValueRef> instructionsToRemove = new ArrayList<>();
-                boolean foundTerminator = false;
-                for (LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null; inst = LLVMGetNextInstruction(
-                        inst)) {
-                    int opcode = LLVMGetInstructionOpcode(inst);
-                    if (foundTerminator) {
-                        instructionsToRemove.add(inst);
-                    } else if (opcode == LLVMRet || opcode == LLVMBr) {
-                        foundTerminator = true;
-                    }
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
+            List<LLVMValueRef> instructionsToRemove = new ArrayList<>();
+            boolean foundTerminator = false;
+            for (LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null; inst = LLVMGetNextInstruction(
+                    inst)) {
+                int opcode = LLVMGetInstructionOpcode(inst);
+                if (foundTerminator) {
+                    instructionsToRemove.add(inst);
+                } else if (opcode == LLVMRet || opcode == LLVMBr) {
+                    foundTerminator = true;
                 }
+            }
 
-                for (int i = instructionsToRemove.size() - 1; i >= 0; i--) {
-                    LLVMValueRef inst = instructionsToRemove.get(i);
-                    // System.out.println("删除终结指令后的无效指令: " + LLVMPrintValueToString(inst).getString());
-                    LLVMInstructionEraseFromParent(inst);
-                    removedCount++;
-                    localChanged = true;
-                }
+            for (int i = instructionsToRemove.size() - 1; i >= 0; i--) {
+                LLVMValueRef inst = instructionsToRemove.get(i);
+                // System.out.println("删除终结指令后的无效指令: " + LLVMPrintValueToString(inst).getString());
+                LLVMInstructionEraseFromParent(inst);
+                removedCount++;
+                localChanged = true;
             }
         }
 
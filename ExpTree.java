@@ -0,0 +1,28 @@
+import org.llvm4j.llvm4j.Value;
+
+// 前端的表达式结点在 IREmitter 眼里的样子, N 是结点的类型 (语法树的 Context 或者 CompactAst 里的下标)。
+// 运算符用 SysYLexer 的 token 类型表示: && 和 || 是 AND / OR, 比较是 LT、EQ 等, 一元运算是 PLUS / MINUS / NOT
+public interface ExpTree<N> {
+    // 去掉括号这类只影响语法的外层
+    default N unwrap(N node) {
+        return node;
+    }
+
+    // 0: 叶子 (数字、变量、函数调用); 1: 一元运算; 2: 二元运算、比较、&& 和 ||
+    int arity(N node);
+
+    int op(N node);
+
+    N operand(N node, int index);
+
+    // 生成叶子的值, void 函数调用返回 null
+    Value leafValue(N node);
+
+    // 叶子的常量值, 不是常量时返回 null
+    Integer leafConstant(N node);
+
+    // 结点没法翻译时抛出的异常, 比如运算数是 void 函数调用, 或者常量表达式里有变量
+    default RuntimeException invalid(N node) {
+        return new IllegalStateException("cannot generate IR for " + node);
+    }
+}
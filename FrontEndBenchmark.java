@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// 前端基准测试: 分别测量词法分析、语法分析、语义检查和 IR 生成在不同规模、不同形状输入上的耗时。
+// 每个规模是上一个的 4 倍, 看 ns/token 是否保持不变就能看出是线性还是超线性。
+// 测量方式仿照 JMH: 先预热若干轮让 JIT 编译完成, 再测若干轮取平均值和最小值, 结果写进 sink 防止被优化掉。
+public class FrontEndBenchmark {
+    private interface Stage {
+        Object run();
+    }
+
+    private static class Shape {
+        private String name;
+        private int[] sizes;
+        private IntFunction<String> generator;
+
+        private Shape(String name, int[] sizes, IntFunction<String> generator) {
+            this.name = name;
+            this.sizes = sizes;
+            this.generator = generator;
+        }
+    }
+
+    private static volatile Object sink;
+
+    private int warmup;
+    private int iterations;
+
+    public FrontEndBenchmark(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    // usage: --bench [warmup] [iterations]
+    public static void main(String[] args) throws InterruptedException {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        FrontEndBenchmark benchmark = new FrontEndBenchmark(warmup, iterations);
+        // 深层嵌套的输入在分析器和 visitor 里都是深递归, 放到栈足够大的线程里跑
+        Thread thread = new Thread(null, benchmark::runAll, "front-end-benchmark", 1L << 28);
+        thread.start();
+        thread.join();
+    }
+
+    public void runAll() {
+        List<Shape> shapes = new ArrayList<>();
+        shapes.add(new Shape("expr-chain", new int[] { 1000, 4000, 16000 }, FrontEndBenchmark::exprChain));
+        shapes.add(new Shape("nesting", new int[] { 100, 400, 1600 }, FrontEndBenchmark::nesting));
+        shapes.add(new Shape("functions", new int[] { 100, 400, 1600 }, FrontEndBenchmark::functions));
+        // SysYGenerator 生成的混合程序, 规模是行数, 种子固定保证每次测的是同样的输入
+        for (SysYGenerator.Profile profile : SysYGenerator.Profile.values()) {
+            shapes.add(new Shape(profile.name().toLowerCase(), new int[] { 250, 1000, 4000 },
+                    lines -> new SysYGenerator(42, lines, profile).generate()));
+        }
+        System.out.printf("%-12s %6s %8s  %-9s %12s %12s %10s %14s%n", "shape", "size", "tokens", "stage",
+                "mean us", "min us", "ns/token", "tokens/s");
+        for (Shape shape : shapes) {
+            for (int size : shape.sizes) {
+                runShape(shape.name, size, shape.generator.apply(size));
+            }
+        }
+    }
+
+    private void runShape(String name, int size, String source) {
+        IdentTable identTable = new IdentTable();
+        List<? extends Token> tokens = lex(source, identTable);
+        int tokenCount = tokens.size();
+        ParseTree tree = parse(tokens);
+
+        report(name, size, tokenCount, "lex", measure(() -> lex(source, new IdentTable())));
+        report(name, size, tokenCount, "parse", measure(() -> parse(tokens)));
+        report(name, size, tokenCount, "grammar", measure(() -> {
+            VisitorForGrammar visitorForGrammar = new VisitorForGrammar(identTable);
+            visitorForGrammar.visit(tree);
+            return visitorForGrammar.getErrors();
+        }));
+        report(name, size, tokenCount, "grammar-p", measure(() -> new ParallelGrammarChecker(identTable,
+                ForkJoinPool.commonPool()).check((SysYParser.ProgramContext) tree)));
+        report(name, size, tokenCount, "ir", measure(() -> {
+            VisitorForIR visitorForIR = new VisitorForIR(identTable);
+            try {
+                visitorForIR.visit(tree);
+                return visitorForIR.getModule();
+            } finally {
+                visitorForIR.dispose();
+            }
+        }));
+        report(name, size, tokenCount, "lower", measure(() -> AstLowering.lower((SysYParser.ProgramContext) tree, identTable)));
+        CompactAst ast = AstLowering.lower((SysYParser.ProgramContext) tree, identTable);
+        report(name, size, tokenCount, "ast-ir", measure(() -> {
+            AstToIR astToIR = new AstToIR(ast, identTable);
+            try {
+                astToIR.generate();
+                return astToIR.getModule();
+            } finally {
+                astToIR.dispose();
+            }
+        }));
+        report(name, size, tokenCount, "fused", measure(() -> {
+            FusedVisitor fusedVisitor = new FusedVisitor(identTable);
+            try {
+                return fusedVisitor.generate(tree) ? fusedVisitor.getModule() : null;
+            } finally {
+                fusedVisitor.dispose();
+            }
+        }));
+    }
+
+    // 与 ParseDriver 一样在词法分析时驻留标识符
+    private static List<? extends Token> lex(String source, IdentTable identTable) {
+        SysYLexer sysYLexer = new SysYLexer(CharStreams.fromString(source));
+        sysYLexer.removeErrorListeners();
+        sysYLexer.setTokenFactory(new IdentTokenFactory(identTable, false));
+        return sysYLexer.getAllTokens();
+    }
+
+    // 只测语法分析, token 预先准备好
+    private static ParseTree parse(List<? extends Token> tokens) {
+        SysYParser sysYParser = new SysYParser(new CommonTokenStream(new ListTokenSource(tokens)));
+        sysYParser.removeErrorListeners();
+        return sysYParser.program();
+    }
+
+    // 返回 {平均值, 最小值}, 单位纳秒
+    private long[] measure(Stage stage) {
+        for (int i = 0; i < warmup; i++) {
+            sink = stage.run();
+        }
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink = stage.run();
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            min = Math.min(min, elapsed);
+        }
+        return new long[] { total / iterations, min };
+    }
+
+    private static void report(String name, int size, int tokens, String stage, long[] result) {
+        double mean = result[0];
+        System.out.printf("%-12s %6d %8d  %-9s %12.1f %12.1f %10.2f %14.0f%n", name, size, tokens, stage,
+                mean / 1e3, result[1] / 1e3, mean / tokens, tokens / (mean / 1e9));
+    }
+
+    // 一条很长的表达式: x = x + 1 * 2 - x / 3 + ...
+    private static String exprChain(int length) {
+        StringBuilder sb = new StringBuilder("int main() {\n    int x = 1;\n    x = x");
+        String[] ops = { " + ", " - ", " * ", " / ", " % " };
+        for (int i = 0; i < length; i++) {
+            sb.append(ops[i % ops.length]).append(i % 7 + 1);
+            if (i % 16 == 15)
+                sb.append("\n        ");
+        }
+        sb.append(";\n    return x;\n}\n");
+        return sb.toString();
+    }
+
+    // 语句块、if 和 while 交替嵌套
+    private static String nesting(int depth) {
+        StringBuilder sb = new StringBuilder("int main() {\n    int x = 0;\n");
+        for (int i = 0; i < depth; i++) {
+            switch (i % 3) {
+                case 0:
+                    sb.append("{ int y").append(i).append(" = x + ").append(i).append(";\n");
+                    break;
+                case 1:
+                    sb.append("if (x < ").append(i).append(") { x = x + 1;\n");
+                    break;
+                default:
+                    sb.append("while (x > ").append(i).append(") { x = x - 1;\n");
+                    break;
+            }
+        }
+        for (int i = 0; i < depth; i++) {
+            sb.append("}\n");
+        }
+        sb.append("    return x;\n}\n");
+        return sb.toString();
+    }
+
+    // 很多小函数, 每个调用前一个
+    private static String functions(int count) {
+        StringBuilder sb = new StringBuilder("int f0(int a, int b) {\n    return a + b;\n}\n");
+        for (int i = 1; i < count; i++) {
+            sb.append("int f").append(i).append("(int a, int b) {\n")
+                    .append("    int c = a * ").append(i).append(" + b;\n")
+                    .append("    if (c > ").append(i).append(") c = c - a;\n")
+                    .append("    return f").append(i - 1).append("(c, a);\n}\n");
+        }
+        sb.append("int main() {\n    return f").append(count - 1).append("(1, 2);\n}\n");
+        return sb.toString();
+    }
+}
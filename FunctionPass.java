@@ -0,0 +1,27 @@
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+// 以函数为单位的优化, 由 PassManager 调度
+public interface FunctionPass {
+    enum Analysis {
+        CFG, // 前驱后继
+        DOMINATORS // 支配树和支配边界
+    }
+
+    String getName();
+
+    // 优化一个函数, 返回是否修改了它
+    boolean run(LLVMValueRef function);
+
+    // 运行前需要的分析, PassManager 先通过 AnalysisManager 算好
+    default Set<Analysis> required() {
+        return EnumSet.noneOf(Analysis.class);
+    }
+
+    // 上一次 run 修改了函数之后失效的分析, 由 PassManager 从 AnalysisManager 里清掉
+    default Set<Analysis> invalidated() {
+        return EnumSet.noneOf(Analysis.class);
+    }
+}
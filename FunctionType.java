@@ -1,10 +1,12 @@
 import java.util.ArrayList;
+import java.util.List;
 
 public class FunctionType extends Type{
     private Type retType;
     private ArrayList<Type> paramTypes;
 
-    public FunctionType(Type retType, ArrayList<Type> paramTypes) {
+    // 通过 TypeFactory.getFunctionType 获取, 不要直接创建
+    FunctionType(Type retType, List<Type> paramTypes) {
         this.retType = retType;
         this.paramTypes = new ArrayList<>(paramTypes);
     }
@@ -0,0 +1,313 @@
+import org.llvm4j.llvm4j.*;
+import org.llvm4j.llvm4j.Module;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+
+// 一次遍历同时做语义检查和 IR 生成, 每个标识符只解析一次, 类型和 IR 值放在同一张符号表里。
+// 生成的 IR 与 VisitorForIR 完全相同。这里的检查比 VisitorForGrammar 更严格: 只接受 VisitorForIR 能正确翻译的程序,
+// 遇到任何可能报错的地方 (包括数组) 就放弃, generate 返回 false, 丢掉已经生成的 IR,
+// 由调用者退回到 VisitorForGrammar + VisitorForIR 两遍的流程, 所以错误信息和原来一字不差。
+// 注意这个文件里的 Type/FunctionType/VoidType 是本项目的类型, llvm4j 的同名类型都写全名。
+public class FusedVisitor extends SysYParserBaseVisitor<Value> {
+    private static class Symbol {
+        private Type type;
+        private Value value;
+        // const 的值, 其他符号为 null
+        private ConstantInt constant;
+
+        private Symbol(Type type, Value value, ConstantInt constant) {
+            this.type = type;
+            this.value = value;
+            this.constant = constant;
+        }
+    }
+
+    // 不需要栈信息, 只用来从深层递归里退出
+    private static class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Abort() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Abort ABORT = new Abort();
+
+    private IREmitter emitter;
+    private ParseTreeExp exps;
+    private SymbolTable<Symbol> symbols;
+    private Type retFuncType;
+    private ArrayList<String> paramNames;
+    private ArrayList<Integer> paramIds;
+    private IdentTable identTable;
+
+    public FusedVisitor(IdentTable identTable) {
+        this.identTable = identTable;
+        this.emitter = new IREmitter();
+        this.exps = new ParseTreeExp(emitter) {
+            @Override
+            protected Value lValValue(SysYParser.LValContext ctx) {
+                Symbol lVal = intVariable(ctx);
+                if (lVal.constant != null)
+                    return lVal.constant;
+                return emitter.load(lVal.value, ctx.IDENT().getText());
+            }
+
+            @Override
+            protected Integer lValConstant(SysYParser.LValContext ctx) {
+                Symbol symbol = symbols.get(ident(ctx.IDENT()));
+                return symbol == null || !ctx.exp().isEmpty() ? null : ConstantFolder.valueOf(symbol.constant);
+            }
+
+            @Override
+            protected Value call(SysYParser.ExpContext ctx) {
+                return FusedVisitor.this.call(ctx);
+            }
+
+            @Override
+            public RuntimeException invalid(ParserRuleContext node) {
+                return ABORT;
+            }
+        };
+        this.symbols = new SymbolTable<>();
+        this.paramNames = new ArrayList<>();
+        this.paramIds = new ArrayList<>();
+    }
+
+    // 返回 false 表示程序可能有语义错误, 或者用到了这里不处理的写法, 此时 getModule 里的 IR 不完整
+    public boolean generate(ParseTree tree) {
+        try {
+            visit(tree);
+            return true;
+        } catch (Abort e) {
+            return false;
+        }
+    }
+
+    // 词法分析时已经驻留过的 IDENT 直接取 id, 否则现在驻留
+    private int ident(TerminalNode node) {
+        Token token = node.getSymbol();
+        if (token instanceof IdentToken && ((IdentToken) token).getIdentTable() == identTable)
+            return ((IdentToken) token).getIdent();
+        return identTable.intern(token.getText());
+    }
+
+    // 右值必须是 int: 没有定义的变量、函数名、数组和 void 函数调用都会放弃
+    private Value intValue(SysYParser.ExpContext ctx) {
+        Value value = visit(ctx);
+        if (value == null)
+            throw ABORT;
+        return value;
+    }
+
+    // 只能是没有下标的 int 变量
+    private Symbol intVariable(SysYParser.LValContext ctx) {
+        Symbol symbol = symbols.get(ident(ctx.IDENT()));
+        if (symbol == null || symbol.type != IntType.getI32() || ctx.exp().size() != 0)
+            throw ABORT;
+        return symbol;
+    }
+
+    @Override
+    public Value visitDecl(SysYParser.DeclContext ctx) {
+        if (ctx.CONST() != null) {
+            for (SysYParser.ConstDefContext constDefCtx : ctx.constDef()) {
+                visit(constDefCtx);
+            }
+        } else if (ctx.varDef() != null) {
+            for (SysYParser.VarDefContext varDefCtx : ctx.varDef()) {
+                visit(varDefCtx);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Value visitConstDef(SysYParser.ConstDefContext ctx) {
+        String varName = ctx.IDENT().getText();
+        int varNameId = ident(ctx.IDENT());
+        if (symbols.containsInCurScope(varNameId) || !ctx.constExp().isEmpty()
+                || ctx.constInitVal().constExp() == null)
+            throw ABORT;
+        SysYParser.ExpContext init = ctx.constInitVal().constExp().exp();
+        if (symbols.depth() > 0) {
+            Value rValue = intValue(init);
+            Integer constant = ConstantFolder.valueOf(rValue);
+            ConstantInt constantInt = constant == null ? null : emitter.constant(constant);
+            symbols.put(varNameId, new Symbol(IntType.getI32(), emitter.local(varName, rValue), constantInt));
+        } else {
+            if (!foldable(init))
+                throw ABORT;
+            ConstantInt constantInt = emitter.constant(init, exps);
+            symbols.put(varNameId, new Symbol(IntType.getI32(), emitter.global(varName, constantInt), constantInt));
+        }
+        return null;
+    }
+
+    @Override
+    public Value visitVarDef(SysYParser.VarDefContext ctx) {
+        String varName = ctx.IDENT().getText();
+        int varNameId = ident(ctx.IDENT());
+        if (symbols.containsInCurScope(varNameId) || !ctx.constExp().isEmpty())
+            throw ABORT;
+        SysYParser.ExpContext init = null;
+        if (ctx.ASSIGN() != null) {
+            init = ctx.initVal().exp();
+            if (init == null || (symbols.depth() == 0 && !foldable(init)))
+                throw ABORT;
+        }
+        if (symbols.depth() > 0) {
+            Value rValue = init != null ? intValue(init) : null;
+            symbols.put(varNameId, new Symbol(IntType.getI32(), emitter.local(varName, rValue), null));
+        } else {
+            Constant initValue = init != null ? emitter.constant(init, exps) : emitter.getZero();
+            symbols.put(varNameId, new Symbol(IntType.getI32(), emitter.global(varName, initValue), null));
+        }
+        return null;
+    }
+
+    @Override
+    public Value visitFuncDef(SysYParser.FuncDefContext ctx) {
+        String funcName = ctx.IDENT().getText();
+        int funcNameId = ident(ctx.IDENT());
+        if (symbols.contains(funcNameId))
+            throw ABORT;
+        retFuncType = ctx.funcType().VOID() != null ? VoidType.getVoidType() : IntType.getI32();
+        if (ctx.funcFParams() != null)
+            visit(ctx.funcFParams());
+        ArrayList<Type> paramsTyList = new ArrayList<>();
+        LLVMTypeRef[] paramTypes = new LLVMTypeRef[paramIds.size()];
+        for (int i = 0; i < paramIds.size(); i++) {
+            paramsTyList.add(IntType.getI32());
+            paramTypes[i] = emitter.getI32();
+        }
+        boolean returnsVoid = ctx.funcType().VOID() != null;
+        Function func = emitter.addFunction(funcName, returnsVoid, paramTypes);
+        symbols.put(funcNameId, new Symbol(TypeFactory.getFunctionType(retFuncType, paramsTyList), func, null));
+        emitter.beginBody(func, returnsVoid);
+        visit(ctx.block());
+        retFuncType = null;
+        return null;
+    }
+
+    @Override
+    public Value visitFuncFParams(SysYParser.FuncFParamsContext ctx) {
+        for (SysYParser.FuncFParamContext funcFParamCtx : ctx.funcFParam()) {
+            int paramId = ident(funcFParamCtx.IDENT());
+            // 数组形参交给原来的流程
+            if (paramIds.contains(paramId) || funcFParamCtx.L_BRACKT().size() > 0)
+                throw ABORT;
+            paramNames.add(funcFParamCtx.IDENT().getText());
+            paramIds.add(paramId);
+        }
+        return null;
+    }
+
+    @Override
+    public Value visitBlock(SysYParser.BlockContext ctx) {
+        symbols.enterScope();
+        for (int i = 0; i < paramNames.size(); i++) {
+            Value paramSlot = emitter.parameter(i, paramNames.get(i), emitter.getI32());
+            symbols.put(paramIds.get(i), new Symbol(IntType.getI32(), paramSlot, null));
+        }
+        paramNames.clear();
+        paramIds.clear();
+        for (SysYParser.BlockItemContext blockItemContext : ctx.blockItem())
+            visit(blockItemContext);
+        if (symbols.depth() == 1 && (ctx.blockItem().size() == 0 || ctx.blockItem(ctx.blockItem().size() - 1).stmt() == null || ctx.blockItem(ctx.blockItem().size() - 1).stmt().RETURN() == null))
+            emitter.defaultReturn();
+        symbols.exitScope();
+        return null;
+    }
+
+    @Override
+    public Value visitBlockItem(SysYParser.BlockItemContext ctx) {
+        if (ctx.decl() != null) {
+            visit(ctx.decl());
+        } else if (ctx.stmt() != null) {
+            visit(ctx.stmt());
+        }
+        return null;
+    }
+
+    @Override
+    public Value visitStmt(SysYParser.StmtContext ctx) {
+        if (ctx.RETURN() != null) {
+            if ((ctx.exp() != null) != (retFuncType == IntType.getI32()))
+                throw ABORT;
+            emitter.ret(ctx.exp() == null ? null : intValue(ctx.exp()));
+        } else if (ctx.ASSIGN() != null) {
+            Symbol lVal = intVariable(ctx.lVal());
+            Value rValue = intValue(ctx.exp());
+            emitter.store(lVal.value, rValue);
+        } else if (ctx.exp() != null) {
+            visit(ctx.exp());
+        } else if (ctx.WHILE() != null) {
+            emitter.whileLoop(ctx.cond(), exps, () -> visit(ctx.stmt(0)));
+        } else if (ctx.IF() != null) {
+            emitter.ifElse(ctx.cond(), exps, () -> visit(ctx.stmt(0)), ctx.ELSE() != null ? () -> visit(ctx.stmt(1)) : null);
+        } else if (ctx.BREAK() != null) {
+            emitter.breakLoop();
+        } else if (ctx.CONTINUE() != null) {
+            emitter.continueLoop();
+        } else if (ctx.block() != null) {
+            visit(ctx.block());
+        }
+        return null;
+    }
+
+    // 只有比较运算的操作数会按值求 cond, 按文法的优先级它不会是 && 或 ||
+    @Override
+    public Value visitCond(SysYParser.CondContext ctx) {
+        return emitter.value(ctx, exps);
+    }
+
+    @Override
+    public Value visitExp(SysYParser.ExpContext ctx) {
+        return emitter.value(ctx, exps);
+    }
+
+    private Value call(SysYParser.ExpContext ctx) {
+        Symbol func = symbols.get(ident(ctx.IDENT()));
+        if (func == null || !(func.type instanceof FunctionType))
+            throw ABORT;
+        FunctionType funcType = (FunctionType) func.type;
+        int argCount = ctx.funcRParams() == null ? 0 : ctx.funcRParams().param().size();
+        if (argCount != funcType.getParamTypes().size())
+            throw ABORT;
+        Value[] paramValues = new Value[argCount];
+        for (int i = 0; i < argCount; i++)
+            paramValues[i] = intValue(ctx.funcRParams().param(i).exp());
+        return emitter.call((Function) func.value, paramValues);
+    }
+
+    // 全局变量的初始值只能由数字、const 和运算组成, 否则在函数外生成 load 或 call, VisitorForIR 也处理不了
+    private boolean foldable(SysYParser.ExpContext etx) {
+        if (etx.number() != null)
+            return true;
+        if (etx.lVal() != null) {
+            Symbol symbol = symbols.get(ident(etx.lVal().IDENT()));
+            return symbol != null && symbol.constant != null && etx.lVal().exp().isEmpty();
+        }
+        if (etx.IDENT() != null)
+            return false;
+        for (SysYParser.ExpContext operand : etx.exp()) {
+            if (!foldable(operand))
+                return false;
+        }
+        return true;
+    }
+
+    public Module getModule() {
+        return emitter.getModule();
+    }
+
+    public void dispose() {
+        emitter.dispose();
+    }
+}
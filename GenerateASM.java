@@ -6,8 +6,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
 import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
 import org.llvm4j.llvm4j.Module;
@@ -16,17 +18,17 @@ public class GenerateASM {
     private Module module;
     private StringBuilder content;
     private ASMBuilder asmBuilder;
-    private Map<String, String> varMap;
-    private Map<String, int[]> varLife;
+    // 以下几个表都以 LLVM 值的地址为键, 不必每次查表都把值名从 C 端取成 Java 字符串
+    private LongHashMap<String> varMap;
+    private LongHashMap<int[]> varLife;
     private RegisterAllocate registerAllocate;
-    private Map<String, LLVMValueRef> condReplaceInst;
+    private PhaseTimer timer = PhaseTimer.DISABLED;
     public GenerateASM(Module module) {
         this.module = module;
         this.content = new StringBuilder();
         this.asmBuilder = new ASMBuilder(content);
-        this.varMap = new HashMap<>();
-        this.varLife = new HashMap<>();
-        this.condReplaceInst = new HashMap<>();
+        this.varMap = new LongHashMap<>();
+        this.varLife = new LongHashMap<>();
     }
 
     private class Register {
@@ -44,19 +46,19 @@ public class GenerateASM {
 
     private class RegisterAllocate {
         private class LiveInterval implements Comparable<LiveInterval> {
-            private String name;
+            private long name;
             private int start;
             private int end;
             private String location;
 
-            public LiveInterval(String name, int start, int end) {
+            public LiveInterval(long name, int start, int end) {
                 this.name = name;
                 this.start = start;
                 this.end = end;
                 this.location = null;
             }
 
-            public String getName() {
+            public long getName() {
                 return this.name;
             }
 
@@ -110,9 +112,8 @@ public class GenerateASM {
             }
             intervals = new ArrayList<>();
             activeIntervals = new ArrayList<>(); 
-            for (Map.Entry<String, int[]> entry : varLife.entrySet()) {
-                String name = entry.getKey();
-                int[] lifespan = entry.getValue();
+            for (long name : varLife.keys()) {
+                int[] lifespan = varLife.get(name);
                 intervals.add(new LiveInterval(name, lifespan[0], lifespan[1]));
             }
             Collections.sort(intervals);
@@ -177,7 +178,7 @@ public class GenerateASM {
             this.stackSize = (nextOffset + 15) & ~15;
             for (LiveInterval i : intervals) {
                 if (i.getLocation() != null && i.getLocation().contains("sp")) {
-                    String name = i.getName();
+                    long name = i.getName();
                     i.setLocation(String.valueOf(stackSize - count) + "(sp)");
                     count += 4;
                     varMap.put(name, i.getLocation());
@@ -191,142 +192,250 @@ public class GenerateASM {
     }
 
     public void scan() {
+        scanGlobals();
+        var function = LLVM.LLVMGetFirstFunction(module.getRef());
+        if (function != null)
+            scanFunction(function);
+    }
+
+    public void scanGlobals() {
         var modRef = module.getRef();
         for (var globalVar = LLVM.LLVMGetFirstGlobal(modRef); globalVar != null; globalVar = LLVM
                 .LLVMGetNextGlobal(globalVar)) {
             String varName = LLVM.LLVMGetValueName(globalVar).getString();
-            String op = getOperandAsString(LLVM.LLVMGetInitializer(globalVar));
+            var initializer = LLVM.LLVMGetInitializer(globalVar);
+            if (LLVM.LLVMGetTypeKind(LLVM.LLVMTypeOf(initializer)) == LLVM.LLVMArrayTypeKind) {
+                List<int[]> runs = new ArrayList<>();
+                flattenInitializer(initializer, runs);
+                asmBuilder.buildGlobalVar(varName, runs);
+                continue;
+            }
+            String op = getOperandAsString(initializer);
             asmBuilder.buildGlobalVar(varName, op);
         }
-        var function = LLVM.LLVMGetFirstFunction(modRef);
-        if (function != null) {
-            int spSize = getVariableCount(function);
-            String functionName = LLVM.LLVMGetValueName(function).getString();
-            asmBuilder.buildFuncdef(functionName, String.valueOf(spSize));
-            for (var basicBlock = LLVM.LLVMGetFirstBasicBlock(function); basicBlock != null; basicBlock = LLVM
-                    .LLVMGetNextBasicBlock(basicBlock)) {
-                String currentBlockLabel = LLVM.LLVMGetValueName(LLVM.LLVMBasicBlockAsValue(basicBlock)).getString();
-                asmBuilder.buildLabel(currentBlockLabel);
-                for (var instruction = LLVM.LLVMGetFirstInstruction(basicBlock); instruction != null; instruction = LLVM.LLVMGetNextInstruction(instruction)) {
-                    int opcode = LLVM.LLVMGetInstructionOpcode(instruction);
-                    String instName = LLVM.LLVMGetValueName(instruction).getString();
-                    if (opcode == LLVM.LLVMRet) {
-                        var operand0 = LLVM.LLVMGetOperand(instruction, 0);
-                        if (LLVM.LLVMIsAGlobalVariable(operand0) != null) {
-                            asmBuilder.buildLoadAndStore("la", "a0", getOperandAsString(operand0));
-                            asmBuilder.buildLoadAndStore("lw", "a0", "0(a0)");
-                        } else if (LLVM.LLVMIsAConstant(operand0) != null)
-                            asmBuilder.buildLoadAndStore("li", "a0", getOperandAsString(operand0));
-                        else
-                            asmBuilder.buildLoadAndStore("mv", "a0", varMap.get(getOperandAsString(operand0)));
-                        asmBuilder.buildRet(String.valueOf(spSize));
-                    } else if (opcode == LLVM.LLVMLoad) {
-                        String registerName = varMap.get(instName);
-                        var operand0 = LLVM.LLVMGetOperand(instruction, 0);
-                        handleLoad(registerName, operand0);
-                    } else if (opcode == LLVM.LLVMStore) {
-                        var operand0 = LLVM.LLVMGetOperand(instruction, 0);
-                        String op0RegName = varMap.get(getOperandAsString(operand0));
-                        String reg = "t0";
-                        if (op0RegName != null && !op0RegName.contains("sp")) reg = op0RegName;
-                        else handleLoad("t0", operand0);
-                        var operand1 = LLVM.LLVMGetOperand(instruction, 1);
-                        if (LLVM.LLVMIsAGlobalVariable(operand1) != null) {
-                            asmBuilder.buildLoadAndStore("la", "t1", getOperandAsString(operand1));
-                            asmBuilder.buildLoadAndStore("sw", reg, "0(t1)");
-                        } else {
-                            String op1RegName = varMap.get(getOperandAsString(operand1));
-                            if (op1RegName.contains("sp"))
-                                asmBuilder.buildLoadAndStore("sw", reg, op1RegName);
-                            else 
-                                asmBuilder.buildLoadAndStore("mv", op1RegName, reg);
+    }
+
+    // 把全局数组的初始值摊平成 {值, 连续个数} 的段, zeroinitializer 的子数组只算一段, 不逐个展开
+    private void flattenInitializer(LLVMValueRef constant, List<int[]> runs) {
+        var type = LLVM.LLVMTypeOf(constant);
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMArrayTypeKind) {
+            appendRun(runs, (int) LLVM.LLVMConstIntGetSExtValue(constant), 1);
+            return;
+        }
+        if (LLVM.LLVMIsAConstantAggregateZero(constant) != null) {
+            int count = 1;
+            for (; LLVM.LLVMGetTypeKind(type) == LLVM.LLVMArrayTypeKind; type = LLVM.LLVMGetElementType(type))
+                count *= LLVM.LLVMGetArrayLength(type);
+            appendRun(runs, 0, count);
+            return;
+        }
+        // 只有整数的一维数组常量是 ConstantDataArray, 元素不是操作数
+        boolean data = LLVM.LLVMIsAConstantDataArray(constant) != null;
+        int length = LLVM.LLVMGetArrayLength(type);
+        for (int i = 0; i < length; i++)
+            flattenInitializer(data ? LLVM.LLVMGetElementAsConstant(constant, i) : LLVM.LLVMGetOperand(constant, i), runs);
+    }
+
+    private static void appendRun(List<int[]> runs, int value, int count) {
+        if (!runs.isEmpty() && runs.get(runs.size() - 1)[0] == value)
+            runs.get(runs.size() - 1)[1] += count;
+        else
+            runs.add(new int[] { value, count });
+    }
+
+    public void setTimer(PhaseTimer timer) {
+        this.timer = timer;
+    }
+
+    public void scanFunction(LLVMValueRef function) {
+        checkSupported(function);
+        // getVariableCount 里计算活跃区间并做线性扫描分配
+        var phase = timer.begin("regalloc");
+        int spSize = getVariableCount(function);
+        timer.end(phase);
+        phase = timer.begin("emit");
+        String functionName = LLVM.LLVMGetValueName(function).getString();
+        asmBuilder.buildFuncdef(functionName, String.valueOf(spSize));
+        for (var basicBlock = LLVM.LLVMGetFirstBasicBlock(function); basicBlock != null; basicBlock = LLVM
+                .LLVMGetNextBasicBlock(basicBlock)) {
+            String currentBlockLabel = LLVM.LLVMGetValueName(LLVM.LLVMBasicBlockAsValue(basicBlock)).getString();
+            asmBuilder.buildLabel(currentBlockLabel);
+            for (var instruction = LLVM.LLVMGetFirstInstruction(basicBlock); instruction != null; instruction = LLVM.LLVMGetNextInstruction(instruction)) {
+                int opcode = LLVM.LLVMGetInstructionOpcode(instruction);
+                long instKey = key(instruction);
+                if (opcode == LLVM.LLVMRet) {
+                    var operand0 = LLVM.LLVMGetOperand(instruction, 0);
+                    if (LLVM.LLVMIsAGlobalVariable(operand0) != null) {
+                        asmBuilder.buildLoadAndStore("la", "a0", getOperandAsString(operand0));
+                        asmBuilder.buildLoadAndStore("lw", "a0", "0(a0)");
+                    } else if (LLVM.LLVMIsAConstant(operand0) != null)
+                        asmBuilder.buildLoadAndStore("li", "a0", getOperandAsString(operand0));
+                    else
+                        asmBuilder.buildLoadAndStore("mv", "a0", varMap.get(key(operand0)));
+                    asmBuilder.buildRet(String.valueOf(spSize));
+                } else if (opcode == LLVM.LLVMLoad) {
+                    String registerName = varMap.get(instKey);
+                    var operand0 = LLVM.LLVMGetOperand(instruction, 0);
+                    handleLoad(registerName, operand0);
+                } else if (opcode == LLVM.LLVMStore) {
+                    var operand0 = LLVM.LLVMGetOperand(instruction, 0);
+                    String op0RegName = varMap.get(key(operand0));
+                    String reg = "t0";
+                    if (op0RegName != null && !op0RegName.contains("sp")) reg = op0RegName;
+                    else handleLoad("t0", operand0);
+                    var operand1 = LLVM.LLVMGetOperand(instruction, 1);
+                    if (LLVM.LLVMIsAGlobalVariable(operand1) != null) {
+                        asmBuilder.buildLoadAndStore("la", "t1", getOperandAsString(operand1));
+                        asmBuilder.buildLoadAndStore("sw", reg, "0(t1)");
+                    } else {
+                        String op1RegName = varMap.get(key(operand1));
+                        if (op1RegName.contains("sp"))
+                            asmBuilder.buildLoadAndStore("sw", reg, op1RegName);
+                        else 
+                            asmBuilder.buildLoadAndStore("mv", op1RegName, reg);
+                    }
+                } else if (opcode >= LLVM.LLVMAdd && opcode <= LLVM.LLVMSRem) {
+                    String registerName = varMap.get(instKey);
+                    var operand0 = LLVM.LLVMGetOperand(instruction, 0);
+                    var operand1 = LLVM.LLVMGetOperand(instruction, 1);
+                    String op0RegName = varMap.get(key(operand0));
+                    String op1RegName = varMap.get(key(operand1));
+                    String dest = "t0";
+                    String src1 = "t0";
+                    String src2 = "t1";
+                    if (op0RegName != null && !op0RegName.contains("sp"))
+                        src1 = op0RegName;
+                    else
+                        handleLoad("t0", operand0);
+                    if (op1RegName != null && !op1RegName.contains("sp"))
+                        src2 = op1RegName;
+                    else
+                        handleLoad("t1", operand1);
+                    if (!registerName.contains("sp"))
+                        dest = registerName;
+                    switch (opcode) {
+                        case 8:
+                            asmBuilder.buildCal("add", dest, src1, src2);
+                            break;
+                        case 10:
+                            asmBuilder.buildCal("sub", dest, src1, src2);
+                            break;
+                        case 12:
+                            asmBuilder.buildCal("mul", dest, src1, src2);
+                            break;
+                        case 15:
+                            asmBuilder.buildCal("div", dest, src1, src2);
+                            break;
+                        case 18:
+                            asmBuilder.buildCal("rem", dest, src1, src2);
+                            break;
+                    }
+                    if (registerName.contains("sp")) 
+                        asmBuilder.buildLoadAndStore("sw", "t0", registerName);
+                } else if (opcode == LLVM.LLVMBr) {
+                    int opcodeNum = LLVM.LLVMGetNumOperands(instruction);
+                    if (opcodeNum == 1) {
+                        String label = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 0)).getString();
+                        emitPhiCopies(basicBlock, LLVM.LLVMValueAsBasicBlock(LLVM.LLVMGetOperand(instruction, 0)));
+                        asmBuilder.buildJump(label);
+                    } else if (opcodeNum > 1) {
+                        // 条件是 icmp, 直接用它的两个操作数生成比较跳转
+                        var inst = LLVM.LLVMGetOperand(instruction, 0);
+                        String label1 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 2)).getString();
+                        String label2 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 1)).getString();
+                        var target1 = LLVM.LLVMValueAsBasicBlock(LLVM.LLVMGetOperand(instruction, 2));
+                        var target2 = LLVM.LLVMValueAsBasicBlock(LLVM.LLVMGetOperand(instruction, 1));
+                        if (LLVM.LLVMIsAConstantInt(inst) != null) {
+                            boolean taken = LLVM.LLVMConstIntGetZExtValue(inst) != 0;
+                            emitPhiCopies(basicBlock, taken ? target1 : target2);
+                            asmBuilder.buildJump(taken ? label1 : label2);
+                            continue;
                         }
-                    } else if (opcode >= LLVM.LLVMAdd && opcode <= LLVM.LLVMSRem) {
-                        String registerName = varMap.get(instName);
-                        var operand0 = LLVM.LLVMGetOperand(instruction, 0);
-                        var operand1 = LLVM.LLVMGetOperand(instruction, 1);
-                        String op0RegName = varMap.get(getOperandAsString(operand0));
-                        String op1RegName = varMap.get(getOperandAsString(operand1));
-                        String dest = "t0";
-                        String src1 = "t0";
-                        String src2 = "t1";
-                        if (op0RegName != null && !op0RegName.contains("sp"))
-                            src1 = op0RegName;
-                        else
-                            handleLoad("t0", operand0);
-                        if (op1RegName != null && !op1RegName.contains("sp"))
-                            src2 = op1RegName;
+                        // 真分支的目标有 phi 时先跳到这条边上单独的标号, 在那里做完 phi 的搬运再跳过去
+                        String edgeLabel = null;
+                        if (!PhiNodes.phisOf(target1).isEmpty()) {
+                            edgeLabel = currentBlockLabel + "_to_" + label1;
+                            label1 = edgeLabel;
+                        }
+                        var operand0 = LLVM.LLVMGetOperand(inst, 0);
+                        var operand1 = LLVM.LLVMGetOperand(inst, 1);
+                        String op1 = "t0";
+                        String op0RegName = varMap.get(key(operand0));
+                        if (op0RegName != null && !op0RegName.contains("sp")) op1 = op0RegName;
+                        else handleLoad("t0", operand0);
+                        String op2 = "t1";
+                        String op1RegName = varMap.get(key(operand1));
+                        if (op1RegName != null && !op1RegName.contains("sp")) op2 = op1RegName;
                         else
                             handleLoad("t1", operand1);
-                        if (!registerName.contains("sp"))
-                            dest = registerName;
-                        switch (opcode) {
-                            case 8:
-                                asmBuilder.buildCal("add", dest, src1, src2);
+                        int predicate = LLVM.LLVMGetICmpPredicate(inst);
+                        switch (predicate) {
+                            case LLVM.LLVMIntEQ:
+                                asmBuilder.buildBr("beq", op1, op2, label1);
                                 break;
-                            case 10:
-                                asmBuilder.buildCal("sub", dest, src1, src2);
+                            case LLVM.LLVMIntNE:
+                                asmBuilder.buildBr("bne", op1, op2, label1);
                                 break;
-                            case 12:
-                                asmBuilder.buildCal("mul", dest, src1, src2);
+                            case LLVM.LLVMIntSGT:
+                                asmBuilder.buildBr("bgt", op1, op2, label1);
                                 break;
-                            case 15:
-                                asmBuilder.buildCal("div", dest, src1, src2);
+                            case LLVM.LLVMIntSGE:
+                                asmBuilder.buildBr("bge", op1, op2, label1);
                                 break;
-                            case 18:
-                                asmBuilder.buildCal("rem", dest, src1, src2);
+                            case LLVM.LLVMIntSLT:
+                                asmBuilder.buildBr("blt", op1, op2, label1);
+                                break;
+                            case LLVM.LLVMIntSLE:
+                                asmBuilder.buildBr("ble", op1, op2, label1);
                                 break;
                         }
-                        if (registerName.contains("sp")) 
-                            asmBuilder.buildLoadAndStore("sw", "t0", registerName);
-                    } else if (opcode == LLVM.LLVMBr) {
-                        int opcodeNum = LLVM.LLVMGetNumOperands(instruction);
-                        if (opcodeNum == 1) {
-                            String label = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 0)).getString();
-                            asmBuilder.buildJump(label);
-                        } else if (opcodeNum > 1) {
-                            var operand = LLVM.LLVMGetOperand(instruction, 0);
-                            var inst = condReplaceInst.get(getOperandAsString(operand));
-                            String label1 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 2)).getString();
-                            String label2 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(instruction, 1)).getString();
-                            var operand0 = LLVM.LLVMGetOperand(inst, 0);
-                            var operand1 = LLVM.LLVMGetOperand(inst, 1);
-                            String op1 = "t0";
-                            String op0RegName = varMap.get(getOperandAsString(operand0));
-                            if (op0RegName != null && !op0RegName.contains("sp")) op1 = op0RegName;
-                            else handleLoad("t0", operand0);
-                            String op2 = "t1";
-                            String op1RegName = varMap.get(getOperandAsString(operand1));
-                            if (op1RegName != null && !op1RegName.contains("sp")) op2 = op1RegName;
-                            else
-                                handleLoad("t1", operand1);
-                            int predicate = LLVM.LLVMGetICmpPredicate(inst);
-                            switch (predicate) {
-                                case LLVM.LLVMIntEQ:
-                                    asmBuilder.buildBr("beq", op1, op2, label1);
-                                    break;
-                                case LLVM.LLVMIntNE:
-                                    asmBuilder.buildBr("bne", op1, op2, label1);
-                                    break;
-                                case LLVM.LLVMIntSGT:
-                                    asmBuilder.buildBr("bgt", op1, op2, label1);
-                                    break;
-                                case LLVM.LLVMIntSGE:
-                                    asmBuilder.buildBr("bge", op1, op2, label1);
-                                    break;
-                                case LLVM.LLVMIntSLT:
-                                    asmBuilder.buildBr("blt", op1, op2, label1);
-                                    break;
-                                case LLVM.LLVMIntSLE:
-                                    asmBuilder.buildBr("ble", op1, op2, label1);
-                                    break;
-                            }
-                            asmBuilder.buildJump(label2);
+                        emitPhiCopies(basicBlock, target2);
+                        asmBuilder.buildJump(label2);
+                        if (edgeLabel != null) {
+                            asmBuilder.buildLabel(edgeLabel);
+                            emitPhiCopies(basicBlock, target1);
+                            asmBuilder.buildJump(LLVM.LLVMGetValueName(LLVM.LLVMBasicBlockAsValue(target1)).getString());
                         }
                     }
                 }
             }
         }
+        timer.end(phase);
+    }
+
+    // 后端没有栈上的数组, 也不会计算元素地址: GEP 会被当成普通的值分到寄存器, 通过它的 load / store 变成寄存器间的 mv,
+    // 生成的代码是错的。遇到数组直接报错, 不要悄悄输出错误的汇编
+    private static void checkSupported(LLVMValueRef function) {
+        for (var basicBlock = LLVM.LLVMGetFirstBasicBlock(function); basicBlock != null; basicBlock = LLVM
+                .LLVMGetNextBasicBlock(basicBlock)) {
+            for (var instruction = LLVM.LLVMGetFirstInstruction(basicBlock); instruction != null; instruction = LLVM
+                    .LLVMGetNextInstruction(instruction)) {
+                int opcode = LLVM.LLVMGetInstructionOpcode(instruction);
+                if (opcode == LLVM.LLVMGetElementPtr || (opcode == LLVM.LLVMAlloca
+                        && LLVM.LLVMGetTypeKind(LLVM.LLVMGetAllocatedType(instruction)) != LLVM.LLVMIntegerTypeKind))
+                    throw new UnsupportedOperationException("arrays not supported by the RISC-V backend (function "
+                            + LLVM.LLVMGetValueName(function).getString() + ")");
+            }
+        }
+    }
+
+    // 生成单个函数的汇编并返回这段文本
+    public String generateFunction(LLVMValueRef function) {
+        int start = content.length();
+        scanFunction(function);
+        return content.substring(start);
+    }
+
+    public void appendText(String text) {
+        content.append(text);
+    }
+
+    private static long key(LLVMValueRef value) {
+        return value.address();
+    }
+
+    private static long key(LLVMBasicBlockRef block) {
+        return key(LLVM.LLVMBasicBlockAsValue(block));
     }
 
     private String getOperandAsString(LLVMValueRef operand) {
@@ -342,51 +451,147 @@ public class GenerateASM {
 
     private int getVariableCount(LLVMValueRef function) {
         int count = 1;
+        // 每个块第一条和最后一条指令的编号, phi 的 incoming {phi, 值, 前驱块}, 回边 {循环头编号, 回边编号}
+        LongHashMap<int[]> blockRange = new LongHashMap<>();
+        List<LLVMValueRef[]> phiIncomings = new ArrayList<>();
+        List<int[]> backEdges = new ArrayList<>();
         for (var basicBlock = LLVM.LLVMGetFirstBasicBlock(function); basicBlock != null; basicBlock = LLVM
                 .LLVMGetNextBasicBlock(basicBlock)) {
+            blockRange.put(key(basicBlock), new int[] { count, count });
             for (var instruction = LLVM.LLVMGetFirstInstruction(basicBlock); instruction != null; instruction = LLVM
                     .LLVMGetNextInstruction(instruction)) {
                 String name = LLVM.LLVMGetValueName(instruction).getString();
-                if (name.contains("extract") || name.contains("gttmp") || name.contains("lttmp")
-                    || name.contains("eqtmp") || name.contains("neqtmp") || name.contains("letmp") || name.contains("getmp"))
-                    continue;
-                if (name.contains("cond")) {
-                    var prevInstruction = LLVM.LLVMGetPreviousInstruction(instruction);
-                    var prevInstruction2 = LLVM.LLVMGetPreviousInstruction(prevInstruction);
-                    condReplaceInst.put(name, prevInstruction2);
+                int opcode = LLVM.LLVMGetInstructionOpcode(instruction);
+                // 比较的结果只给条件跳转用, 不分配寄存器, 它的操作数一直活到跳转处
+                if (opcode == LLVM.LLVMICmp || opcode == LLVM.LLVMZExt)
                     continue;
+                if (opcode == LLVM.LLVMPHI) {
+                    for (int index = 0; index < LLVM.LLVMCountIncoming(instruction); index++)
+                        phiIncomings.add(new LLVMValueRef[] { instruction, LLVM.LLVMGetIncomingValue(instruction, index),
+                                LLVM.LLVMBasicBlockAsValue(LLVM.LLVMGetIncomingBlock(instruction, index)) });
                 }
-                if (LLVM.LLVMIsABranchInst(instruction) != null) {
-                    var operand = LLVM.LLVMGetOperand(instruction, 0);
-                    if (LLVM.LLVMGetNumOperands(instruction) > 1) {
-                        String opName = LLVM.LLVMGetValueName(operand).getString();
-                        var inst = condReplaceInst.get(opName);
-                        String operand0 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(inst, 0)).getString();
-                        String operand1 = LLVM.LLVMGetValueName(LLVM.LLVMGetOperand(inst, 1)).getString();
-                        varLife.get(operand0)[1] += 2;
-                        if (!operand1.equals("")) varLife.get(operand1)[1] += 1;
-                        continue;
+                if (opcode == LLVM.LLVMBr || opcode == LLVM.LLVMRet) {
+                    blockRange.get(key(basicBlock))[1] = count;
+                    for (int index = 0; opcode == LLVM.LLVMBr && index < LLVM.LLVMGetNumSuccessors(instruction); index++) {
+                        int[] target = blockRange.get(key(LLVM.LLVMGetSuccessor(instruction, index)));
+                        if (target != null)
+                            backEdges.add(new int[] { target[0], count });
+                    }
+                }
+                if (opcode == LLVM.LLVMBr && LLVM.LLVMGetNumOperands(instruction) > 1) {
+                    var condition = LLVM.LLVMGetOperand(instruction, 0);
+                    if (LLVM.LLVMIsAICmpInst(condition) != null) {
+                        for (int index = 0; index < 2; index++) {
+                            int[] life = varLife.get(key(LLVM.LLVMGetOperand(condition, index)));
+                            if (life != null)
+                                life[1] = count;
+                        }
                     }
                 }
                 if (!name.equals(""))
-                    varLife.put(name, new int[] { count, count });
+                    varLife.put(key(instruction), new int[] { count, count });
                 for (int index = 0; index < LLVM.LLVMGetNumOperands(instruction); index++) {
                     var operand = LLVM.LLVMGetOperand(instruction, index);
                     if (LLVM.LLVMIsAConstant(operand) == null && LLVM.LLVMIsAGlobalVariable(operand) == null) {
-                        String operandName = LLVM.LLVMGetValueName(operand).getString();
-                        if (varLife.containsKey(operandName))
-                            varLife.get(operandName)[1] = count;
+                        int[] life = varLife.get(key(operand));
+                        if (life != null)
+                            life[1] = count;
                     }
                 }
                 count++;
             }
         }
+        extendLifetimes(blockRange, phiIncomings, backEdges);
         registerAllocate = new RegisterAllocate();
         registerAllocate.generateStackSize(count);
         int stackSize = registerAllocate.getStackSize();
         return stackSize;
     }
 
+    // phi 的值在前驱末尾写入, phi 和它的 incoming 都要活到那里; 在循环头活跃的值要一直活到回边, 下一轮还要用
+    private void extendLifetimes(LongHashMap<int[]> blockRange, List<LLVMValueRef[]> phiIncomings, List<int[]> backEdges) {
+        for (LLVMValueRef[] incoming : phiIncomings) {
+            int[] range = blockRange.get(key(incoming[2]));
+            int[] phiLife = varLife.get(key(incoming[0]));
+            if (range == null || phiLife == null)
+                continue;
+            phiLife[0] = Math.min(phiLife[0], range[1]);
+            phiLife[1] = Math.max(phiLife[1], range[1]);
+            int[] valueLife = varLife.get(key(incoming[1]));
+            if (valueLife != null)
+                valueLife[1] = Math.max(valueLife[1], range[1]);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int[] edge : backEdges) {
+                for (long name : varLife.keys()) {
+                    int[] life = varLife.get(name);
+                    if (life[0] < edge[0] && life[1] >= edge[0] && life[1] < edge[1]) {
+                        life[1] = edge[1];
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // 沿 from -> to 这条边把 to 里各个 phi 的 incoming 搬到 phi 的位置上。这些搬运是同时发生的:
+    // 先做目标不再被其他搬运读取的, 剩下的都在环上, 把环上一个位置原来的值存进 t1 断开这个环
+    private void emitPhiCopies(LLVMBasicBlockRef from, LLVMBasicBlockRef to) {
+        List<String> dests = new ArrayList<>();
+        List<String> srcLocs = new ArrayList<>();
+        List<LLVMValueRef> srcs = new ArrayList<>();
+        for (LLVMValueRef phi : PhiNodes.phisOf(to)) {
+            String dest = varMap.get(key(phi));
+            if (dest == null)
+                continue;
+            for (int i = 0; i < LLVM.LLVMCountIncoming(phi); i++) {
+                if (!LLVM.LLVMGetIncomingBlock(phi, i).equals(from))
+                    continue;
+                LLVMValueRef value = LLVM.LLVMGetIncomingValue(phi, i);
+                String srcLoc = LLVM.LLVMIsAConstant(value) != null ? null : varMap.get(key(value));
+                if (!dest.equals(srcLoc)) {
+                    dests.add(dest);
+                    srcLocs.add(srcLoc);
+                    srcs.add(value);
+                }
+                break;
+            }
+        }
+        while (!dests.isEmpty()) {
+            int ready = -1;
+            for (int i = 0; i < dests.size() && ready < 0; i++) {
+                if (!srcLocs.contains(dests.get(i)))
+                    ready = i;
+            }
+            if (ready < 0) {
+                String saved = dests.get(0);
+                emitMove("t1", saved, null);
+                for (int i = 0; i < srcLocs.size(); i++) {
+                    if (saved.equals(srcLocs.get(i)))
+                        srcLocs.set(i, "t1");
+                }
+                continue;
+            }
+            emitMove(dests.remove(ready), srcLocs.remove(ready), srcs.remove(ready));
+        }
+    }
+
+    // srcLoc 为 null 时 src 是常量
+    private void emitMove(String dest, String srcLoc, LLVMValueRef src) {
+        boolean toStack = dest.contains("sp");
+        String reg = toStack ? "t0" : dest;
+        if (srcLoc == null)
+            handleLoad(reg, src);
+        else if (srcLoc.contains("sp"))
+            asmBuilder.buildLoadAndStore("lw", reg, srcLoc);
+        else
+            asmBuilder.buildLoadAndStore("mv", reg, srcLoc);
+        if (toStack)
+            asmBuilder.buildLoadAndStore("sw", "t0", dest);
+    }
+
     private void handleLoad(String regName, LLVMValueRef operand) {
         if (LLVM.LLVMIsAGlobalVariable(operand) != null) {
             asmBuilder.buildLoadAndStore("la", "t1", getOperandAsString(operand));
@@ -394,7 +599,7 @@ public class GenerateASM {
         } else if (LLVM.LLVMIsAConstant(operand) != null) {
             asmBuilder.buildLoadAndStore("li", regName, getOperandAsString(operand));
         } else {
-            String opRegName = varMap.get(getOperandAsString(operand));
+            String opRegName = varMap.get(key(operand));
             if (opRegName.contains("sp"))
                 asmBuilder.buildLoadAndStore("lw", regName, opRegName);
             else {
@@ -408,10 +613,16 @@ public class GenerateASM {
 
     public void generateOutputFile(File outputFile) {
         scan();
+        writeOutputFile(outputFile);
+    }
+
+    public void writeOutputFile(File outputFile) {
+        var phase = timer.begin("write");
         try (FileWriter writer = new FileWriter(outputFile)) {
             writer.write(this.content.toString());
         } catch (IOException e) {
             e.printStackTrace();
         }
+        timer.end(phase);
     }
 }
@@ -0,0 +1,36 @@
+// 全局作用域的只读快照, 供并行语义检查使用。
+// 每个全局定义带一个按源码顺序递增的序号, 查找时只能看到序号小于 limit 的定义,
+// 这样每个函数体在任何线程上看到的全局符号都和顺序检查走到它时一样。
+public class GlobalScope {
+    private static class Symbol {
+        private Type type;
+        private int seq;
+
+        private Symbol(Type type, int seq) {
+            this.type = type;
+            this.seq = seq;
+        }
+    }
+
+    private IntHashMap<Symbol> symbols = new IntHashMap<>();
+
+    // 同名的只保留第一个定义, 后面的在检查时报重定义
+    public void register(int name, Type type, int seq) {
+        if (symbols.get(name) == null)
+            symbols.put(name, new Symbol(type, seq));
+    }
+
+    public boolean contains(int name) {
+        return symbols.get(name) != null;
+    }
+
+    public Type getType(int name, int limit) {
+        Symbol symbol = symbols.get(name);
+        return symbol != null && symbol.seq < limit ? symbol.type : null;
+    }
+
+    public int getSeq(int name) {
+        Symbol symbol = symbols.get(name);
+        return symbol == null ? -1 : symbol.seq;
+    }
+}
@@ -0,0 +1,350 @@
+import org.llvm4j.llvm4j.*;
+import org.llvm4j.llvm4j.Module;
+import org.llvm4j.llvm4j.Type;
+import org.llvm4j.optional.Option;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMBuilderRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.Stack;
+
+// VisitorForIR、FusedVisitor 和 AstToIR 共用的 IR 生成: 运算和比较的生成与折叠、常量求值、条件翻译成跳转、
+// 循环的 break / continue 目标。前端只负责遍历各自的树和管理符号, 表达式结点通过 ExpTree 交给这里
+public class IREmitter {
+    private Context context;
+    private Module module;
+    private IRBuilder builder;
+    // 只往入口块开头插 alloca, 见 array
+    private LLVMBuilderRef entryBuilder;
+    private IntegerType i32;
+    private ConstantInt zero;
+    private Function function;
+    private boolean returnsVoid;
+    private Stack<BasicBlock> loopCondStack;
+    private Stack<BasicBlock> loopNextStack;
+
+    public IREmitter() {
+        this.context = new Context();
+        this.module = context.newModule("module");
+        this.builder = context.newIRBuilder();
+        this.entryBuilder = LLVM.LLVMCreateBuilderInContext(context.getRef());
+        this.i32 = context.getInt32Type();
+        this.zero = i32.getConstant(0, false);
+        this.loopCondStack = new Stack<>();
+        this.loopNextStack = new Stack<>();
+    }
+
+    // 十六进制和八进制按 32 位补码回绕, 例如 0xFFFFFFFF 是 -1
+    public static int parseNumber(String number) {
+        if (number.startsWith("0x") || number.startsWith("0X"))
+            return (int) Long.parseLong(number.substring(2), 16);
+        else if (number.startsWith("0"))
+            number = String.valueOf(Integer.parseInt(number, 8));
+        return (int) Long.parseLong(number);
+    }
+
+    public ConstantInt constant(int value) {
+        return i32.getConstant(value, false);
+    }
+
+    public ConstantInt getZero() {
+        return zero;
+    }
+
+    public LLVMTypeRef getI32() {
+        return i32.getRef();
+    }
+
+    public Function addFunction(String name, boolean returnsVoid, LLVMTypeRef[] paramTypes) {
+        // 数组形参是指针, llvm4j 没有指针类型, 函数类型用 C API 构造
+        Type retType = returnsVoid ? context.getVoidType() : i32;
+        var funcTypeRef = LLVM.LLVMFunctionType(retType.getRef(), new PointerPointer<>(paramTypes), paramTypes.length, 0);
+        return new Function(LLVM.LLVMAddFunction(module.getRef(), name, funcTypeRef));
+    }
+
+    // 之后的指令都生成到 func 的入口块里
+    public void beginBody(Function func, boolean returnsVoid) {
+        this.function = func;
+        this.returnsVoid = returnsVoid;
+        var entryBlock = context.newBasicBlock(func.getName() + "Entry");
+        func.addBasicBlock(entryBlock);
+        builder.positionAfter(entryBlock);
+    }
+
+    public boolean returnsVoid() {
+        return returnsVoid;
+    }
+
+    // 形参先存进栈上的变量, 之后和局部变量一样读写
+    public Value parameter(int index, String name, LLVMTypeRef type) {
+        Value slot = new Value(LLVM.LLVMBuildAlloca(builder.getRef(), type, name));
+        builder.buildStore(slot, function.getParameter(index).unwrap());
+        return slot;
+    }
+
+    // init 为 null 表示没有初始值
+    public Value local(String name, Value init) {
+        Value localVar = builder.buildAlloca(i32, Option.of(name));
+        if (init != null)
+            builder.buildStore(localVar, init);
+        return localVar;
+    }
+
+    public Value global(String name, Constant init) {
+        var gVal = module.addGlobalVariable(name, i32, Option.empty()).unwrap();
+        gVal.setInitializer(init);
+        return gVal;
+    }
+
+    // 局部数组 alloca 后按摊平的初始值初始化, 全局数组的初始值必须都是常量; elements 为 null 表示没有初始值
+    public Value array(String name, ArrayLayout layout, Value[] elements, boolean global) {
+        if (!global) {
+            Value array = new Value(LLVM.LLVMBuildAlloca(positionEntryBuilder(), layout.getType(), name));
+            if (elements != null)
+                layout.initialize(builder.getRef(), array, elements, zero.getRef());
+            return array;
+        }
+        var gVal = LLVM.LLVMAddGlobal(module.getRef(), layout.getType(), name);
+        LLVM.LLVMSetInitializer(gVal, elements == null ? LLVM.LLVMConstNull(layout.getType()) : layout.constant(elements));
+        return new Value(gVal);
+    }
+
+    // 数组的 alloca 放在入口块开头的 alloca 之后, 定义在循环里也只分配一次, 而且是静态的栈空间
+    private LLVMBuilderRef positionEntryBuilder() {
+        var entryBlock = LLVM.LLVMGetEntryBasicBlock(function.getRef());
+        LLVMValueRef inst = LLVM.LLVMGetFirstInstruction(entryBlock);
+        while (inst != null && LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMAlloca)
+            inst = LLVM.LLVMGetNextInstruction(inst);
+        if (inst == null)
+            LLVM.LLVMPositionBuilderAtEnd(entryBuilder, entryBlock);
+        else
+            LLVM.LLVMPositionBuilderBefore(entryBuilder, inst);
+        return entryBuilder;
+    }
+
+    // 数组变量的基地址, 形参要先把指针 load 出来; 在计算下标之前调用
+    public Value arrayBase(ArrayLayout layout, Value variable, String name) {
+        if (layout.isPointer())
+            return builder.buildLoad(variable, Option.of(name));
+        return variable;
+    }
+
+    public Value elementPointer(ArrayLayout layout, Value base, Value[] indices) {
+        return layout.elementPointer(builder.getRef(), base, indices, zero.getRef());
+    }
+
+    public Value load(Value pointer, String name) {
+        return builder.buildLoad(pointer, Option.of(name));
+    }
+
+    public void store(Value pointer, Value value) {
+        builder.buildStore(pointer, value);
+    }
+
+    // void 函数返回 null
+    public Value call(Function func, Value[] args) {
+        if (func.getType().getAsString().contains("void")) {
+            builder.buildCall(func, args, Option.empty());
+            return null;
+        }
+        return builder.buildCall(func, args, Option.of("call"));
+    }
+
+    // value 为 null 时是 ret void
+    public void ret(Value value) {
+        builder.buildReturn(value == null ? Option.empty() : Option.of(value));
+    }
+
+    // 函数体最后不是 return 时补一条
+    public void defaultReturn() {
+        ret(returnsVoid ? null : zero);
+    }
+
+    public <N> Value value(N node, ExpTree<N> tree) {
+        node = tree.unwrap(node);
+        switch (tree.arity(node)) {
+            case 2: {
+                Value left = operand(tree.operand(node, 0), tree);
+                Value right = operand(tree.operand(node, 1), tree);
+                return binary(tree.op(node), left, right);
+            }
+            case 1:
+                return unary(tree.op(node), operand(tree.operand(node, 0), tree));
+            default:
+                return tree.leafValue(node);
+        }
+    }
+
+    // 作为运算数的值, 不能是 void 函数调用
+    private <N> Value operand(N node, ExpTree<N> tree) {
+        Value value = value(node, tree);
+        if (value == null)
+            throw tree.invalid(node);
+        return value;
+    }
+
+    // 比较的结果 zext 成 i32; 两边都是常量时直接折叠
+    public Value binary(int op, Value left, Value right) {
+        Value folded = ConstantFolder.fold(i32, op, left, right);
+        if (folded != null)
+            return folded;
+        switch (op) {
+            case SysYLexer.PLUS:
+                return builder.buildIntAdd(left, right, WrapSemantics.Unspecified, Option.of("addtmp"));
+            case SysYLexer.MINUS:
+                return builder.buildIntSub(left, right, WrapSemantics.Unspecified, Option.of("subtmp"));
+            case SysYLexer.MUL:
+                return builder.buildIntMul(left, right, WrapSemantics.Unspecified, Option.of("multmp"));
+            case SysYLexer.DIV:
+                return builder.buildSignedDiv(left, right, false, Option.of("divtmp"));
+            case SysYLexer.MOD:
+                return builder.buildSignedRem(left, right, Option.of("modtmp"));
+        }
+        IntPredicate predicate = ConstantFolder.predicateOf(op);
+        if (predicate == null)
+            return null;
+        Value res = builder.buildIntCompare(predicate, left, right, Option.of(ConstantFolder.compareName(op)));
+        return builder.buildZeroExt(res, i32, Option.of("extractcmp"));
+    }
+
+    public Value unary(int op, Value operand) {
+        Value folded = ConstantFolder.fold(i32, op, operand);
+        if (folded != null)
+            return folded;
+        if (op == SysYLexer.MINUS) {
+            return builder.buildIntSub(zero, operand, WrapSemantics.Unspecified, Option.of("negtmp"));
+        } else if (op == SysYLexer.NOT) {
+            Value cmpResult = builder.buildIntCompare(IntPredicate.Equal, operand, zero, Option.of("cmptmp"));
+            return builder.buildZeroExt(cmpResult, i32, Option.of("unaryminus"));
+        }
+        return operand;
+    }
+
+    // 常量表达式求值, 不生成指令; 不是常量或者运行时才有定义 (除以 0) 时返回 null
+    public <N> Integer evaluate(N node, ExpTree<N> tree) {
+        node = tree.unwrap(node);
+        switch (tree.arity(node)) {
+            case 2: {
+                Integer left = evaluate(tree.operand(node, 0), tree);
+                Integer right = evaluate(tree.operand(node, 1), tree);
+                return left == null || right == null ? null : ConstantFolder.binary(tree.op(node), left, right);
+            }
+            case 1: {
+                Integer operand = evaluate(tree.operand(node, 0), tree);
+                return operand == null ? null : ConstantFolder.unary(tree.op(node), operand);
+            }
+            default:
+                return tree.leafConstant(node);
+        }
+    }
+
+    // 数组长度、全局变量的初始值等必须是常量的地方
+    public <N> int constantValue(N node, ExpTree<N> tree) {
+        Integer value = evaluate(node, tree);
+        if (value == null)
+            throw tree.invalid(node);
+        return value;
+    }
+
+    public <N> ConstantInt constant(N node, ExpTree<N> tree) {
+        return constant(constantValue(node, tree));
+    }
+
+    // 条件直接翻译成跳转: && 和 || 是一串条件跳转, 比较的 i1 结果直接给 br 用, 不再 zext 成 i32 再和 0 比较。
+    // 值为常量的条件直接生成无条件跳转
+    public <N> void condBranch(N node, ExpTree<N> tree, BasicBlock trueBlock, BasicBlock falseBlock) {
+        node = tree.unwrap(node);
+        int op = tree.arity(node) == 2 ? tree.op(node) : 0;
+        if (op == SysYLexer.AND || op == SysYLexer.OR) {
+            BasicBlock rightBlock = context.newBasicBlock("eval_right");
+            if (op == SysYLexer.AND)
+                condBranch(tree.operand(node, 0), tree, rightBlock, falseBlock);
+            else
+                condBranch(tree.operand(node, 0), tree, trueBlock, rightBlock);
+            function.addBasicBlock(rightBlock);
+            builder.positionAfter(rightBlock);
+            condBranch(tree.operand(node, 1), tree, trueBlock, falseBlock);
+            return;
+        }
+        Value res;
+        IntPredicate predicate = ConstantFolder.predicateOf(op);
+        if (predicate == null) {
+            Value value = operand(node, tree);
+            Integer constant = ConstantFolder.valueOf(value);
+            if (constant != null) {
+                builder.buildBranch(constant != 0 ? trueBlock : falseBlock);
+                return;
+            }
+            res = builder.buildIntCompare(IntPredicate.NotEqual, value, zero, Option.of("cond"));
+        } else {
+            Value left = operand(tree.operand(node, 0), tree);
+            Value right = operand(tree.operand(node, 1), tree);
+            Integer constant = ConstantFolder.valueOf(ConstantFolder.fold(i32, op, left, right));
+            if (constant != null) {
+                builder.buildBranch(constant != 0 ? trueBlock : falseBlock);
+                return;
+            }
+            res = builder.buildIntCompare(predicate, left, right, Option.of(ConstantFolder.compareName(op)));
+        }
+        builder.buildConditionalBranch(res, trueBlock, falseBlock);
+    }
+
+    public <N> void whileLoop(N cond, ExpTree<N> tree, Runnable body) {
+        var condBlock = context.newBasicBlock("whileCond");
+        var bodyBlock = context.newBasicBlock("whileBody");
+        var nextBlock = context.newBasicBlock("whileNext");
+        loopCondStack.push(condBlock);
+        loopNextStack.push(nextBlock);
+        builder.buildBranch(condBlock);
+        function.addBasicBlock(condBlock);
+        builder.positionAfter(condBlock);
+        condBranch(cond, tree, bodyBlock, nextBlock);
+        function.addBasicBlock(bodyBlock);
+        builder.positionAfter(bodyBlock);
+        body.run();
+        builder.buildBranch(condBlock);
+        function.addBasicBlock(nextBlock);
+        builder.positionAfter(nextBlock);
+        loopCondStack.pop();
+        loopNextStack.pop();
+    }
+
+    // elsePart 为 null 表示没有 else
+    public <N> void ifElse(N cond, ExpTree<N> tree, Runnable thenPart, Runnable elsePart) {
+        var thenBlock = context.newBasicBlock("if_true_");
+        var elseBlock = context.newBasicBlock("if_false_");
+        var nextBlock = context.newBasicBlock("if_next_");
+        condBranch(cond, tree, thenBlock, elseBlock);
+        function.addBasicBlock(thenBlock);
+        builder.positionAfter(thenBlock);
+        thenPart.run();
+        builder.buildBranch(nextBlock);
+        function.addBasicBlock(elseBlock);
+        builder.positionAfter(elseBlock);
+        if (elsePart != null)
+            elsePart.run();
+        builder.buildBranch(nextBlock);
+        function.addBasicBlock(nextBlock);
+        builder.positionAfter(nextBlock);
+    }
+
+    public void breakLoop() {
+        builder.buildBranch(loopNextStack.peek());
+    }
+
+    public void continueLoop() {
+        builder.buildBranch(loopCondStack.peek());
+    }
+
+    public Module getModule() {
+        return module;
+    }
+
+    public void dispose() {
+        LLVM.LLVMDisposeBuilder(builder.getRef());
+        LLVM.LLVMDisposeBuilder(entryBuilder);
+        LLVM.LLVMContextDispose(context.getRef());
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// 一次编译内的标识符驻留表: 每个不同的名字分配一个从 0 开始的稠密整数 id,
+// 之后各个阶段的符号表都用 id 作键, 不再反复创建子串和计算字符串哈希
+public class IdentTable {
+    private HashMap<String, Integer> ids;
+    private ArrayList<String> names;
+
+    public IdentTable() {
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+    }
+
+    // 并行语义检查时可能有多个线程同时驻留, 所以加锁; 正常情况下 token 上已经带了 id, 很少走到这里
+    public synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    // 返回驻留后的那一份字符串
+    public synchronized String getName(int id) {
+        return names.get(id);
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,30 @@
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+// 带驻留 id 的 IDENT token, 文本是 IdentTable 里的那一份字符串
+public class IdentToken extends CommonToken {
+    private static final long serialVersionUID = 1L;
+
+    private int ident;
+    private IdentTable identTable;
+
+    public IdentToken(Pair<TokenSource, CharStream> source, int type, int channel, int start, int stop) {
+        super(source, type, channel, start, stop);
+    }
+
+    public void setIdent(IdentTable identTable, int ident) {
+        this.identTable = identTable;
+        this.ident = ident;
+        setText(identTable.getName(ident));
+    }
+
+    public int getIdent() {
+        return ident;
+    }
+
+    public IdentTable getIdentTable() {
+        return identTable;
+    }
+}
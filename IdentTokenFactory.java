@@ -0,0 +1,38 @@
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+// 词法分析时就给每个 IDENT 驻留并分配 id; 其他 token 交给 CommonTokenFactory。
+// IDENT 的文本在创建时取出一次, 之后 getText() 直接返回驻留的字符串
+public class IdentTokenFactory implements TokenFactory<CommonToken> {
+    private IdentTable identTable;
+    private TokenFactory<CommonToken> delegate;
+
+    public IdentTokenFactory(IdentTable identTable, boolean copyText) {
+        this.identTable = identTable;
+        this.delegate = copyText ? new CommonTokenFactory(true) : CommonTokenFactory.DEFAULT;
+    }
+
+    @Override
+    public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start,
+            int stop, int line, int charPositionInLine) {
+        if (type != SysYLexer.IDENT)
+            return delegate.create(source, type, text, channel, start, stop, line, charPositionInLine);
+        IdentToken token = new IdentToken(source, type, channel, start, stop);
+        token.setLine(line);
+        token.setCharPositionInLine(charPositionInLine);
+        if (text == null)
+            text = source.b.getText(Interval.of(start, stop));
+        token.setIdent(identTable, identTable.intern(text));
+        return token;
+    }
+
+    @Override
+    public CommonToken create(int type, String text) {
+        return delegate.create(type, text);
+    }
+}
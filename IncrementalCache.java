@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 以内容哈希为键的磁盘缓存, 每个条目是一个文件 <dir>/<key>.<kind>
+public class IncrementalCache {
+    private Path dir;
+    private AtomicInteger hits = new AtomicInteger();
+    private AtomicInteger misses = new AtomicInteger();
+
+    public IncrementalCache(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    public String get(String key, String kind) {
+        Path file = dir.resolve(key + "." + kind);
+        try {
+            if (Files.exists(file))
+                return Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // 读失败就当作没有命中, 重新编译
+        }
+        return null;
+    }
+
+    public void put(String key, String kind, String content) throws IOException {
+        // 先写临时文件再原子地改名, 并发编译共享同一个缓存目录时不会读到写了一半的文件
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        Files.writeString(tmp, content, StandardCharsets.UTF_8);
+        Files.move(tmp, dir.resolve(key + "." + kind), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public static String hash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.llvm4j.llvm4j.Module;
+
+// 以函数为粒度的增量编译:
+// 每个 funcDef 的键 = 它自己的 token 序列 + 它引用到的全局声明 + 它调用的函数的签名 + 整个文件里被赋值的全局变量。
+// 常量传播会把从来没被赋值的全局变量折叠成初始值, 所以别的函数开始或者不再给全局变量赋值时, 缓存的函数也要重新编译。
+// 命中的函数在模块里只生成声明, 不再做 IR 生成、优化和汇编生成, 输出时直接把缓存的结果拼回去。
+public class IncrementalCompiler {
+    // 优化流水线或后端的输出有变化时改这个版本号, 让旧缓存失效
+    private static final String VERSION = "6";
+
+    private IncrementalCache cache;
+    private CompileOptions options;
+    private PhaseTimer timer;
+
+    public IncrementalCompiler(IncrementalCache cache, CompileOptions options) {
+        this.cache = cache;
+        this.options = options;
+        this.timer = PhaseTimer.DISABLED;
+    }
+
+    public void setTimer(PhaseTimer timer) {
+        this.timer = timer;
+    }
+
+    public void compile(SysYParser.ProgramContext program, IdentTable identTable, String output, PrintStream err)
+            throws IOException {
+        Map<String, String> globalDecls = new HashMap<>();
+        Map<String, String> signatures = new HashMap<>();
+        // 全局定义的初始值里引用的名字; const 会被折叠进函数体, 它依赖的 const 变了函数的 IR 也会变
+        Map<String, Set<String>> globalRefs = new HashMap<>();
+        Set<String> globalVars = new HashSet<>();
+        List<SysYParser.FuncDefContext> funcDefs = new ArrayList<>();
+        Set<String> funcNames = new HashSet<>();
+        boolean duplicated = false;
+        for (ParseTree child : program.compUnit().children) {
+            if (child instanceof SysYParser.DeclContext) {
+                SysYParser.DeclContext decl = (SysYParser.DeclContext) child;
+                String text = tokenText(decl) + "\n";
+                Set<String> refs = new TreeSet<>();
+                collectIdents(decl, refs);
+                for (SysYParser.ConstDefContext constDef : decl.constDef()) {
+                    globalDecls.merge(constDef.IDENT().getText(), text, String::concat);
+                    globalRefs.computeIfAbsent(constDef.IDENT().getText(), k -> new TreeSet<>()).addAll(refs);
+                }
+                for (SysYParser.VarDefContext varDef : decl.varDef()) {
+                    globalVars.add(varDef.IDENT().getText());
+                    globalDecls.merge(varDef.IDENT().getText(), text, String::concat);
+                    globalRefs.computeIfAbsent(varDef.IDENT().getText(), k -> new TreeSet<>()).addAll(refs);
+                }
+            } else if (child instanceof SysYParser.FuncDefContext) {
+                SysYParser.FuncDefContext funcDef = (SysYParser.FuncDefContext) child;
+                String name = funcDef.IDENT().getText();
+                duplicated |= !funcNames.add(name);
+                funcDefs.add(funcDef);
+                signatures.put(name, tokenText(funcDef.funcType()) + " " + name + " ( "
+                        + (funcDef.funcFParams() != null ? tokenText(funcDef.funcFParams()) : "") + " )\n");
+            }
+        }
+
+        // 在函数里被赋值过的全局变量, 按名字算, 被同名局部变量遮住的也算上, 只会更保守
+        Set<String> storedGlobals = new TreeSet<>();
+        for (SysYParser.FuncDefContext funcDef : funcDefs)
+            collectAssigned(funcDef.block(), storedGlobals);
+        storedGlobals.retainAll(globalVars);
+        String storedText = String.join(" ", storedGlobals);
+
+        boolean asm = options.getStage() == CompileOptions.Stage.ASM;
+        Map<String, String> keys = new HashMap<>();
+        Map<String, String> cachedIR = new HashMap<>();
+        String cachedASM = null;
+        int hits = 0;
+        int misses = 0;
+        for (int i = 0; i < funcDefs.size(); i++) {
+            SysYParser.FuncDefContext funcDef = funcDefs.get(i);
+            String name = funcDef.IDENT().getText();
+            // 重名函数在模块里会被 LLVM 改名, 没法按名字拼接, 这种文件整个不走缓存
+            if (duplicated) {
+                misses++;
+                continue;
+            }
+            String key = functionKey(funcDef, globalDecls, globalRefs, signatures, storedText);
+            keys.put(name, key);
+            String ir = cache.get(key, "ll");
+            // 后端只为模块里的第一个函数生成汇编
+            String asmText = asm && i == 0 ? cache.get(key, "s") : "";
+            if (ir != null && asmText != null) {
+                cachedIR.put(name, ir);
+                if (asm && i == 0)
+                    cachedASM = asmText;
+                hits++;
+                cache.recordHit();
+            } else {
+                misses++;
+                cache.recordMiss();
+            }
+        }
+
+        VisitorForIR visitorForIR = new VisitorForIR(identTable);
+        try {
+            visitorForIR.setDeclareOnly(cachedIR.keySet());
+            var phase = timer.begin("VisitorForIR");
+            visitorForIR.visit(program);
+            timer.end(phase);
+            Module module = visitorForIR.getModule();
+            OptimizedIR optimizedIR = new OptimizedIR(module, options.getOptLevel());
+            // 命中的函数只剩声明, 它们里面的赋值要另外告诉常量传播
+            optimizedIR.setStoredGlobals(storedGlobals);
+            optimizedIR.setTimer(timer);
+            optimizedIR.optimize();
+            LLVMModuleRef modRef = module.getRef();
+            for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(modRef); func != null; func = LLVM.LLVMGetNextFunction(func)) {
+                String name = LLVM.LLVMGetValueName(func).getString();
+                if (LLVM.LLVMCountBasicBlocks(func) == 0 || !keys.containsKey(name))
+                    continue;
+                cache.put(keys.get(name), "ll", printToString(LLVM.LLVMPrintValueToString(func)).strip());
+            }
+            if (asm) {
+                GenerateASM generateASM = new GenerateASM(module);
+                generateASM.setTimer(timer);
+                generateASM.scanGlobals();
+                LLVMValueRef first = LLVM.LLVMGetFirstFunction(modRef);
+                if (cachedASM != null) {
+                    generateASM.appendText(cachedASM);
+                } else if (first != null) {
+                    String text = generateASM.generateFunction(first);
+                    String key = keys.get(LLVM.LLVMGetValueName(first).getString());
+                    if (key != null)
+                        cache.put(key, "s", text);
+                }
+                generateASM.writeOutputFile(new File(output));
+            } else {
+                phase = timer.begin("write");
+                String moduleText = printToString(LLVM.LLVMPrintModuleToString(modRef));
+                Files.writeString(Paths.get(output), splice(moduleText, cachedIR), StandardCharsets.UTF_8);
+                timer.end(phase);
+            }
+        } finally {
+            visitorForIR.dispose();
+        }
+        err.println("incremental cache: " + hits + " hits, " + misses + " misses");
+    }
+
+    private String functionKey(SysYParser.FuncDefContext funcDef, Map<String, String> globalDecls,
+            Map<String, Set<String>> globalRefs, Map<String, String> signatures, String storedGlobals) {
+        StringBuilder sb = new StringBuilder(VERSION).append(" -O").append(options.getOptLevel()).append('\n');
+        sb.append("stored: ").append(storedGlobals).append('\n');
+        sb.append(tokenText(funcDef)).append('\n');
+        Set<String> names = new TreeSet<>();
+        collectIdents(funcDef.block(), names);
+        // 加上用到的全局定义间接引用的名字
+        List<String> worklist = new ArrayList<>(names);
+        while (!worklist.isEmpty()) {
+            Set<String> refs = globalRefs.get(worklist.remove(worklist.size() - 1));
+            if (refs == null)
+                continue;
+            for (String ref : refs) {
+                if (names.add(ref))
+                    worklist.add(ref);
+            }
+        }
+        for (String name : names) {
+            if (globalDecls.containsKey(name))
+                sb.append(globalDecls.get(name));
+            if (signatures.containsKey(name))
+                sb.append(signatures.get(name));
+        }
+        return IncrementalCache.hash(sb.toString());
+    }
+
+    // 把模块文本里命中函数的 declare 行换回缓存的完整定义
+    private String splice(String moduleText, Map<String, String> cachedIR) {
+        if (cachedIR.isEmpty())
+            return moduleText;
+        String[] lines = moduleText.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].startsWith("declare "))
+                continue;
+            int at = lines[i].indexOf(" @");
+            int paren = lines[i].indexOf('(', at);
+            if (at < 0 || paren < 0)
+                continue;
+            String cached = cachedIR.get(lines[i].substring(at + 2, paren));
+            if (cached != null)
+                lines[i] = cached;
+        }
+        return String.join("\n", lines);
+    }
+
+    private static String printToString(BytePointer message) {
+        String text = message.getString();
+        LLVM.LLVMDisposeMessage(message);
+        return text;
+    }
+
+    // 用空格连接子树里的所有 token, 这样改注释和空白不会让缓存失效
+    private static String tokenText(ParseTree tree) {
+        StringBuilder sb = new StringBuilder();
+        appendTokens(tree, sb);
+        return sb.toString();
+    }
+
+    private static void appendTokens(ParseTree tree, StringBuilder sb) {
+        if (tree instanceof TerminalNode) {
+            Token token = ((TerminalNode) tree).getSymbol();
+            if (token.getType() != Token.EOF) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(token.getText());
+            }
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            appendTokens(tree.getChild(i), sb);
+        }
+    }
+
+    private static void collectAssigned(ParseTree tree, Set<String> names) {
+        if (tree instanceof SysYParser.StmtContext) {
+            SysYParser.StmtContext stmt = (SysYParser.StmtContext) tree;
+            if (stmt.ASSIGN() != null)
+                names.add(stmt.lVal().IDENT().getText());
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectAssigned(tree.getChild(i), names);
+        }
+    }
+
+    private static void collectIdents(ParseTree tree, Set<String> names) {
+        if (tree instanceof TerminalNode) {
+            if (((TerminalNode) tree).getSymbol().getType() == SysYParser.IDENT)
+                names.add(tree.getText());
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            collectIdents(tree.getChild(i), names);
+        }
+    }
+}
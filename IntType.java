@@ -1,13 +1,11 @@
 public class IntType extends Type {
-    private static IntType intTypeInstance;
+    // 类初始化时创建, 多线程下也只有这一个实例
+    private static final IntType intTypeInstance = new IntType();
 
     private IntType() {
     }
 
     public static IntType getI32() {
-        if (intTypeInstance == null) {
-            intTypeInstance = new IntType();
-        }
         return intTypeInstance;
     }
 
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+// 常量传播的格值向量, 每个槽位是 UNDEF、一个整数常量或者 NAC。
+// 用两个位向量记录种类: known 为 1 表示不是 UNDEF, 其中 nac 为 1 的是 NAC, 其余是常量, 常量值放在 int 数组里
+public class LatticeVector {
+    public static final int UNDEF = 0;
+    public static final int CONST = 1;
+    public static final int NAC = 2;
+
+    private long[] known;
+    private long[] nac;
+    private int[] constants;
+    private int size;
+
+    public LatticeVector(int size) {
+        this.size = size;
+        this.known = new long[(size + 63) >>> 6];
+        this.nac = new long[known.length];
+        this.constants = new int[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int i) {
+        long bit = 1L << i;
+        if ((known[i >>> 6] & bit) == 0)
+            return UNDEF;
+        return (nac[i >>> 6] & bit) != 0 ? NAC : CONST;
+    }
+
+    public int getConstant(int i) {
+        return constants[i];
+    }
+
+    public void setUndef(int i) {
+        known[i >>> 6] &= ~(1L << i);
+        nac[i >>> 6] &= ~(1L << i);
+    }
+
+    public void setConstant(int i, int value) {
+        known[i >>> 6] |= 1L << i;
+        nac[i >>> 6] &= ~(1L << i);
+        constants[i] = value;
+    }
+
+    public void setNac(int i) {
+        known[i >>> 6] |= 1L << i;
+        nac[i >>> 6] |= 1L << i;
+    }
+
+    // 设置第 i 个槽位, 返回它是否变了
+    public boolean set(int i, int kind, int value) {
+        if (kind(i) == kind && (kind != CONST || constants[i] == value))
+            return false;
+        if (kind == UNDEF)
+            setUndef(i);
+        else if (kind == CONST)
+            setConstant(i, value);
+        else
+            setNac(i);
+        return true;
+    }
+
+    // 逐个槽位和 other 取 meet, 只需要看 other 里不是 UNDEF 的槽位
+    public void meet(LatticeVector other) {
+        for (int w = 0; w < known.length; w++) {
+            long bits = other.known[w];
+            // 自己是 UNDEF 的槽位直接取 other 的值
+            long undef = bits & ~known[w];
+            known[w] |= undef;
+            // other 是 NAC 的槽位一定是 NAC
+            nac[w] |= other.nac[w];
+            for (long rest = undef & ~other.nac[w]; rest != 0; rest &= rest - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(rest);
+                constants[i] = other.constants[i];
+            }
+            // 两边都是常量但值不同的变成 NAC
+            for (long both = bits & ~undef & ~nac[w]; both != 0; both &= both - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(both);
+                if (constants[i] != other.constants[i])
+                    nac[w] |= 1L << i;
+            }
+        }
+    }
+
+    // 全部置为 UNDEF
+    public void clear() {
+        Arrays.fill(known, 0);
+        Arrays.fill(nac, 0);
+    }
+
+    public void copyFrom(LatticeVector other) {
+        System.arraycopy(other.known, 0, known, 0, known.length);
+        System.arraycopy(other.nac, 0, nac, 0, nac.length);
+        System.arraycopy(other.constants, 0, constants, 0, size);
+    }
+
+    // 常量槽位只比较值, UNDEF 和 NAC 槽位里残留的常量不算
+    public boolean sameAs(LatticeVector other) {
+        if (!Arrays.equals(known, other.known) || !Arrays.equals(nac, other.nac))
+            return false;
+        for (int w = 0; w < known.length; w++) {
+            for (long bits = known[w] & ~nac[w]; bits != 0; bits &= bits - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (constants[i] != other.constants[i])
+                    return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,54 +1,89 @@
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.ListTokenSource;
 
 public class Main {
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length < 1) {
             System.err.println("input path is required");
+            return;
         }
-        String source = args[0];
-        CharStream input = CharStreams.fromFileName(source);
-        SysYLexer sysYLexer = new SysYLexer(input);
-        LexerErrorListener customLexerErrorListener = new LexerErrorListener();
-        sysYLexer.removeErrorListeners();
-        sysYLexer.addErrorListener(customLexerErrorListener);
-        List<? extends Token> myTokens = sysYLexer.getAllTokens();
-        List<String> lexerErrors = customLexerErrorListener.getErrors();
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "--batch":
+                BatchCompiler.main(rest);
+                return;
+            case "--server":
+                CompileServer.main(rest);
+                return;
+            case "--client":
+                CompileClient.main(rest);
+                return;
+            case "--bench":
+                FrontEndBenchmark.main(rest);
+                return;
+            case "--bench-opt":
+                OptimizerBenchmark.main(rest);
+                return;
+            case "--generate":
+                SysYGenerator.main(rest);
+                return;
+        }
+        List<String> paths = new ArrayList<>();
+        CompileOptions options = CompileOptions.parse(args, paths);
+        compile(paths.get(0), paths.size() > 1 ? paths.get(1) : null, options, System.err);
+    }
+
+    public static boolean compile(String source, String output, CompileOptions options, PrintStream err) throws IOException {
+        // 不要计时报告时也传一个计时器, 用 -XX:StartFlightRecording 启动时照样能收到各个阶段的 JFR 事件
+        if (options.getTimeReport() == null)
+            return compile(source, output, options, err, new PhaseTimer(source, false));
+        PhaseTimer timer = new PhaseTimer(source);
+        try {
+            return compile(source, output, options, err, timer);
+        } finally {
+            writeTimeReport(timer, output != null ? output : source, options.getTimeReport().equals("json"));
+        }
+    }
+
+    // 计时报告单独写到 <输出文件>.time.txt 或 .time.json, 不和诊断信息混在一起
+    private static void writeTimeReport(PhaseTimer timer, String base, boolean json) throws IOException {
+        String path = base + (json ? ".time.json" : ".time.txt");
+        try (PrintStream out = new PrintStream(new FileOutputStream(path), false, StandardCharsets.UTF_8)) {
+            timer.report(out, json);
+        }
+    }
+
+    private static boolean compile(String source, String output, CompileOptions options, PrintStream err,
+            PhaseTimer timer) throws IOException {
+        boolean ok = true;
+        ParseDriver parseDriver = new ParseDriver(options.isUnbuffered(), options.isMapped());
+        if (options.getTimeReport() != null)
+            parseDriver.setTimer(timer);
+        ParseTree tree = parseDriver.parse(source);
+        List<String> lexerErrors = parseDriver.getLexerErrors();
         if (!lexerErrors.isEmpty()) {
             for (String error : lexerErrors) {
-                System.err.println(error);
+                err.println(error);
             }
-        } else {
-            for (Token t : myTokens) {
-                int type = t.getType();
-                int line = t.getLine();
-                String str = t.getText();
-                if (type == 34) {
-                    if (str.contains("x") || str.contains("X")) {
-                        str = String.valueOf((int)Long.parseLong(str.substring(2), 16));
-                    } else if (str.charAt(0) == '0') {
-                        str = String.valueOf(Integer.parseInt(str, 8));
-                    }
-                }
-                // System.err.println(SysYLexer.ruleNames[type - 1] + " " + str + " " + "at Line " + line + ".");
+            ok = false;
+        }
+        List<String> parserErrors = parseDriver.getParserErrors();
+        if (!parserErrors.isEmpty()) {
+            for (String error : parserErrors) {
+                err.println(error);
             }
+            ok = false;
         }
-        ListTokenSource tokenSource = new ListTokenSource(myTokens);
-        CommonTokenStream tokens = new CommonTokenStream(tokenSource);
-        SysYParser sysYParser = new SysYParser(tokens);
-        sysYParser.removeErrorListeners();
-        ParserErrorListener customParserErrorListener = new ParserErrorListener();
-        sysYParser.addErrorListener(customParserErrorListener);
-        ParseTree tree = sysYParser.program();
         // // VisitorForParser visitorForParser = new VisitorForParser();
         // List<String> parserErrors = customParserErrorListener.getErrors();
         // if (!parserErrors.isEmpty()) {
@@ -59,19 +94,86 @@ public class Main {
         //     // visitorForParser.visit(tree);
         //     // visitorForParser.Print();
         // }
-        // VisitorForGrammar visitorForGrammar = new VisitorForGrammar();
-        // visitorForGrammar.visit(tree);
-        // List<String> grammarErrors = visitorForGrammar.getErrors();
-        // if (grammarErrors.isEmpty())
-        //     System.err.println("No semantic errors in the program!");
-        // else {
-        //     for (String err : grammarErrors) {
-        //         System.err.println(err);
-        //     }
-        VisitorForIR visitorForIR = new VisitorForIR();
-        visitorForIR.visit(tree);
-        // visitorForIR.generateIR(new File(args[1]));
-        OptimizedIR optimizedIR = new OptimizedIR(visitorForIR.getModule());
-        optimizedIR.generateOptimizedIR(new File(args[1]));
+        if (options.isFused() && options.getStage() != CompileOptions.Stage.CHECK && options.getCacheDir() == null) {
+            FusedVisitor fusedVisitor = new FusedVisitor(parseDriver.getIdentTable());
+            try {
+                var phase = timer.begin("FusedVisitor");
+                boolean fused = fusedVisitor.generate(tree);
+                timer.end(phase);
+                if (fused) {
+                    emit(fusedVisitor.getModule(), output, options, timer);
+                    return ok;
+                }
+            } finally {
+                fusedVisitor.dispose();
+            }
+            // 可能有语义错误, 丢掉这次的 IR, 走下面两遍的流程给出原来的报错
+        }
+        if (options.isSemanticCheck()) {
+            var phase = timer.begin("VisitorForGrammar");
+            // 先登记全局符号, 再并行检查各个函数, 报错顺序与顺序检查相同
+            ParallelGrammarChecker grammarChecker = new ParallelGrammarChecker(parseDriver.getIdentTable(),
+                    ForkJoinPool.commonPool());
+            List<String> grammarErrors = grammarChecker.check((SysYParser.ProgramContext) tree);
+            timer.end(phase);
+            if (grammarErrors.isEmpty()) {
+                if (options.getStage() == CompileOptions.Stage.CHECK)
+                    err.println("No semantic errors in the program!");
+            } else {
+                for (String error : grammarErrors) {
+                    err.println(error);
+                }
+                return false;
+            }
+        }
+        if (options.getStage() == CompileOptions.Stage.CHECK)
+            return ok;
+        if (options.getCacheDir() != null) {
+            IncrementalCompiler incrementalCompiler = new IncrementalCompiler(new IncrementalCache(options.getCacheDir()), options);
+            incrementalCompiler.setTimer(timer);
+            incrementalCompiler.compile((SysYParser.ProgramContext) tree, parseDriver.getIdentTable(), output, err);
+            return ok;
+        }
+        if (options.isCompactAst()) {
+            var phase = timer.begin("AstLowering");
+            CompactAst ast = AstLowering.lower((SysYParser.ProgramContext) tree, parseDriver.getIdentTable());
+            timer.end(phase);
+            // 之后只用 CompactAst, 语法树和 token 可以回收了
+            tree = null;
+            AstToIR astToIR = new AstToIR(ast, parseDriver.getIdentTable());
+            try {
+                phase = timer.begin("AstToIR");
+                astToIR.generate();
+                timer.end(phase);
+                emit(astToIR.getModule(), output, options, timer);
+            } finally {
+                astToIR.dispose();
+            }
+            return ok;
+        }
+        VisitorForIR visitorForIR = new VisitorForIR(parseDriver.getIdentTable());
+        try {
+            var phase = timer.begin("VisitorForIR");
+            visitorForIR.visit(tree);
+            timer.end(phase);
+            // visitorForIR.generateIR(new File(output));
+            emit(visitorForIR.getModule(), output, options, timer);
+        } finally {
+            visitorForIR.dispose();
+        }
+        return ok;
+    }
+
+    private static void emit(org.llvm4j.llvm4j.Module module, String output, CompileOptions options, PhaseTimer timer) {
+        OptimizedIR optimizedIR = new OptimizedIR(module, options.getOptLevel());
+        optimizedIR.setTimer(timer);
+        if (options.getStage() == CompileOptions.Stage.ASM) {
+            optimizedIR.optimize();
+            GenerateASM generateASM = new GenerateASM(module);
+            generateASM.setTimer(timer);
+            generateASM.generateOutputFile(new File(output));
+        } else {
+            optimizedIR.generateOptimizedIR(new File(output));
+        }
     }
-}
\ No newline at end of file
+}
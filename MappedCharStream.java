@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+// 直接建立在内存映射文件上的字符流, 源文件不再整个解码到堆上。
+// SysY 源程序是 ASCII, 一个字节就是一个字符; 注释里的非 ASCII 字节按 0x80-0xFF 的字符交给词法器, 不影响分析。
+// token 文本只保存起止位置 (CommonTokenFactory 默认不拷贝文本), 等语法分析或 visitor 调用 getText 时才从映射区里取出来。
+public class MappedCharStream implements CharStream {
+    private MappedByteBuffer buffer;
+    private int size;
+    private int index = 0;
+    private String sourceName;
+
+    public MappedCharStream(MappedByteBuffer buffer, String sourceName) {
+        this.buffer = buffer;
+        this.size = buffer.limit();
+        this.sourceName = sourceName;
+    }
+
+    public static MappedCharStream fromFileName(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            // CharStream 的下标是 int, 单个映射也最多 2GB
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("source file too large to map: " + fileName);
+            // 关闭 channel 后映射依然有效, 直到 buffer 被回收
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new MappedCharStream(buffer, fileName);
+        }
+    }
+
+    @Override
+    public void consume() {
+        if (index >= size)
+            throw new IllegalStateException("cannot consume EOF");
+        index++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0)
+            return 0;
+        int pos = i > 0 ? index + i - 1 : index + i;
+        if (pos < 0 || pos >= size)
+            return IntStream.EOF;
+        return buffer.get(pos) & 0xFF;
+    }
+
+    @Override
+    public int mark() {
+        // 整个文件都在映射区里, 不需要为 mark 保留任何东西
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public void seek(int index) {
+        this.index = Math.min(index, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.max(interval.a, 0);
+        int stop = Math.min(interval.b, size - 1);
+        if (stop < start)
+            return "";
+        byte[] bytes = new byte[stop - start + 1];
+        // 绝对位置读取, 不改动 buffer 自己的 position, 多个 token 并发取文本也没有问题
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, size - 1));
+    }
+}
@@ -0,0 +1,237 @@
+import org.bytedeco.llvm.LLVM.*;
+import static org.bytedeco.llvm.global.LLVM.*;
+import org.llvm4j.llvm4j.Module;
+
+import java.util.*;
+
+// 把只通过 load / store 访问的标量 alloca 提升成 SSA 值 (mem2reg)。
+// 在变量定值块的迭代支配边界上插入 phi,
+// 再沿支配树先序遍历做重命名: load 换成变量当前的值, store 只更新当前值, 最后删掉 alloca 和多余的 phi
+public class Mem2Reg implements FunctionPass {
+    private LLVMModuleRef modRef;
+    private AnalysisManager analyses;
+    private LLVMBuilderRef builder;
+    private int promotedCount = 0;
+
+    // 当前函数的控制流图和支配树
+    private ControlFlowGraph cfg;
+    private DominatorTree dominators;
+    // 插入的 phi -> 它对应的 alloca
+    private Map<LLVMValueRef, LLVMValueRef> phiVariables = new LinkedHashMap<>();
+    // 重命名时每个 alloca 的当前值, 栈顶是最近的定值
+    private Map<LLVMValueRef, Deque<LLVMValueRef>> currentValues = new HashMap<>();
+
+    public Mem2Reg(Module module) {
+        this(module, new AnalysisManager());
+    }
+
+    public Mem2Reg(Module module, AnalysisManager analyses) {
+        this.modRef = module.getRef();
+        this.analyses = analyses;
+    }
+
+    public int optimize() {
+        for (LLVMValueRef func = LLVMGetFirstFunction(modRef); func != null; func = LLVMGetNextFunction(func)) {
+            if (LLVMCountBasicBlocks(func) == 0)
+                continue;
+            run(func);
+        }
+        return promotedCount;
+    }
+
+    @Override
+    public String getName() {
+        return "Mem2Reg";
+    }
+
+    @Override
+    public boolean run(LLVMValueRef func) {
+        int before = promotedCount;
+        builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(modRef));
+        promote(func);
+        LLVMDisposeBuilder(builder);
+        return promotedCount > before;
+    }
+
+    @Override
+    public Set<Analysis> required() {
+        return EnumSet.of(Analysis.CFG, Analysis.DOMINATORS);
+    }
+
+    private void promote(LLVMValueRef func) {
+        List<LLVMValueRef> allocas = new ArrayList<>();
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
+            for (LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null; inst = LLVMGetNextInstruction(inst)) {
+                if (LLVMIsAAllocaInst(inst) != null && isPromotable(inst))
+                    allocas.add(inst);
+            }
+        }
+        if (allocas.isEmpty())
+            return;
+        // 只改指令不改跳转, 控制流图和支配树在这之后仍然有效
+        cfg = analyses.getCFG(func);
+        dominators = analyses.getDominators(func);
+        phiVariables.clear();
+        currentValues.clear();
+        for (LLVMValueRef alloca : allocas)
+            insertPhis(alloca);
+        rename();
+        fixUnreachable(func);
+        for (LLVMValueRef alloca : allocas)
+            LLVMInstructionEraseFromParent(alloca);
+        removeRedundantPhis();
+        promotedCount += allocas.size();
+    }
+
+    // 标量 (整数或者数组形参的指针), 并且只被 load 和 store 当作地址使用
+    private static boolean isPromotable(LLVMValueRef alloca) {
+        int kind = LLVMGetTypeKind(LLVMGetAllocatedType(alloca));
+        if (kind != LLVMIntegerTypeKind && kind != LLVMPointerTypeKind)
+            return false;
+        for (LLVMUseRef use = LLVMGetFirstUse(alloca); use != null; use = LLVMGetNextUse(use)) {
+            LLVMValueRef user = LLVMGetUser(use);
+            if (LLVMIsALoadInst(user) != null)
+                continue;
+            if (LLVMIsAStoreInst(user) != null && !LLVMGetOperand(user, 0).equals(alloca))
+                continue;
+            return false;
+        }
+        return true;
+    }
+
+    private void insertPhis(LLVMValueRef alloca) {
+        LLVMTypeRef type = LLVMGetAllocatedType(alloca);
+        String name = LLVMGetValueName(alloca).getString();
+        Set<LLVMBasicBlockRef> defBlocks = new HashSet<>();
+        for (LLVMUseRef use = LLVMGetFirstUse(alloca); use != null; use = LLVMGetNextUse(use)) {
+            LLVMValueRef user = LLVMGetUser(use);
+            LLVMBasicBlockRef block = LLVMGetInstructionParent(user);
+            if (LLVMIsAStoreInst(user) != null && cfg.isReachable(block))
+                defBlocks.add(block);
+        }
+        Deque<LLVMBasicBlockRef> worklist = new ArrayDeque<>(defBlocks);
+        Set<LLVMBasicBlockRef> hasPhi = new HashSet<>();
+        while (!worklist.isEmpty()) {
+            LLVMBasicBlockRef block = worklist.poll();
+            for (LLVMBasicBlockRef frontier : dominators.frontier(block)) {
+                if (!hasPhi.add(frontier))
+                    continue;
+                LLVMPositionBuilderBefore(builder, LLVMGetFirstInstruction(frontier));
+                phiVariables.put(LLVMBuildPhi(builder, type, name), alloca);
+                if (defBlocks.add(frontier))
+                    worklist.add(frontier);
+            }
+        }
+        // 没有初始化就读的局部变量按 0 处理, 后端不认识 undef
+        Deque<LLVMValueRef> values = new ArrayDeque<>();
+        values.push(LLVMConstNull(type));
+        currentValues.put(alloca, values);
+    }
+
+    // 沿支配树先序遍历, 用显式的栈代替递归; 第二次遇到一个块时弹出它压进去的定值
+    private void rename() {
+        Deque<LLVMBasicBlockRef> stack = new ArrayDeque<>();
+        Deque<List<LLVMValueRef>> pushedStack = new ArrayDeque<>();
+        Set<LLVMBasicBlockRef> entered = new HashSet<>();
+        stack.push(cfg.getEntry());
+        while (!stack.isEmpty()) {
+            LLVMBasicBlockRef block = stack.peek();
+            if (!entered.add(block)) {
+                stack.pop();
+                for (LLVMValueRef variable : pushedStack.pop())
+                    currentValues.get(variable).pop();
+                continue;
+            }
+            pushedStack.push(renameBlock(block));
+            for (LLVMBasicBlockRef child : dominators.children(block))
+                stack.push(child);
+        }
+    }
+
+    // 返回这个块里产生了新定值的 alloca, 离开块时要逐个弹出
+    private List<LLVMValueRef> renameBlock(LLVMBasicBlockRef block) {
+        List<LLVMValueRef> pushed = new ArrayList<>();
+        LLVMValueRef inst = LLVMGetFirstInstruction(block);
+        while (inst != null) {
+            LLVMValueRef next = LLVMGetNextInstruction(inst);
+            LLVMValueRef variable = phiVariables.get(inst);
+            if (variable != null) {
+                currentValues.get(variable).push(inst);
+                pushed.add(variable);
+            } else if (LLVMIsALoadInst(inst) != null && currentValues.containsKey(LLVMGetOperand(inst, 0))) {
+                LLVMReplaceAllUsesWith(inst, currentValues.get(LLVMGetOperand(inst, 0)).peek());
+                LLVMInstructionEraseFromParent(inst);
+            } else if (LLVMIsAStoreInst(inst) != null && currentValues.containsKey(LLVMGetOperand(inst, 1))) {
+                variable = LLVMGetOperand(inst, 1);
+                currentValues.get(variable).push(LLVMGetOperand(inst, 0));
+                pushed.add(variable);
+                LLVMInstructionEraseFromParent(inst);
+            }
+            inst = next;
+        }
+        for (LLVMBasicBlockRef successor : cfg.successors(block)) {
+            for (LLVMValueRef phi : PhiNodes.phisOf(successor)) {
+                LLVMValueRef variable = phiVariables.get(phi);
+                if (variable != null)
+                    PhiNodes.addIncoming(phi, currentValues.get(variable).peek(), block);
+            }
+        }
+        return pushed;
+    }
+
+    // 不可达的块不参与重命名: 里面的 load 换成 0, store 删掉; 可达块里的 phi 对来自不可达前驱的边也要有 incoming
+    private void fixUnreachable(LLVMValueRef func) {
+        for (LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(func); block != null; block = LLVMGetNextBasicBlock(block)) {
+            if (cfg.isReachable(block))
+                continue;
+            LLVMValueRef inst = LLVMGetFirstInstruction(block);
+            while (inst != null) {
+                LLVMValueRef next = LLVMGetNextInstruction(inst);
+                if (LLVMIsALoadInst(inst) != null && currentValues.containsKey(LLVMGetOperand(inst, 0))) {
+                    LLVMReplaceAllUsesWith(inst, LLVMConstNull(LLVMTypeOf(inst)));
+                    LLVMInstructionEraseFromParent(inst);
+                } else if (LLVMIsAStoreInst(inst) != null && currentValues.containsKey(LLVMGetOperand(inst, 1))) {
+                    LLVMInstructionEraseFromParent(inst);
+                }
+                inst = next;
+            }
+            for (LLVMBasicBlockRef successor : cfg.successors(block)) {
+                for (LLVMValueRef phi : PhiNodes.phisOf(successor)) {
+                    if (phiVariables.containsKey(phi))
+                        PhiNodes.addIncoming(phi, LLVMConstNull(LLVMTypeOf(phi)), block);
+                }
+            }
+        }
+    }
+
+    // 反复删掉没有用到的 phi, 以及除自身外所有 incoming 都是同一个值的 phi
+    private void removeRedundantPhis() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Iterator<LLVMValueRef> iterator = phiVariables.keySet().iterator();
+            while (iterator.hasNext()) {
+                LLVMValueRef phi = iterator.next();
+                LLVMValueRef same = null;
+                boolean unique = true;
+                for (int i = 0; i < LLVMCountIncoming(phi) && unique; i++) {
+                    LLVMValueRef value = LLVMGetIncomingValue(phi, i);
+                    if (value.equals(phi) || value.equals(same))
+                        continue;
+                    if (same == null)
+                        same = value;
+                    else
+                        unique = false;
+                }
+                if (LLVMGetFirstUse(phi) != null) {
+                    if (!unique || same == null)
+                        continue;
+                    LLVMReplaceAllUsesWith(phi, same);
+                }
+                LLVMInstructionEraseFromParent(phi);
+                iterator.remove();
+                changed = true;
+            }
+        }
+    }
+}
@@ -2,48 +2,58 @@ import org.llvm4j.llvm4j.Module;
 import org.llvm4j.optional.Option;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 public class OptimizedIR {
     private Module module;
-    private ConstantSpread constantSpread;
-    private DeleteUnused deleteUnused;
-    private EliminateDead eliminateDead;
+    private int optLevel;
+    private PhaseTimer timer;
+    private Set<String> storedGlobals = new HashSet<>();
 
     public OptimizedIR(Module module) {
-        this.module = module;
+        this(module, 2);
     }
 
-    private void optimize() {
-        boolean changed;
-        // int iteration = 0;
-        // final int MAX_ITERATIONS = 30;
-
-        do {
-            // iteration++;
-            // System.out.println("\n===== 开始优化迭代 #" + iteration + " =====");
-            constantSpread = new ConstantSpread(module);
-            int constReplaced = constantSpread.optimize();
-            // System.out.println("常量传播: 替换了 " + constReplaced + " 个常量");
-
-            eliminateDead = new EliminateDead(module);
-            int blocksEliminated = eliminateDead.optimize();
-            // System.out.println("死代码消除: 处理了 " + blocksEliminated + " 个基本块");
-
-            deleteUnused = new DeleteUnused(module);
-            int varsDeleted = deleteUnused.optimize();
-            // System.out.println("未使用变量消除: 删除了 " + varsDeleted + " 个变量");
+    public OptimizedIR(Module module, int optLevel) {
+        this.module = module;
+        this.optLevel = optLevel;
+        this.timer = PhaseTimer.DISABLED;
+    }
 
-            changed = (constReplaced > 0 || varsDeleted > 0 || blocksEliminated > 0);
-            // System.out.println("迭代 #" + iteration + " " +
-                    // (changed ? "产生了变化，继续优化" : "没有变化，优化完成"));
+    public void setTimer(PhaseTimer timer) {
+        this.timer = timer;
+    }
 
-        } while (changed/* || iteration < MAX_ITERATIONS */);
+    // 在模块之外被赋值的全局变量, 增量编译时由命中缓存的函数给出
+    public void setStoredGlobals(Set<String> storedGlobals) {
+        this.storedGlobals = storedGlobals;
+    }
 
-        // System.out.println("\n优化完成，共执行 " + iteration + " 轮迭代");
+    public void optimize() {
+        PassManager passManager = new PassManager(module);
+        passManager.setTimer(timer);
+        AnalysisManager analyses = passManager.getAnalyses();
+        if (optLevel == 0) {
+            // IR 生成会在 return 之后继续往同一个块里放指令, 至少要清理掉这些才是合法的 IR
+            passManager.addOnce(new EliminateDead(module, analyses));
+        } else {
+            // 先把标量变量提升成 SSA 值, 之后的优化和后端都直接处理 SSA 值
+            if (optLevel >= 2)
+                passManager.addOnce(new Mem2Reg(module, analyses));
+            ConstantSpread constantSpread = new ConstantSpread(module, analyses);
+            constantSpread.addStoredGlobals(storedGlobals);
+            passManager.addRepeated(constantSpread);
+            passManager.addRepeated(new EliminateDead(module, analyses));
+            passManager.addRepeated(new DeleteUnused(module));
+        }
+        passManager.run();
     }
 
     public void generateOptimizedIR(File outputFile) {
         optimize();
+        var phase = timer.begin("write");
         module.dump(Option.of(outputFile));
+        timer.end(phase);
     }
 }
\ No newline at end of file
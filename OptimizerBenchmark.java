@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// 优化器基准测试: 比较常量传播的工作表按逆后序取和按 FIFO 取时, 求解器处理块的次数、重复入队的次数和耗时。
+// 每次测量都重新生成 IR 并做 mem2reg, 只计常量传播本身的时间。测量方式和 FrontEndBenchmark 一样先预热再取平均值和最小值
+public class OptimizerBenchmark {
+    private static class Shape {
+        private String name;
+        private int[] sizes;
+        private IntFunction<String> generator;
+
+        private Shape(String name, int[] sizes, IntFunction<String> generator) {
+            this.name = name;
+            this.sizes = sizes;
+            this.generator = generator;
+        }
+    }
+
+    private static volatile Object sink;
+
+    private int warmup;
+    private int iterations;
+
+    public OptimizerBenchmark(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    // usage: --bench-opt [warmup] [iterations]
+    public static void main(String[] args) throws InterruptedException {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        OptimizerBenchmark benchmark = new OptimizerBenchmark(warmup, iterations);
+        // 深层嵌套的输入在 visitor 里是深递归, 放到栈足够大的线程里跑
+        Thread thread = new Thread(null, benchmark::runAll, "optimizer-benchmark", 1L << 28);
+        thread.start();
+        thread.join();
+    }
+
+    public void runAll() {
+        List<Shape> shapes = new ArrayList<>();
+        shapes.add(new Shape("loops", new int[] { 4, 8, 16 }, OptimizerBenchmark::loops));
+        shapes.add(new Shape("nested", new int[] { 250, 1000, 4000 },
+                lines -> new SysYGenerator(42, lines, SysYGenerator.Profile.NESTED).generate()));
+        shapes.add(new Shape("balanced", new int[] { 250, 1000, 4000 },
+                lines -> new SysYGenerator(42, lines, SysYGenerator.Profile.BALANCED).generate()));
+        System.out.printf("%-10s %6s  %-17s %10s %10s %12s %12s%n", "shape", "size", "order", "visits", "dups",
+                "mean us", "min us");
+        for (Shape shape : shapes) {
+            for (int size : shape.sizes) {
+                IdentTable identTable = new IdentTable();
+                ParseTree tree = parse(shape.generator.apply(size), identTable);
+                for (Worklist.Order order : new Worklist.Order[] { Worklist.Order.FIFO, Worklist.Order.REVERSE_POSTORDER })
+                    runOrder(shape.name, size, tree, identTable, order);
+            }
+        }
+    }
+
+    private void runOrder(String name, int size, ParseTree tree, IdentTable identTable, Worklist.Order order) {
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        int visits = 0;
+        int duplicates = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            VisitorForIR visitorForIR = new VisitorForIR(identTable);
+            try {
+                visitorForIR.visit(tree);
+                new Mem2Reg(visitorForIR.getModule()).optimize();
+                ConstantSpread constantSpread = new ConstantSpread(visitorForIR.getModule());
+                constantSpread.setOrder(order);
+                long start = System.nanoTime();
+                sink = constantSpread.optimize();
+                long elapsed = System.nanoTime() - start;
+                visits = constantSpread.getIterations();
+                duplicates = constantSpread.getDuplicates();
+                if (i >= warmup) {
+                    total += elapsed;
+                    min = Math.min(min, elapsed);
+                }
+            } finally {
+                visitorForIR.dispose();
+            }
+        }
+        System.out.printf("%-10s %6d  %-17s %10d %10d %12.1f %12.1f%n", name, size, order.name().toLowerCase(), visits,
+                duplicates, total / iterations / 1e3, min / 1e3);
+    }
+
+    private static ParseTree parse(String source, IdentTable identTable) {
+        SysYLexer sysYLexer = new SysYLexer(CharStreams.fromString(source));
+        sysYLexer.removeErrorListeners();
+        sysYLexer.setTokenFactory(new IdentTokenFactory(identTable, false));
+        SysYParser sysYParser = new SysYParser(new CommonTokenStream(sysYLexer));
+        sysYParser.removeErrorListeners();
+        return sysYParser.program();
+    }
+
+    // depth 层嵌套的 while, 每层有自己的计数变量和一个沿回边传回来的常量, 外层循环之后还有一串顺序的循环
+    private static String loops(int depth) {
+        StringBuilder sb = new StringBuilder("int main() {\n    int s = 0;\n    int k = 3;\n");
+        for (int i = 0; i < depth; i++) {
+            sb.append("int i").append(i).append(" = 0;\n");
+            sb.append("int c").append(i).append(" = ").append(i).append(";\n");
+            sb.append("while (i").append(i).append(" < 4) {\n");
+            sb.append("if (c").append(i).append(" != ").append(i).append(") s = s + 1;\n");
+            sb.append("c").append(i).append(" = c").append(i).append(" * 1 + k - 3;\n");
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            sb.append("s = s + c").append(i).append(";\n");
+            sb.append("i").append(i).append(" = i").append(i).append(" + 1;\n");
+            sb.append("}\n");
+        }
+        for (int i = 0; i < depth; i++) {
+            sb.append("int j").append(i).append(" = 0;\n");
+            sb.append("while (j").append(i).append(" < 2) { s = s + k; j").append(i).append(" = j").append(i).append(" + 1; }\n");
+        }
+        sb.append("    return s;\n}\n");
+        return sb.toString();
+    }
+}
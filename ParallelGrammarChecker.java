@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// 两阶段的并行语义检查, 输出与顺序执行 VisitorForGrammar 完全相同。
+// 第一阶段顺序扫描 compUnit, 给每个全局定义编号并把全局变量的类型和函数签名登记到 GlobalScope。
+// 第二阶段把每个顶层定义 (decl 或 funcDef) 作为一项放到 fork-join 池里检查, 每项有自己的 VisitorForGrammar
+// 和局部作用域, 全局符号按编号只看得到它之前的定义。
+// VisitorForGrammar 的 forOp 标志会从上一项带到下一项, 并行时先假设入口为 true (几乎所有函数里都有
+// 数字或运算, 会把它置为 true), 合并时按源码顺序核对, 假设不成立的项用正确的入口状态重新检查一遍。
+public class ParallelGrammarChecker {
+    private static class Item {
+        private ParserRuleContext ctx;
+        private int firstSeq;
+        private boolean entryForOp;
+        private List<String> errors;
+        private boolean exitForOp;
+
+        private Item(ParserRuleContext ctx, int firstSeq) {
+            this.ctx = ctx;
+            this.firstSeq = firstSeq;
+        }
+    }
+
+    private IdentTable identTable;
+    private ForkJoinPool pool;
+    private int rechecked;
+
+    public ParallelGrammarChecker(IdentTable identTable, ForkJoinPool pool) {
+        this.identTable = identTable;
+        this.pool = pool;
+    }
+
+    public List<String> check(SysYParser.ProgramContext program) {
+        // 第一阶段: 编号并登记全局符号
+        GlobalScope globals = new GlobalScope();
+        List<Item> items = new ArrayList<>();
+        int seq = 0;
+        int functions = 0;
+        for (ParseTree child : program.compUnit().children) {
+            if (child instanceof SysYParser.DeclContext) {
+                SysYParser.DeclContext decl = (SysYParser.DeclContext) child;
+                items.add(new Item(decl, seq));
+                for (SysYParser.ConstDefContext constDef : decl.constDef())
+                    globals.register(ident(constDef.IDENT().getSymbol()), varType(constDef.constExp().size()), seq++);
+                for (SysYParser.VarDefContext varDef : decl.varDef())
+                    globals.register(ident(varDef.IDENT().getSymbol()), varType(varDef.constExp().size()), seq++);
+            } else if (child instanceof SysYParser.FuncDefContext) {
+                SysYParser.FuncDefContext funcDef = (SysYParser.FuncDefContext) child;
+                items.add(new Item(funcDef, seq));
+                int name = ident(funcDef.IDENT().getSymbol());
+                if (!globals.contains(name))
+                    globals.register(name, VisitorForGrammar.functionTypeOf(funcDef, identTable), seq);
+                seq++;
+                functions++;
+            }
+        }
+
+        // 第二阶段: 各项并行检查
+        if (functions > 1) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                item.entryForOp = i > 0;
+                tasks.add(pool.submit(() -> checkItem(item, globals)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        // 按源码顺序合并, 同时核对 forOp 的入口状态
+        List<String> errors = new ArrayList<>();
+        boolean forOp = false;
+        for (Item item : items) {
+            if (item.errors == null || item.entryForOp != forOp) {
+                if (item.errors != null)
+                    rechecked++;
+                item.entryForOp = forOp;
+                checkItem(item, globals);
+            }
+            errors.addAll(item.errors);
+            forOp = item.exitForOp;
+        }
+        return errors;
+    }
+
+    // 入口状态猜错而重新检查的项数
+    public int getRechecked() {
+        return rechecked;
+    }
+
+    private void checkItem(Item item, GlobalScope globals) {
+        VisitorForGrammar visitor = new VisitorForGrammar(identTable, globals, item.firstSeq, item.entryForOp);
+        visitor.visit(item.ctx);
+        item.errors = visitor.getErrors();
+        item.exitForOp = visitor.isForOp();
+    }
+
+    private Type varType(int dimensions) {
+        return dimensions == 0 ? IntType.getI32() : TypeFactory.getArrayType(IntType.getI32(), dimensions);
+    }
+
+    private int ident(org.antlr.v4.runtime.Token token) {
+        if (token instanceof IdentToken && ((IdentToken) token).getIdentTable() == identTable)
+            return ((IdentToken) token).getIdent();
+        return identTable.intern(token.getText());
+    }
+}
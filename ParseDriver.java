@@ -0,0 +1,120 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// 词法分析和语法分析流水线: 词法器按需产生 token, 语法分析器边读边分析,
+// 不再先 getAllTokens() 把整个 token 列表建好
+public class ParseDriver {
+    private LexerErrorListener lexerErrorListener = new LexerErrorListener();
+    private ParserErrorListener parserErrorListener = new ParserErrorListener();
+    private boolean unbuffered;
+    private boolean mapped;
+    private PhaseTimer timer;
+    private IdentTable identTable = new IdentTable();
+
+    public ParseDriver(boolean unbuffered, boolean mapped) {
+        this.unbuffered = unbuffered;
+        this.mapped = mapped;
+    }
+
+    public ParseTree parse(String sourcePath) throws IOException {
+        if (mapped)
+            return parse(MappedCharStream.fromFileName(sourcePath));
+        if (!unbuffered)
+            return parse(CharStreams.fromFileName(sourcePath));
+        try (InputStream in = new FileInputStream(sourcePath)) {
+            return parse(new UnbufferedCharStream(in));
+        }
+    }
+
+    // 计时时先把 token 全部取出来, 才能把词法分析和语法分析的时间分开; 不计时还是边读边分析
+    public void setTimer(PhaseTimer timer) {
+        this.timer = timer;
+    }
+
+    public ParseTree parse(CharStream input) {
+        SysYLexer sysYLexer = newLexer(input);
+        TokenStream tokens;
+        if (unbuffered) {
+            // 字符流不保留已消费的内容, token 文本必须在创建时拷贝出来;
+            // 内存映射的字符流一直保留整个文件, 仍然可以等到用时再取文本
+            sysYLexer.setTokenFactory(new IdentTokenFactory(identTable, input instanceof UnbufferedCharStream));
+            tokens = new UnbufferedTokenStream<>(sysYLexer);
+        } else {
+            sysYLexer.setTokenFactory(new IdentTokenFactory(identTable, false));
+            tokens = new CommonTokenStream(sysYLexer);
+            if (timer != null) {
+                var phase = timer.begin("lex");
+                ((CommonTokenStream) tokens).fill();
+                timer.end(phase);
+            }
+        }
+        if (timer == null)
+            return parseTokens(tokens);
+        // 无缓冲模式下词法分析没法单独计时, 算在 parse 里
+        var phase = timer.begin("parse");
+        ParseTree tree = parseTokens(tokens);
+        timer.end(phase);
+        return tree;
+    }
+
+    private ParseTree parseTokens(TokenStream tokens) {
+        SysYParser sysYParser = new SysYParser(tokens);
+        sysYParser.removeErrorListeners();
+        if (unbuffered) {
+            // 无缓冲的 token 流不能回退重新分析, 直接用完整 LL
+            sysYParser.addErrorListener(parserErrorListener);
+            sysYParser.setErrorHandler(new UnbufferedErrorStrategy());
+            return sysYParser.program();
+        }
+        // 先用更快的 SLL 预测, 遇到第一个错误就放弃; 对能通过 SLL 的输入, 结果与 LL 完全相同
+        sysYParser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        sysYParser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return sysYParser.program();
+        } catch (ParseCancellationException e) {
+            // SLL 失败 (真正的语法错误或 SLL 力所不及), 回到开头用 LL 重新分析并报告错误
+            // token 已经缓存在流里, 词法器不会重新运行, 词法错误不会重复
+            sysYParser.reset();
+            sysYParser.addErrorListener(parserErrorListener);
+            sysYParser.setErrorHandler(new DefaultErrorStrategy());
+            sysYParser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return sysYParser.program();
+        }
+    }
+
+    // 生成的构造函数把解释器指向静态共享的 DFA 和 PredictionContextCache, 所有实例 (包括 ParserWarmup 里的)
+    // 都用同一份缓存; 不要在这里换成新的 ATNSimulator, 否则预热和之前编译积累的缓存都会丢掉
+    public SysYLexer newLexer(CharStream input) {
+        SysYLexer sysYLexer = new SysYLexer(input);
+        sysYLexer.removeErrorListeners();
+        sysYLexer.addErrorListener(lexerErrorListener);
+        return sysYLexer;
+    }
+
+    // 本次编译的标识符驻留表, 后面的 visitor 要用同一个表才能直接用 token 上的 id
+    public IdentTable getIdentTable() {
+        return identTable;
+    }
+
+    public List<String> getLexerErrors() {
+        return lexerErrorListener.getErrors();
+    }
+
+    public List<String> getParserErrors() {
+        return parserErrorListener.getErrors();
+    }
+}
@@ -0,0 +1,83 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.llvm4j.llvm4j.Value;
+
+// 语法树上的 exp 和 cond 结点, VisitorForIR 和 FusedVisitor 共用, 变量和函数调用由它们按各自的符号表处理
+public abstract class ParseTreeExp implements ExpTree<ParserRuleContext> {
+    protected IREmitter emitter;
+
+    protected ParseTreeExp(IREmitter emitter) {
+        this.emitter = emitter;
+    }
+
+    protected abstract Value lValValue(SysYParser.LValContext ctx);
+
+    // 不是常量时返回 null
+    protected abstract Integer lValConstant(SysYParser.LValContext ctx);
+
+    // ctx 是函数调用, void 函数返回 null
+    protected abstract Value call(SysYParser.ExpContext ctx);
+
+    @Override
+    public ParserRuleContext unwrap(ParserRuleContext node) {
+        while (true) {
+            if (node instanceof SysYParser.CondContext && ((SysYParser.CondContext) node).exp() != null) {
+                node = ((SysYParser.CondContext) node).exp();
+            } else if (node instanceof SysYParser.ExpContext && ((SysYParser.ExpContext) node).L_PAREN() != null
+                    && ((SysYParser.ExpContext) node).exp().size() == 1) {
+                node = ((SysYParser.ExpContext) node).exp(0);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    @Override
+    public int arity(ParserRuleContext node) {
+        if (node instanceof SysYParser.CondContext)
+            return 2;
+        SysYParser.ExpContext ctx = (SysYParser.ExpContext) node;
+        if (ctx.unaryOp() != null)
+            return 1;
+        return ctx.exp().size() == 2 ? 2 : 0;
+    }
+
+    @Override
+    public int op(ParserRuleContext node) {
+        if (node instanceof SysYParser.ExpContext && ((SysYParser.ExpContext) node).unaryOp() != null)
+            return ((TerminalNode) ((SysYParser.ExpContext) node).unaryOp().getChild(0)).getSymbol().getType();
+        return ((TerminalNode) node.getChild(1)).getSymbol().getType();
+    }
+
+    @Override
+    public ParserRuleContext operand(ParserRuleContext node, int index) {
+        if (node instanceof SysYParser.CondContext)
+            return ((SysYParser.CondContext) node).cond(index);
+        return ((SysYParser.ExpContext) node).exp(index);
+    }
+
+    @Override
+    public Value leafValue(ParserRuleContext node) {
+        SysYParser.ExpContext ctx = (SysYParser.ExpContext) node;
+        if (ctx.number() != null)
+            return emitter.constant(IREmitter.parseNumber(ctx.number().getText()));
+        if (ctx.lVal() != null)
+            return lValValue(ctx.lVal());
+        return call(ctx);
+    }
+
+    @Override
+    public Integer leafConstant(ParserRuleContext node) {
+        SysYParser.ExpContext ctx = (SysYParser.ExpContext) node;
+        if (ctx.number() != null)
+            return IREmitter.parseNumber(ctx.number().getText());
+        if (ctx.lVal() != null)
+            return lValConstant(ctx.lVal());
+        return null;
+    }
+
+    @Override
+    public RuntimeException invalid(ParserRuleContext node) {
+        return new IllegalStateException("cannot generate IR for " + node.getText());
+    }
+}
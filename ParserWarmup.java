@@ -0,0 +1,119 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.dfa.DFA;
+
+// 预热词法/语法分析器的 DFA 缓存。
+// 生成的 SysYLexer/SysYParser 把 DFA (_decisionToDFA) 和 PredictionContextCache 放在静态字段里,
+// 所有实例共享同一份, ANTLR 更新它们时自己加锁, 所以多线程编译也是安全的。
+// 预热就是先用内置的代表性程序把这些缓存填起来, 之后第一个真正的编译就能直接命中。
+public class ParserWarmup {
+    private static final String[] CORPUS = {
+            """
+            const int N = 10, M = 0x1F, K = 017;
+            int g, h = 3;
+            int arr[10][10];
+            const int table[3] = {1, 2, 3};
+
+            int add(int a, int b) {
+                return a + b;
+            }
+
+            void fill(int a[], int n) {
+                int i = 0;
+                while (i < n) {
+                    a[i] = i * 2;
+                    i = i + 1;
+                }
+                return;
+            }
+
+            int main() {
+                int x = 1, y = 2, z;
+                int buf[4] = {0};
+                z = add(x, y) * (x - y) / 3 % 2;
+                // 注释
+                /* 多行
+                   注释 */
+                if (x < y && y <= z || !(x == 0) && z != 1) {
+                    x = -x + +y;
+                } else if (x > y || x >= z) {
+                    y = add(add(1, 2), table[1]);
+                } else {
+                    ;
+                }
+                while (1) {
+                    if (g >= N) break;
+                    g = g + 1;
+                    if (g % 2 == 0) continue;
+                    arr[g][g] = g;
+                }
+                fill(buf, 4);
+                {
+                    int x = 3;
+                    h = x;
+                }
+                return x + y + z + arr[1][1];
+            }
+            """,
+            """
+            int f(int n) {
+                if (n <= 1) return 1;
+                return n * f(n - 1);
+            }
+
+            int main() {
+                int a = 1;
+                int b = ((a + 2) * (a - 3) + (a * 4 - 5) / 6) % 7;
+                int c = a + b * a - b / a % b + a * (b + a * (b - a));
+                if (((a < b) == (b < c)) != (a > c)) {
+                    a = f(b) + f(c);
+                }
+                while (a > 0 && b > 0 || c > 0) {
+                    a = a - 1;
+                    b = b - 1;
+                    c = c - 1;
+                }
+                return a;
+            }
+            """,
+    };
+
+    private static volatile boolean warmed = false;
+
+    public static synchronized void warmUp() {
+        if (warmed)
+            return;
+        for (String program : CORPUS) {
+            // SLL 和 LL 两种预测模式都走一遍, ParseDriver 的两阶段分析都能命中缓存
+            parse(program, PredictionMode.SLL);
+            parse(program, PredictionMode.LL);
+        }
+        warmed = true;
+    }
+
+    private static void parse(String program, PredictionMode mode) {
+        SysYLexer sysYLexer = new SysYLexer(CharStreams.fromString(program));
+        sysYLexer.removeErrorListeners();
+        SysYParser sysYParser = new SysYParser(new CommonTokenStream(sysYLexer));
+        sysYParser.removeErrorListeners();
+        sysYParser.getInterpreter().setPredictionMode(mode);
+        sysYParser.program();
+    }
+
+    public static boolean isWarmed() {
+        return warmed;
+    }
+
+    // 共享 DFA 中已经缓存的状态数, 用来确认预热是否生效
+    public static int cachedDFAStates() {
+        int count = 0;
+        for (DFA dfa : SysYParser._decisionToDFA) {
+            count += dfa.states.size();
+        }
+        for (DFA dfa : SysYLexer._decisionToDFA) {
+            count += dfa.states.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,80 @@
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.llvm4j.llvm4j.Module;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// 按函数调度优化: 先对每个函数跑一遍 oncePasses, 再循环跑 repeatedPasses。
+// 每一轮只处理上一轮被某个 pass 修改过的函数, 没有变化的函数不再重复扫描, 直到所有函数都不再变化。
+// 分析结果由 AnalysisManager 按函数缓存: 运行 pass 前先算好它 required() 的分析, 修改了函数之后清掉它 invalidated() 的分析
+public class PassManager {
+    private LLVMModuleRef modRef;
+    private List<FunctionPass> oncePasses = new ArrayList<>();
+    private List<FunctionPass> repeatedPasses = new ArrayList<>();
+    private AnalysisManager analyses = new AnalysisManager();
+    private PhaseTimer timer;
+    private int iterations = 0;
+
+    public PassManager(Module module) {
+        this.modRef = module.getRef();
+        this.timer = PhaseTimer.DISABLED;
+    }
+
+    public void setTimer(PhaseTimer timer) {
+        this.timer = timer;
+    }
+
+    public void addOnce(FunctionPass pass) {
+        oncePasses.add(pass);
+    }
+
+    public void addRepeated(FunctionPass pass) {
+        repeatedPasses.add(pass);
+    }
+
+    public void run() {
+        Set<LLVMValueRef> functions = new LinkedHashSet<>();
+        for (LLVMValueRef func = LLVM.LLVMGetFirstFunction(modRef); func != null; func = LLVM.LLVMGetNextFunction(func)) {
+            if (LLVM.LLVMCountBasicBlocks(func) > 0)
+                functions.add(func);
+        }
+        for (FunctionPass pass : oncePasses)
+            runPass(pass, functions, 0);
+        Set<LLVMValueRef> dirty = functions;
+        while (!dirty.isEmpty() && !repeatedPasses.isEmpty()) {
+            iterations++;
+            Set<LLVMValueRef> changed = new LinkedHashSet<>();
+            for (FunctionPass pass : repeatedPasses)
+                changed.addAll(runPass(pass, dirty, iterations));
+            dirty = changed;
+        }
+    }
+
+    // 返回被修改的函数
+    private Set<LLVMValueRef> runPass(FunctionPass pass, Set<LLVMValueRef> functions, int iteration) {
+        Set<LLVMValueRef> changed = new LinkedHashSet<>();
+        var phase = timer.begin(pass.getName(), iteration);
+        for (LLVMValueRef func : functions) {
+            analyses.prepare(func, pass.required());
+            if (pass.run(func)) {
+                analyses.invalidate(func, pass.invalidated());
+                changed.add(func);
+            }
+        }
+        timer.end(phase);
+        return changed;
+    }
+
+    // 传给 pass 的构造函数, 让它们共用缓存的分析
+    public AnalysisManager getAnalyses() {
+        return analyses;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+}
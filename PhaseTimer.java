@@ -0,0 +1,130 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.EventType;
+
+// 记录一次编译中每个阶段的耗时, 同时发出 CompilePhaseEvent 给 JFR。
+// 没有要求计时报告时不保存阶段, 只在 JFR 正在记录这个事件时发出事件; 两者都不需要时 begin 返回 null, 不分配对象
+public class PhaseTimer {
+    public class Phase {
+        private String name;
+        private int iteration;
+        private long start;
+        private long nanos;
+        private CompilePhaseEvent event;
+
+        private Phase(String name, int iteration) {
+            this.name = name;
+            this.iteration = iteration;
+            this.event = new CompilePhaseEvent();
+            this.event.phase = name;
+            this.event.iteration = iteration;
+            this.event.source = source;
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getIteration() {
+            return iteration;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private static final EventType PHASE_EVENT = EventType.getEventType(CompilePhaseEvent.class);
+
+    public static final PhaseTimer DISABLED = new PhaseTimer(null, false);
+
+    private String source;
+    private boolean report;
+    private List<Phase> phases = new ArrayList<>();
+
+    public PhaseTimer(String source) {
+        this(source, true);
+    }
+
+    // report 为 false 时只发 JFR 事件
+    public PhaseTimer(String source, boolean report) {
+        this.source = source;
+        this.report = report;
+    }
+
+    public Phase begin(String name) {
+        return begin(name, 0);
+    }
+
+    public Phase begin(String name, int iteration) {
+        if (!report && !PHASE_EVENT.isEnabled())
+            return null;
+        return new Phase(name, iteration);
+    }
+
+    public void end(Phase phase) {
+        if (phase == null)
+            return;
+        phase.nanos = System.nanoTime() - phase.start;
+        phase.event.commit();
+        if (report)
+            phases.add(phase);
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    public void report(PrintStream out, boolean json) {
+        if (json)
+            reportJson(out);
+        else
+            reportText(out);
+    }
+
+    private void reportText(PrintStream out) {
+        out.println("time report for " + source);
+        long total = 0;
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for (Phase phase : phases) {
+            String name = phase.iteration > 0 ? phase.name + " #" + phase.iteration : phase.name;
+            out.printf("  %-28s %10.3f ms%n", name, phase.nanos / 1e6);
+            totals.merge(phase.name, phase.nanos, Long::sum);
+            total += phase.nanos;
+        }
+        // 优化遍会跑多轮, 再按阶段汇总一次
+        out.println("  ---");
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            out.printf("  %-28s %10.3f ms%n", entry.getKey(), entry.getValue() / 1e6);
+        }
+        out.printf("  %-28s %10.3f ms%n", "total", total / 1e6);
+    }
+
+    private void reportJson(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"source\":\"").append(escape(source)).append("\",\"phases\":[");
+        long total = 0;
+        for (int i = 0; i < phases.size(); i++) {
+            Phase phase = phases.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"phase\":\"").append(escape(phase.name)).append("\",\"iteration\":").append(phase.iteration)
+                    .append(",\"nanos\":").append(phase.nanos).append('}');
+            total += phase.nanos;
+        }
+        sb.append("],\"totalNanos\":").append(total).append('}');
+        out.println(sb);
+    }
+
+    private static String escape(String text) {
+        if (text == null)
+            return "";
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,77 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.*;
+import static org.bytedeco.llvm.global.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 修改 phi 的 incoming。C API 没有删除或替换 incoming 的接口, 只能在原处建一个新的 phi 替换旧的
+public class PhiNodes {
+    private PhiNodes() {
+    }
+
+    public static void addIncoming(LLVMValueRef phi, LLVMValueRef value, LLVMBasicBlockRef block) {
+        LLVMAddIncoming(phi, new PointerPointer<>(value), new PointerPointer<>(LLVMBasicBlockAsValue(block)), 1);
+    }
+
+    // block 开头的所有 phi
+    public static List<LLVMValueRef> phisOf(LLVMBasicBlockRef block) {
+        List<LLVMValueRef> phis = new ArrayList<>();
+        for (LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null && LLVMIsAPHINode(inst) != null; inst = LLVMGetNextInstruction(inst))
+            phis.add(inst);
+        return phis;
+    }
+
+    // 删掉 block 里各个 phi 来自 pred 的 incoming, 在 pred 到 block 的边被删掉时调用
+    public static void removeIncoming(LLVMBasicBlockRef block, LLVMBasicBlockRef pred) {
+        for (LLVMValueRef phi : phisOf(block))
+            rebuild(phi, pred, null);
+    }
+
+    // 把 block 里各个 phi 来自 oldPred 的 incoming 改成来自 newPred, 在 oldPred 被合并进 newPred 时调用
+    public static void replaceIncoming(LLVMBasicBlockRef block, LLVMBasicBlockRef oldPred, LLVMBasicBlockRef newPred) {
+        for (LLVMValueRef phi : phisOf(block))
+            rebuild(phi, oldPred, newPred);
+    }
+
+    // 只剩一个 incoming 的 phi 直接换成那个值
+    public static void replaceSingleIncoming(LLVMBasicBlockRef block) {
+        for (LLVMValueRef phi : phisOf(block)) {
+            if (LLVMCountIncoming(phi) == 1) {
+                LLVMReplaceAllUsesWith(phi, LLVMGetIncomingValue(phi, 0));
+                LLVMInstructionEraseFromParent(phi);
+            }
+        }
+    }
+
+    // newPred 为 null 时删掉来自 oldPred 的 incoming
+    private static void rebuild(LLVMValueRef phi, LLVMBasicBlockRef oldPred, LLVMBasicBlockRef newPred) {
+        int count = LLVMCountIncoming(phi);
+        List<LLVMValueRef> values = new ArrayList<>();
+        List<LLVMBasicBlockRef> blocks = new ArrayList<>();
+        boolean found = false;
+        for (int i = 0; i < count; i++) {
+            LLVMBasicBlockRef block = LLVMGetIncomingBlock(phi, i);
+            if (block.equals(oldPred)) {
+                found = true;
+                if (newPred == null)
+                    continue;
+                block = newPred;
+            }
+            values.add(LLVMGetIncomingValue(phi, i));
+            blocks.add(block);
+        }
+        if (!found)
+            return;
+        String name = LLVMGetValueName(phi).getString();
+        LLVMBuilderRef builder = LLVMCreateBuilderInContext(LLVMGetTypeContext(LLVMTypeOf(phi)));
+        LLVMPositionBuilderBefore(builder, phi);
+        LLVMValueRef newPhi = LLVMBuildPhi(builder, LLVMTypeOf(phi), "");
+        LLVMDisposeBuilder(builder);
+        for (int i = 0; i < values.size(); i++)
+            addIncoming(newPhi, values.get(i), blocks.get(i));
+        LLVMReplaceAllUsesWith(phi, newPhi);
+        LLVMInstructionEraseFromParent(phi);
+        LLVMSetValueName2(newPhi, name, name.length());
+    }
+}
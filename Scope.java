@@ -1,47 +1,51 @@
-import java.util.Stack;
-
 public class Scope {
-    private Stack<SymbolTable> stack;
+    private SymbolTable<Type> symbolTable;
+    // 并行检查时全局层由共享的 GlobalScope 提供, symbolTable 里只放局部符号
+    private GlobalScope globals;
+    private int limit;
 
     public Scope() {
-        this.stack = new Stack<>();
-        this.stack.push(new SymbolTable());
+        this.symbolTable = new SymbolTable<>();
+    }
+
+    public Scope(GlobalScope globals, int limit) {
+        this.symbolTable = new SymbolTable<>();
+        this.globals = globals;
+        this.limit = limit;
     }
 
     public void enterNewScope() {
-        this.stack.push(new SymbolTable());
+        this.symbolTable.enterScope();
     }
 
     public void exitScope() {
-        this.stack.pop();
+        this.symbolTable.exitScope();
     }
 
-    public void put(String name, Type type) {
-        this.stack.peek().put(name, type);
+    public void put(int name, Type type) {
+        if (this.globals != null && this.symbolTable.depth() == 0) {
+            // 全局定义已经登记过了, 这里只是让它从此可见
+            this.limit = Math.max(this.limit, this.globals.getSeq(name) + 1);
+            return;
+        }
+        this.symbolTable.put(name, type);
     }
 
-    public Type getType(String name) {
-        for (int i = this.stack.size() - 1; i >= 0; i--) {
-            SymbolTable symbolTable = this.stack.get(i);
-            if (symbolTable.contains(name)) {
-                return symbolTable.getType(name);
-            }
-        }
-        return null;
+    public Type getType(int name) {
+        Type type = this.symbolTable.get(name);
+        if (type == null && this.globals != null)
+            type = this.globals.getType(name, this.limit);
+        return type;
     }
 
-    public boolean contains(String name) {
-        for (int i = this.stack.size() - 1; i >= 0; i--) {
-            SymbolTable symbolTable = this.stack.get(i);
-            if (symbolTable.contains(name)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean contains(int name) {
+        return getType(name) != null;
     }
 
-    public boolean containsInCurScope(String name) {
-        return this.stack.peek().contains(name);
+    public boolean containsInCurScope(int name) {
+        if (this.globals != null && this.symbolTable.depth() == 0)
+            return this.globals.getType(name, this.limit) != null;
+        return this.symbolTable.containsInCurScope(name);
     }
 
 }
@@ -1,22 +1,86 @@
-import java.util.HashMap;
+import java.util.Arrays;
 
-public class SymbolTable {
-    private HashMap<String, Type> symbolTable;
+// 扁平的作用域符号表: 一个 IntHashMap 从标识符 id (见 IdentTable) 映射到它当前可见的定义, 每个定义链着被它遮蔽的外层定义。
+// 进入作用域只记下撤销日志的位置, 退出作用域时按日志把这一层的定义弹掉并恢复被遮蔽的定义,
+// 所以查找和定义都是 O(1), 与嵌套深度无关。
+public class SymbolTable<V> {
+    private static class Entry<V> {
+        private V value;
+        private int depth;
+        private Entry<V> shadowed;
+
+        private Entry(V value, int depth, Entry<V> shadowed) {
+            this.value = value;
+            this.depth = depth;
+            this.shadowed = shadowed;
+        }
+    }
+
+    private IntHashMap<Entry<V>> symbolTable;
+    private int[] undoLog;
+    private int undoSize;
+    private int[] scopeMarks;
+    private int depth;
 
     public SymbolTable() {
-        this.symbolTable = new HashMap<>();
+        this.symbolTable = new IntHashMap<>();
+        this.undoLog = new int[16];
+        this.undoSize = 0;
+        this.scopeMarks = new int[8];
+        this.depth = 0;
     }
 
-    public void put(String name, Type type) {
-        this.symbolTable.put(name, type);
+    public void enterScope() {
+        if (this.depth == this.scopeMarks.length)
+            this.scopeMarks = Arrays.copyOf(this.scopeMarks, this.depth * 2);
+        this.scopeMarks[this.depth] = this.undoSize;
+        this.depth++;
     }
 
-    public Type getType(String name) {
-        return this.symbolTable.get(name);
+    public void exitScope() {
+        int mark = this.scopeMarks[this.depth - 1];
+        for (int i = this.undoSize - 1; i >= mark; i--) {
+            int name = this.undoLog[i];
+            Entry<V> entry = this.symbolTable.get(name);
+            if (entry.shadowed == null)
+                this.symbolTable.remove(name);
+            else
+                this.symbolTable.put(name, entry.shadowed);
+        }
+        this.undoSize = mark;
+        this.depth--;
     }
 
-    public boolean contains(String name) {
+    public void put(int name, V value) {
+        Entry<V> entry = this.symbolTable.get(name);
+        // 同一层里重复定义直接覆盖, 不再压日志
+        if (entry != null && entry.depth == this.depth) {
+            entry.value = value;
+            return;
+        }
+        this.symbolTable.put(name, new Entry<>(value, this.depth, entry));
+        if (this.undoSize == this.undoLog.length)
+            this.undoLog = Arrays.copyOf(this.undoLog, this.undoSize * 2);
+        this.undoLog[this.undoSize++] = name;
+    }
+
+    public V get(int name) {
+        Entry<V> entry = this.symbolTable.get(name);
+        return entry == null ? null : entry.value;
+    }
+
+    public boolean contains(int name) {
         return this.symbolTable.containsKey(name);
     }
 
+    public boolean containsInCurScope(int name) {
+        Entry<V> entry = this.symbolTable.get(name);
+        return entry != null && entry.depth == this.depth;
+    }
+
+    // 0 表示全局作用域
+    public int depth() {
+        return this.depth;
+    }
+
 }
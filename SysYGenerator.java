@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// 按种子和目标行数生成合法、可终止、语义正确的 SysY 程序, 用于压力测试和性能测试。
+// 保证终止的做法:
+//   - while 循环都有专用的计数变量, 上界是小常数, 循环体只读不写它, continue 之前先自增;
+//   - 叶子函数不含循环也不调用其他函数, 可以在任何地方调用;
+//   - 非叶子函数只调用前面定义的函数, 且最多在循环之外调用一个非叶子函数, 整个调用关系是一条链。
+// 除数和模数都是非零字面量。只生成 int 标量, 不生成数组。
+public class SysYGenerator {
+    public enum Profile {
+        BALANCED(3, 4, 40, 3),
+        EXPRESSIONS(1, 24, 60, 2), // 长表达式, 很少嵌套
+        NESTED(8, 3, 80, 2), // 深层 if/while 嵌套
+        CALLS(2, 4, 12, 6); // 大量小函数和参数很多的调用
+
+        private final int maxDepth;
+        private final int exprTerms;
+        private final int functionLines;
+        private final int maxParams;
+
+        Profile(int maxDepth, int exprTerms, int functionLines, int maxParams) {
+            this.maxDepth = maxDepth;
+            this.exprTerms = exprTerms;
+            this.functionLines = functionLines;
+            this.maxParams = maxParams;
+        }
+    }
+
+    private static class Function {
+        private String name;
+        private int params;
+        private boolean isVoid;
+
+        private Function(String name, int params, boolean isVoid) {
+            this.name = name;
+            this.params = params;
+            this.isVoid = isVoid;
+        }
+    }
+
+    private static final int LOOP_BOUND = 3;
+    private static final String[] ADD_OPS = { " + ", " - ", " * " };
+    private static final String[] REL_OPS = { " < ", " > ", " <= ", " >= ", " == ", " != " };
+
+    private Random random;
+    private Profile profile;
+    private int targetLines;
+    private StringBuilder sb;
+    private int lines;
+    private int indent;
+    private int nameCounter;
+    private List<String> consts = new ArrayList<>();
+    private List<String> globals = new ArrayList<>();
+    private List<Function> leaves = new ArrayList<>();
+    private List<Function> chain = new ArrayList<>();
+
+    // 当前函数的状态
+    private Deque<List<String>> scopes = new ArrayDeque<>();
+    private Set<String> readOnly = new HashSet<>();
+    private Deque<String> loopVars = new ArrayDeque<>();
+    private boolean inLeaf;
+    private boolean chainCallUsed;
+    private int functionEnd;
+
+    public SysYGenerator(long seed, int targetLines, Profile profile) {
+        this.random = new Random(seed);
+        this.targetLines = targetLines;
+        this.profile = profile;
+    }
+
+    // usage: --generate <lines> [seed] [profile] [output]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: --generate <lines> [seed] [balanced|expressions|nested|calls] [output]");
+            return;
+        }
+        int lines = Integer.parseInt(args[0]);
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        Profile profile = args.length > 2 ? Profile.valueOf(args[2].toUpperCase()) : Profile.BALANCED;
+        String program = new SysYGenerator(seed, lines, profile).generate();
+        if (args.length > 3)
+            Files.writeString(Paths.get(args[3]), program, StandardCharsets.UTF_8);
+        else
+            System.out.print(program);
+    }
+
+    public String generate() {
+        sb = new StringBuilder();
+        lines = 0;
+        int declarations = Math.max(2, targetLines / 200);
+        for (int i = 0; i < declarations; i++) {
+            globalDecl();
+        }
+        // 给 main 留几行
+        while (lines < targetLines - 8) {
+            function();
+            if (random.nextInt(4) == 0)
+                globalDecl();
+        }
+        mainFunction();
+        return sb.toString();
+    }
+
+    private void globalDecl() {
+        if (random.nextBoolean()) {
+            int count = 1 + random.nextInt(3);
+            List<String> defs = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String name = "C" + consts.size();
+                defs.add(name + " = " + constExp(3));
+                consts.add(name);
+            }
+            line("const int " + String.join(", ", defs) + ";");
+        } else {
+            String name = "g" + globals.size();
+            // 全局变量的初值必须能在编译期算出来, 只用字面量
+            line("int " + name + (random.nextBoolean() ? " = " + constExp(2) : "") + ";");
+            globals.add(name);
+        }
+    }
+
+    private void function() {
+        // 前几个函数一定是叶子, 保证后面的函数有东西可调
+        inLeaf = leaves.size() < 4 || random.nextInt(10) < 3;
+        boolean isVoid = inLeaf && random.nextInt(4) == 0;
+        String prefix = inLeaf ? "leaf" : "f";
+        Function function = new Function(prefix + (leaves.size() + chain.size()), random.nextInt(profile.maxParams + 1), isVoid);
+        List<String> params = new ArrayList<>();
+        for (int i = 0; i < function.params; i++) {
+            params.add("int p" + i);
+        }
+        blankLine();
+        line((isVoid ? "void " : "int ") + function.name + "(" + String.join(", ", params) + ") {");
+        beginFunction();
+        for (int i = 0; i < function.params; i++) {
+            scopes.peek().add("p" + i);
+        }
+        functionEnd = lines + profile.functionLines / 2 + random.nextInt(profile.functionLines);
+        do {
+            statement(1);
+        } while (lines < functionEnd && lines < targetLines - 8);
+        if (isVoid)
+            line("return;");
+        else
+            line("return " + exp(profile.exprTerms) + ";");
+        endFunction();
+        // 注册放在函数体之后, 函数不会调用自己
+        if (inLeaf)
+            leaves.add(function);
+        else
+            chain.add(function);
+    }
+
+    private void mainFunction() {
+        blankLine();
+        line("int main() {");
+        inLeaf = false;
+        beginFunction();
+        line("int result = 0;");
+        scopes.peek().add("result");
+        if (!chain.isEmpty())
+            line("result = result + " + call(chain.get(chain.size() - 1)) + ";");
+        for (int i = 0; i < 3 && !leaves.isEmpty(); i++) {
+            Function leaf = leaves.get(random.nextInt(leaves.size()));
+            if (leaf.isVoid)
+                line(call(leaf) + ";");
+            else
+                line("result = result + " + call(leaf) + ";");
+        }
+        line("return result;");
+        endFunction();
+    }
+
+    private void beginFunction() {
+        indent++;
+        scopes.clear();
+        scopes.push(new ArrayList<>());
+        readOnly.clear();
+        loopVars.clear();
+        chainCallUsed = false;
+        nameCounter = 0;
+    }
+
+    private void endFunction() {
+        indent--;
+        line("}");
+    }
+
+    private void statement(int depth) {
+        boolean canNest = depth < profile.maxDepth && lines < functionEnd;
+        int choice = random.nextInt(12);
+        if (choice < 2) {
+            String name = "v" + nameCounter++;
+            line("int " + name + " = " + exp(profile.exprTerms) + ";");
+            scopes.peek().add(name);
+        } else if (choice < 3 && random.nextBoolean()) {
+            String name = "k" + nameCounter++;
+            line("const int " + name + " = " + constExp(3) + ";");
+            scopes.peek().add(name);
+            readOnly.add(name);
+        } else if (choice < 4 && !inLeaf && loopVars.isEmpty() && !chainCallUsed && !chain.isEmpty()) {
+            // 链上的调用只在循环外出现一次
+            String name = "v" + nameCounter++;
+            line("int " + name + " = " + call(chain.get(random.nextInt(chain.size()))) + ";");
+            scopes.peek().add(name);
+            chainCallUsed = true;
+        } else if (choice < 5 && canNest) {
+            line("if (" + cond() + ") {");
+            nested(depth);
+            if (random.nextBoolean()) {
+                line("} else {");
+                nested(depth);
+            }
+            line("}");
+        } else if (choice < 7 && canNest && !inLeaf) {
+            whileLoop(depth);
+        } else if (choice < 8 && canNest) {
+            line("{");
+            nested(depth);
+            line("}");
+        } else if (choice < 9 && !loopVars.isEmpty()) {
+            if (random.nextBoolean()) {
+                line("if (" + cond() + ") break;");
+            } else {
+                String loopVar = loopVars.peek();
+                line("if (" + cond() + ") {");
+                indent++;
+                line(loopVar + " = " + loopVar + " + 1;");
+                line("continue;");
+                indent--;
+                line("}");
+            }
+        } else if (choice < 10 && !leaves.isEmpty() && !inLeaf) {
+            Function leaf = leaves.get(random.nextInt(leaves.size()));
+            line(call(leaf) + ";");
+        } else {
+            String target = writable();
+            line(target + " = " + exp(profile.exprTerms) + ";");
+        }
+    }
+
+    private void nested(int depth) {
+        indent++;
+        scopes.push(new ArrayList<>());
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            statement(depth + 1);
+        }
+        scopes.pop();
+        indent--;
+    }
+
+    private void whileLoop(int depth) {
+        String loopVar = "i" + nameCounter++;
+        line("int " + loopVar + " = 0;");
+        scopes.peek().add(loopVar);
+        readOnly.add(loopVar);
+        String bound = loopVar + " < " + (1 + random.nextInt(LOOP_BOUND));
+        line("while (" + (random.nextBoolean() ? bound : bound + (random.nextBoolean() ? " && " : " || ") + cond()) + ") {");
+        // 用 || 连接时附加条件可能一直为真, 所以循环体第一句先检查计数上界
+        indent++;
+        line("if (" + loopVar + " >= " + LOOP_BOUND + ") break;");
+        indent--;
+        loopVars.push(loopVar);
+        nested(depth);
+        indent++;
+        line(loopVar + " = " + loopVar + " + 1;");
+        indent--;
+        loopVars.pop();
+        line("}");
+    }
+
+    private String writable() {
+        List<String> candidates = new ArrayList<>(globals);
+        for (List<String> scope : scopes) {
+            for (String name : scope) {
+                if (!readOnly.contains(name))
+                    candidates.add(name);
+            }
+        }
+        if (candidates.isEmpty()) {
+            String name = "v" + nameCounter++;
+            line("int " + name + " = 0;");
+            scopes.peek().add(name);
+            return name;
+        }
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    private String readable() {
+        List<String> candidates = new ArrayList<>(globals);
+        candidates.addAll(consts);
+        for (List<String> scope : scopes) {
+            candidates.addAll(scope);
+        }
+        if (candidates.isEmpty())
+            return literal();
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    private String exp(int terms) {
+        if (terms <= 1)
+            return atom();
+        int left = 1 + random.nextInt(terms - 1);
+        String result;
+        if (random.nextInt(5) == 0)
+            result = exp(left) + (random.nextBoolean() ? " / " : " % ") + (1 + random.nextInt(9));
+        else
+            result = exp(left) + ADD_OPS[random.nextInt(ADD_OPS.length)] + exp(terms - left);
+        return random.nextInt(4) == 0 ? "(" + result + ")" : result;
+    }
+
+    private String atom() {
+        int choice = random.nextInt(10);
+        if (choice < 3)
+            return literal();
+        if (choice < 8)
+            return readable();
+        if (choice < 9)
+            return "-" + atom();
+        List<Function> callable = new ArrayList<>();
+        if (!inLeaf) {
+            for (Function leaf : leaves) {
+                if (!leaf.isVoid)
+                    callable.add(leaf);
+            }
+        }
+        if (callable.isEmpty())
+            return readable();
+        return call(callable.get(random.nextInt(callable.size())));
+    }
+
+    private String call(Function function) {
+        List<String> args = new ArrayList<>();
+        for (int i = 0; i < function.params; i++) {
+            args.add(exp(2));
+        }
+        return function.name + "(" + String.join(", ", args) + ")";
+    }
+
+    private String cond() {
+        StringBuilder cond = new StringBuilder(relation());
+        int count = random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            cond.append(random.nextBoolean() ? " && " : " || ").append(relation());
+        }
+        return cond.toString();
+    }
+
+    private String relation() {
+        if (random.nextInt(6) == 0)
+            return "!" + atom();
+        return exp(2) + REL_OPS[random.nextInt(REL_OPS.length)] + exp(2);
+    }
+
+    // 只由字面量组成的常量表达式
+    private String constExp(int terms) {
+        if (terms <= 1)
+            return literal();
+        int left = 1 + random.nextInt(terms - 1);
+        return constExp(left) + ADD_OPS[random.nextInt(ADD_OPS.length)] + constExp(terms - left);
+    }
+
+    private String literal() {
+        int value = random.nextInt(100);
+        switch (random.nextInt(8)) {
+            case 0:
+                return "0x" + Integer.toHexString(value);
+            case 1:
+                return value == 0 ? "0" : "0" + Integer.toOctalString(value);
+            default:
+                return String.valueOf(value);
+        }
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < indent; i++) {
+            sb.append("    ");
+        }
+        sb.append(text).append('\n');
+        lines++;
+    }
+
+    private void blankLine() {
+        sb.append('\n');
+        lines++;
+    }
+}
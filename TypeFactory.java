@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 类型的哈希构造 (hash-consing): 同样的数组类型和函数签名只创建一个对象,
+// 类型是否相同直接用 == 比较。可以被多个线程同时调用
+public class TypeFactory {
+    // 元素类型 -> 维数 -> 数组类型; 维数不超过 127 时 Integer 走缓存, 查找不分配对象
+    private static final ConcurrentHashMap<Type, ConcurrentHashMap<Integer, ArrayType>> arrayTypes = new ConcurrentHashMap<>();
+    // [返回类型, 参数类型...] -> 函数类型; 其中的类型都已规范化, List.equals 逐个比较的就是引用
+    private static final ConcurrentHashMap<List<Type>, FunctionType> functionTypes = new ConcurrentHashMap<>();
+
+    private TypeFactory() {
+    }
+
+    public static ArrayType getArrayType(Type contained, int count) {
+        ConcurrentHashMap<Integer, ArrayType> byCount = arrayTypes.get(contained);
+        if (byCount == null)
+            byCount = arrayTypes.computeIfAbsent(contained, k -> new ConcurrentHashMap<>());
+        ArrayType arrayType = byCount.get(count);
+        if (arrayType == null)
+            arrayType = byCount.computeIfAbsent(count, k -> new ArrayType(contained, count));
+        return arrayType;
+    }
+
+    public static FunctionType getFunctionType(Type retType, List<Type> paramTypes) {
+        List<Type> signature = new ArrayList<>(paramTypes.size() + 1);
+        signature.add(retType);
+        signature.addAll(paramTypes);
+        FunctionType functionType = functionTypes.get(signature);
+        if (functionType == null)
+            functionType = functionTypes.computeIfAbsent(signature, k -> new FunctionType(retType, paramTypes));
+        return functionType;
+    }
+}
@@ -0,0 +1,13 @@
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.NoViableAltException;
+import org.antlr.v4.runtime.Parser;
+
+// 无缓冲 token 流用的错误处理: 默认实现报 "no viable alternative" 时会取从决策开始到出错位置的整段文本,
+// 这些 token 可能已经被流丢掉了, 取文本会抛异常。这里只用出错 token 自己的文本
+public class UnbufferedErrorStrategy extends DefaultErrorStrategy {
+    @Override
+    protected void reportNoViableAlternative(Parser recognizer, NoViableAltException e) {
+        String msg = "no viable alternative at input " + getTokenErrorDisplay(e.getOffendingToken());
+        recognizer.notifyErrorListeners(e.getOffendingToken(), msg, e);
+    }
+}
@@ -1,20 +1,57 @@
 import java.util.ArrayList;
 import java.util.Stack;
 
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
 public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     private Scope curScope = new Scope();
     private ArrayList<String> errors = new ArrayList<>();
     private ArrayList<Type> paramsTyList = new ArrayList<>();
-    private ArrayList<String> paramsNameList = new ArrayList<>();
+    private ArrayList<Integer> paramsIdList = new ArrayList<>();
     private Stack<ArrayList<Type>> paramsStack = new Stack<>();
-    private String retFuncTyString = new String();
+    private Type retFuncType = null;
     private boolean flag1 = true;
     private boolean forOp = false;
+    private IdentTable identTable;
+
+    public VisitorForGrammar() {
+        this(new IdentTable());
+    }
+
+    public VisitorForGrammar(IdentTable identTable) {
+        this.identTable = identTable;
+    }
+
+    // 并行检查用: 全局符号来自 GlobalScope, 只能看到序号小于 limit 的定义; forOp 是顺序检查走到这里时的状态
+    public VisitorForGrammar(IdentTable identTable, GlobalScope globals, int limit, boolean forOp) {
+        this.identTable = identTable;
+        this.curScope = new Scope(globals, limit);
+        this.forOp = forOp;
+    }
+
+    // 由形参列表得到函数类型, 不记录错误, 并行检查的第一阶段用它登记函数签名
+    public static FunctionType functionTypeOf(SysYParser.FuncDefContext ctx, IdentTable identTable) {
+        VisitorForGrammar visitor = new VisitorForGrammar(identTable);
+        if (ctx.funcFParams() != null)
+            visitor.visit(ctx.funcFParams());
+        Type retType = ctx.funcType().INT() != null ? IntType.getI32() : VoidType.getVoidType();
+        return TypeFactory.getFunctionType(retType, visitor.paramsTyList);
+    }
+
+    // 词法分析时已经驻留过的 IDENT 直接取 id, 否则 (比如 token 来自别的 IdentTable) 现在驻留
+    private int ident(TerminalNode node) {
+        Token token = node.getSymbol();
+        if (token instanceof IdentToken && ((IdentToken) token).getIdentTable() == identTable)
+            return ((IdentToken) token).getIdent();
+        return identTable.intern(token.getText());
+    }
 
     @Override
     public Void visitFuncDef(SysYParser.FuncDefContext ctx) {
         String funcName = ctx.IDENT().getText();
-        if (curScope.contains(funcName)) {
+        int funcNameId = ident(ctx.IDENT());
+        if (curScope.contains(funcNameId)) {
             errors.add("Error type 4 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                     + "Redefined function: " + ctx.IDENT().getText());
             return null;
@@ -23,15 +60,15 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
         String typeStr = ctx.getChild(0).getText();
         if (typeStr.equals("int"))
             retType = IntType.getI32();
-        retFuncTyString = retType.getTypeName();
+        retFuncType = retType;
         if (ctx.funcFParams() != null) 
             visit(ctx.funcFParams());
-        FunctionType functionType = new FunctionType(retType, paramsTyList);
-        curScope.put(funcName, functionType);
+        FunctionType functionType = TypeFactory.getFunctionType(retType, paramsTyList);
+        curScope.put(funcNameId, functionType);
         visit(ctx.block());
         paramsTyList.clear();
-        paramsNameList.clear();
-        retFuncTyString = "";
+        paramsIdList.clear();
+        retFuncType = null;
         return null;
     }
     
@@ -39,16 +76,17 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     public Void visitFuncFParams(SysYParser.FuncFParamsContext ctx) {
         for (SysYParser.FuncFParamContext param : ctx.funcFParam()) {
             String paramName = param.IDENT().getText();
-            if (paramsNameList.contains(paramName)) {
+            int paramNameId = ident(param.IDENT());
+            if (paramsIdList.contains(paramNameId)) {
                 errors.add("Error type 3 at Line " + param.IDENT().getSymbol().getLine() + ": "
                         + "Redefined variable: " + paramName);
                 continue;
             }
             if (param.L_BRACKT().size() > 0) {
-                ArrayType arrType = new ArrayType(IntType.getI32(), 1);
+                ArrayType arrType = TypeFactory.getArrayType(IntType.getI32(), 1);
                 paramsTyList.add(arrType);
             } else paramsTyList.add(IntType.getI32());
-            paramsNameList.add(paramName);
+            paramsIdList.add(paramNameId);
         }
         return null;
     }
@@ -56,11 +94,11 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     @Override
     public Void visitBlock(SysYParser.BlockContext ctx) {
         curScope.enterNewScope();
-        if (paramsNameList.size() != 0) {
-            for (int i = 0; i < paramsNameList.size(); i++)
-                curScope.put(paramsNameList.get(i), paramsTyList.get(i));
+        if (paramsIdList.size() != 0) {
+            for (int i = 0; i < paramsIdList.size(); i++)
+                curScope.put(paramsIdList.get(i), paramsTyList.get(i));
         }
-        paramsNameList.clear();
+        paramsIdList.clear();
         ctx.blockItem().forEach(this::visit);
         curScope.exitScope();
         return null;
@@ -69,8 +107,9 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     @Override
     public Void visitVarDef(SysYParser.VarDefContext ctx) {
         String varName = ctx.IDENT().getText();
+        int varNameId = ident(ctx.IDENT());
         // System.out.println(varName);
-        if (curScope.containsInCurScope(varName)) {
+        if (curScope.containsInCurScope(varNameId)) {
             errors.add("Error type 3 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                     + "Redefined variable: " + varName);
             return null;
@@ -84,14 +123,14 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                             + "Type mismatched for assignment.");
                 }
             }
-            curScope.put(varName, IntType.getI32());
+            curScope.put(varNameId, IntType.getI32());
         } else {
             if (ctx.ASSIGN() != null) {
                 if (ctx.initVal().exp() != null)
                     handleAssignForArr(ctx.initVal().exp(), ctx.constExp().size());
             }
-            ArrayType arrType = new ArrayType(IntType.getI32(), ctx.constExp().size());
-            curScope.put(varName, arrType);
+            ArrayType arrType = TypeFactory.getArrayType(IntType.getI32(), ctx.constExp().size());
+            curScope.put(varNameId, arrType);
         }
         return null;
     }
@@ -99,7 +138,8 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     @Override
     public Void visitConstDef(SysYParser.ConstDefContext ctx) {
         String varName = ctx.IDENT().getText();
-        if (curScope.containsInCurScope(varName)) {
+        int varNameId = ident(ctx.IDENT());
+        if (curScope.containsInCurScope(varNameId)) {
             errors.add("Error type 3 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                     + "Redefined variable: " + varName);
             return null;
@@ -111,12 +151,12 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                 errors.add("Error type 5 at Line " + ctx.constInitVal().L_BRACE().getSymbol().getLine() + ": "
                         + "Type mismatched for assignment.");
             }
-            curScope.put(varName, IntType.getI32());
+            curScope.put(varNameId, IntType.getI32());
         } else {
             if (ctx.constInitVal().constExp() != null)
                 handleAssignForArr(ctx.constInitVal().constExp().exp(), ctx.constExp().size());
-            ArrayType arrType = new ArrayType(IntType.getI32(), ctx.constExp().size());
-            curScope.put(varName, arrType);
+            ArrayType arrType = TypeFactory.getArrayType(IntType.getI32(), ctx.constExp().size());
+            curScope.put(varNameId, arrType);
         }
         return null;
 
@@ -125,13 +165,14 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     private Void handleAssignForInt(SysYParser.ExpContext ctx) {
         if (ctx.lVal() != null) {
             String lValName = ctx.lVal().IDENT().getText();
-            if (!curScope.contains(lValName)) {
+            int lValNameId = ident(ctx.lVal().IDENT());
+            if (!curScope.contains(lValNameId)) {
                 errors.add("Error type 1 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                         + "Undefined variable: " + lValName);
                 return null;
             }
-            String lValTyString = curScope.getType(lValName).getTypeName();
-            if (!(lValTyString.equals("INT") || (lValTyString.equals("ARRAY") && ((ArrayType) curScope.getType(lValName)).getCount() - ctx.lVal().exp().size() == 0))) {
+            Type lValType = curScope.getType(lValNameId);
+            if (!(lValType == IntType.getI32() || (lValType instanceof ArrayType && ((ArrayType) lValType).getCount() - ctx.lVal().exp().size() == 0))) {
                 errors.add("Error type 5 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                         + "Type mismatched for assignment.");
                 return null;
@@ -140,18 +181,18 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
             }
         } else if (ctx.IDENT() != null && ctx.L_PAREN() != null) {
             String funcName = ctx.IDENT().getText();
-            if (!curScope.contains(funcName)) {
+            int funcNameId = ident(ctx.IDENT());
+            if (!curScope.contains(funcNameId)) {
                 errors.add("Error type 2 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                         + "Undefined function: " + funcName);
                 return null;
             }
             // System.out.println(funcName);
-            String funcTyString = curScope.getType(funcName).getTypeName();
-            if (!funcTyString.equals("FUNCTION")) {
+            if (!(curScope.getType(funcNameId) instanceof FunctionType)) {
                 errors.add("Error type 10 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                         + "Not a function: " + funcName);
             } else {
-                if (((FunctionType) curScope.getType(funcName)).getRetType() != IntType.getI32()) {
+                if (((FunctionType) curScope.getType(funcNameId)).getRetType() != IntType.getI32()) {
                     errors.add("Error type 5 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                             + "Type mismatched for assignment.");
                 } else
@@ -167,14 +208,15 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     private Void handleAssignForArr(SysYParser.ExpContext ctx, int lValDim) {
         if (ctx.lVal() != null) {
             String _lValName = ctx.lVal().IDENT().getText();
-            String lValTyString = curScope.getType(_lValName).getTypeName();
-            if (lValTyString.equals("FUNCTION")) {
+            int _lValNameId = ident(ctx.lVal().IDENT());
+            Type lValType = curScope.getType(_lValNameId);
+            if (lValType instanceof FunctionType) {
                 errors.add("Error type 5 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                         + "Type mismatched for assignment.");
             } else {
                 int rValDim = 0;
-                if (lValTyString.equals("ARRAY")) 
-                    rValDim = ((ArrayType) curScope.getType(_lValName)).getCount() - ctx.lVal().exp().size();
+                if (lValType instanceof ArrayType) 
+                    rValDim = ((ArrayType) lValType).getCount() - ctx.lVal().exp().size();
                 else rValDim -= ctx.lVal().exp().size();
                 if (rValDim < 0) visit(ctx);
                 else if (lValDim != rValDim) {
@@ -198,18 +240,20 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     public Void visitStmt(SysYParser.StmtContext ctx) {
         if (ctx.ASSIGN() != null) {
             String varName = ctx.lVal().IDENT().getText();
-            if (!curScope.contains(varName)) {
+            int varNameId = ident(ctx.lVal().IDENT());
+            if (!curScope.contains(varNameId)) {
                 errors.add("Error type 1 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                         + "Undefined variable: " + varName);
                 if (ctx.exp().lVal() != null) {
                     String lValName = ctx.exp().lVal().IDENT().getText();
-                    if (!curScope.contains(lValName)) {
+                    int lValNameId = ident(ctx.exp().lVal().IDENT());
+                    if (!curScope.contains(lValNameId)) {
                         errors.add("Error type 1 at Line " + ctx.exp().lVal().IDENT().getSymbol().getLine() + ": "
                                 + "Undefined variable: " + lValName);
                     }
                 }
             } else {
-                Type varType = curScope.getType(varName);
+                Type varType = curScope.getType(varNameId);
                 if (varType instanceof FunctionType) {
                     errors.add("Error type 11 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                             + "The left-hand side of an assignment must be a variable.");
@@ -221,7 +265,8 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                     handleAssignForInt(ctx.exp());
                 } else {
                     String lValName = ctx.lVal().IDENT().getText();
-                    int lValdim = ((ArrayType) curScope.getType(lValName)).getCount() - ctx.lVal().exp().size();
+                    int lValNameId = ident(ctx.lVal().IDENT());
+                    int lValdim = ((ArrayType) curScope.getType(lValNameId)).getCount() - ctx.lVal().exp().size();
                     if (lValdim < 0) {
                         errors.add("Error type 9 at Line " + ctx.lVal().IDENT().getSymbol().getLine() + ": "
                                 + "Not an array: " + varName);
@@ -232,18 +277,19 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
             }
         } else if (ctx.RETURN() != null) {
             if (ctx.exp() != null) {
-                if (retFuncTyString.equals("VOID")) {
+                if (retFuncType == VoidType.getVoidType()) {
                     errors.add("Error type 7 at Line " + ctx.RETURN().getSymbol().getLine() + ": "
                             + "type.Type mismatched for return."); 
                 } else {
                     if (ctx.exp().lVal() != null) {
                         String lValName = ctx.exp().lVal().IDENT().getText();
-                        if (!curScope.contains(lValName)) {
+                        int lValNameId = ident(ctx.exp().lVal().IDENT());
+                        if (!curScope.contains(lValNameId)) {
                             errors.add("Error type 1 at Line " + ctx.exp().lVal().IDENT().getSymbol().getLine() + ": "
                                     + "Undefined variable: " + lValName);
                         } else {
-                            String lValTyString = curScope.getType(lValName).getTypeName();
-                            if (!(lValTyString.equals("INT") || (lValTyString.equals("ARRAY") && ((ArrayType) curScope.getType(lValName)).getCount() - ctx.exp().lVal().exp().size() == 0))) {
+                            Type lValType = curScope.getType(lValNameId);
+                            if (!(lValType == IntType.getI32() || (lValType instanceof ArrayType && ((ArrayType) lValType).getCount() - ctx.exp().lVal().exp().size() == 0))) {
                                 errors.add("Error type 7 at Line " + ctx.RETURN().getSymbol().getLine() + ": "
                                         + "type.Type mismatched for return.");
                             } else {
@@ -252,16 +298,16 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                         }
                     } else if (ctx.exp().L_PAREN() != null && ctx.exp().IDENT() != null) {
                         String funcName = ctx.exp().IDENT().getText();
-                        if (!curScope.contains(funcName)) {
+                        int funcNameId = ident(ctx.exp().IDENT());
+                        if (!curScope.contains(funcNameId)) {
                             errors.add("Error type 2 at Line " + ctx.exp().IDENT().getSymbol().getLine() + ": "
                                     + "Undefined function: " + funcName);
                         } else {
-                            String funcTyString = curScope.getType(funcName).getTypeName();
-                            if (!funcTyString.equals("FUNCTION")) {
+                            if (!(curScope.getType(funcNameId) instanceof FunctionType)) {
                                 errors.add("Error type 10 at Line " + ctx.exp().IDENT().getSymbol().getLine() + ": "
                                         + "Not a function: " + funcName);
                             } else {
-                                if (!(((FunctionType) curScope.getType(funcName)).getRetType() instanceof IntType)) {
+                                if (!(((FunctionType) curScope.getType(funcNameId)).getRetType() instanceof IntType)) {
                                     errors.add("Error type 7 at Line " + ctx.RETURN().getSymbol().getLine() + ": "
                                             + "type.Type mismatched for return.");
                                 } else
@@ -273,7 +319,7 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                     }
                 }
             } else {
-                if (!retFuncTyString.equals("VOID")) {
+                if (retFuncType != VoidType.getVoidType()) {
                     errors.add("Error type 7 at Line " + ctx.RETURN().getSymbol().getLine() + ": "
                             + "type.Type mismatched for return.");
                 }
@@ -298,40 +344,28 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     @Override
     public Void visitExp(SysYParser.ExpContext ctx) {
         if (ctx.IDENT() != null && ctx.L_PAREN() != null) {
-            if (!curScope.contains(ctx.IDENT().getText())) {
+            if (!curScope.contains(ident(ctx.IDENT()))) {
                 errors.add("Error type 2 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                         + "Undefined function: " + ctx.IDENT().getText());
-            } else if (!(curScope.getType(ctx.IDENT().getText()) instanceof FunctionType)) {
+            } else if (!(curScope.getType(ident(ctx.IDENT())) instanceof FunctionType)) {
                 errors.add("Error type 10 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                         + "Not a function: " + ctx.IDENT().getText());
             } else {
                 paramsStack.push(new ArrayList<>());
-                ArrayList<Type> tyList = ((FunctionType) curScope.getType(ctx.IDENT().getText())).getParamTypes();
+                ArrayList<Type> tyList = ((FunctionType) curScope.getType(ident(ctx.IDENT()))).getParamTypes();
                 if (ctx.funcRParams() != null) visit(ctx.funcRParams());
-                ArrayList<Type> _paramsTyList = new ArrayList<>(paramsStack.peek());
+                ArrayList<Type> _paramsTyList = paramsStack.peek();
                 if (flag1) {
                     if (tyList.size() != _paramsTyList.size()) {
                         errors.add("Error type 8 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                                 + "Function call with wrong number of parameters.");
                     } else {
+                        // 类型经过 TypeFactory 规范化, 形参只会是 INT 或 ARRAY, 同一个对象就说明匹配
                         for (int i = 0; i < tyList.size(); i++) {
-                            if (_paramsTyList.get(i).getTypeName().equals("INT")) {
-                                if (!tyList.get(i).getTypeName().equals("INT")) {
-                                    errors.add("Error type 8 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
-                                            + "Function is not applicable for arguments.");
-                                    break;
-                                }
-                            } else if (_paramsTyList.get(i).getTypeName().equals("ARRAY")) {
-                                if (!(tyList.get(i).getTypeName().equals("ARRAY") && ((ArrayType) tyList.get(i))
-                                        .getCount() == ((ArrayType) _paramsTyList.get(i)).getCount())) {
-                                    errors.add("Error type 8 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
-                                            + "Function is not applicable for arguments.");
-                                    break;
-                                }
-                            } else {
+                            if (_paramsTyList.get(i) != tyList.get(i)) {
                                 errors.add("Error type 8 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                                         + "Function is not applicable for arguments.");
-                                break; 
+                                break;
                             }
                         }
                     }
@@ -367,13 +401,14 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     @Override
     public Void visitLVal(SysYParser.LValContext ctx) {
         String lValName = ctx.IDENT().getText();
-        if (!curScope.contains(lValName)) {
+        int lValNameId = ident(ctx.IDENT());
+        if (!curScope.contains(lValNameId)) {
             errors.add("Error type 1 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                     + "Undefined variable: " + lValName);
             if (forOp) forOp = false;
             return null;
         }
-        if (curScope.getType(lValName) instanceof FunctionType) {
+        if (curScope.getType(lValNameId) instanceof FunctionType) {
             if (ctx.exp().size() != 0) {
                 errors.add("Error type 9 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
                         + "Not an array: " + lValName);
@@ -384,8 +419,8 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                 forOp = false;
             }
             return null;
-        } else if (curScope.getType(lValName) instanceof ArrayType) {
-            int lValDim = ((ArrayType) curScope.getType(lValName)).getCount() - ctx.exp().size();
+        } else if (curScope.getType(lValNameId) instanceof ArrayType) {
+            int lValDim = ((ArrayType) curScope.getType(lValNameId)).getCount() - ctx.exp().size();
             if (lValDim > 0) {
                 if (forOp) {
                     errors.add("Error type 6 at Line " + ctx.IDENT().getSymbol().getLine() + ": "
@@ -413,13 +448,14 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
         for (SysYParser.ParamContext param : ctx.param()) {
             if (param.exp().lVal() != null) {
                 String lValName = param.exp().lVal().IDENT().getText();
-                if (!curScope.contains(lValName)) {
+                int lValNameId = ident(param.exp().lVal().IDENT());
+                if (!curScope.contains(lValNameId)) {
                     errors.add("Error type 1 at Line " + param.exp().lVal().IDENT().getSymbol().getLine() + ": "
                             + "Undefined variable: " + lValName);
                     flag1 = false;
                     return null;
                 }
-                if (curScope.getType(lValName) instanceof IntType) {
+                if (curScope.getType(lValNameId) instanceof IntType) {
                     if (param.exp().lVal().exp().size() != 0) {
                         errors.add("Error type 9 at Line " + param.exp().lVal().IDENT().getSymbol().getLine() + ": "
                                 + "Not an array: " + lValName);
@@ -427,15 +463,15 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                         return null;
                     }
                     paramsStack.peek().add(IntType.getI32());
-                } else if (curScope.getType(lValName) instanceof ArrayType) {
-                    int lValDim = ((ArrayType) curScope.getType(lValName)).getCount() - param.exp().lVal().exp().size();
+                } else if (curScope.getType(lValNameId) instanceof ArrayType) {
+                    int lValDim = ((ArrayType) curScope.getType(lValNameId)).getCount() - param.exp().lVal().exp().size();
                     if (lValDim == 0) paramsStack.peek().add(IntType.getI32());
                     else if (lValDim < 0) {
                         errors.add("Error type 9 at Line " + param.exp().lVal().IDENT().getSymbol().getLine() + ": "
                                 + "Not an array: " + lValName);
                         flag1 = false;
                         return null;
-                    } else paramsStack.peek().add(new ArrayType(IntType.getI32(), lValDim));
+                    } else paramsStack.peek().add(TypeFactory.getArrayType(IntType.getI32(), lValDim));
                 } else {
                     if (param.exp().lVal().exp().size() != 0) {
                         errors.add("Error type 9 at Line " + param.exp().lVal().IDENT().getSymbol().getLine() + ": "
@@ -443,20 +479,21 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
                         flag1 = false;
                         return null;
                     }
-                    paramsStack.peek().add(curScope.getType(lValName));
+                    paramsStack.peek().add(curScope.getType(lValNameId));
                 }
             } else if (param.exp().number() != null) {
                 paramsStack.peek().add(IntType.getI32());
             } else if (param.exp().L_PAREN() != null && param.exp().IDENT() != null) {
                 String funcName = param.exp().IDENT().getText();
+                int funcNameId = ident(param.exp().IDENT());
                 // System.out.println(funcName + " " + param.exp().IDENT().getSymbol().getLine());
-                if (!curScope.contains(funcName)) {
+                if (!curScope.contains(funcNameId)) {
                     errors.add("Error type 2 at Line " + param.exp().IDENT().getSymbol().getLine() + ": "
                             + "Undefined function: " + funcName);
                     flag1 = false;
                     return null;
                 }
-                paramsStack.peek().add(((FunctionType) curScope.getType(funcName)).getRetType());
+                paramsStack.peek().add(((FunctionType) curScope.getType(funcNameId)).getRetType());
                 visit(param.exp());
             } else if (param.exp().unaryOp() != null || param.exp().MUL() != null || param.exp().MINUS() != null ||
                     param.exp().DIV() != null || param.exp().PLUS() != null || param.exp().MOD() != null) {
@@ -488,4 +525,9 @@ public class VisitorForGrammar extends SysYParserBaseVisitor<Void> {
     public ArrayList<String> getErrors() {
         return errors;
     }
+
+    // forOp 会从一个顶层定义带到下一个, 并行检查要用它确认每一段的入口状态
+    public boolean isForOp() {
+        return forOp;
+    }
 }
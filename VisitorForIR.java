@@ -1,54 +1,90 @@
 import org.llvm4j.llvm4j.*;
 import org.llvm4j.llvm4j.Module;
-import org.llvm4j.llvm4j.Type;
-import org.llvm4j.llvm4j.VoidType; 
 import org.llvm4j.optional.Option;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class VisitorForIR extends SysYParserBaseVisitor<Value> {
-    private Context context;
-    private Module module;
-    private Function function;
-    private IRBuilder builder;
-    private IntegerType i32;
-    private VoidType voidType;
-    private ConstantInt zero;
-    private Stack<Map<String, Value>> variables;
-    private ArrayList<Type> paramTypes;
+    private IREmitter emitter;
+    private ParseTreeExp exps;
+    private SymbolTable<Value> variables;
+    // 与 variables 同步进出作用域; const 定义记下它的值, 其他定义放 null, 遮蔽外层同名的 const
+    private SymbolTable<ConstantInt> constants;
+    // 同样与 variables 同步, 数组变量和数组形参记下布局, 标量放 null
+    private SymbolTable<ArrayLayout> arrays;
+    private ArrayList<LLVMTypeRef> paramTypes;
+    private ArrayList<ArrayLayout> paramLayouts;
     private ArrayList<String> paramNames;
-    private Stack<ArrayList<Value>> paramStack;
-    private Stack<BasicBlock> whileNextStack;
-    private Stack<BasicBlock> whileCondStack;
+    private ArrayList<Integer> paramIds;
+    private Set<String> declareOnly;
+    private IdentTable identTable;
 
     public VisitorForIR() {
-        this.context = new Context();
-        this.module = context.newModule("module");
-        this.builder = context.newIRBuilder();
-        this.i32 = context.getInt32Type();
-        this.voidType = context.getVoidType();
-        this.zero = i32.getConstant(0, false);
-        this.variables = new Stack<>();
-        this.variables.push(new HashMap<>());
+        this(new IdentTable());
+    }
+
+    public VisitorForIR(IdentTable identTable) {
+        this.identTable = identTable;
+        this.emitter = new IREmitter();
+        this.exps = new ParseTreeExp(emitter) {
+            @Override
+            protected Value lValValue(SysYParser.LValContext ctx) {
+                return lValue(ctx);
+            }
+
+            @Override
+            protected Integer lValConstant(SysYParser.LValContext ctx) {
+                if (ctx.exp().isEmpty())
+                    return ConstantFolder.valueOf(constants.get(ident(ctx.IDENT())));
+                ArrayLayout layout = arrays.get(ident(ctx.IDENT()));
+                return layout == null ? null : constantElement(ctx, layout);
+            }
+
+            @Override
+            protected Value call(SysYParser.ExpContext ctx) {
+                return VisitorForIR.this.call(ctx);
+            }
+        };
+        this.variables = new SymbolTable<>();
+        this.constants = new SymbolTable<>();
+        this.arrays = new SymbolTable<>();
         this.paramTypes = new ArrayList<>();
+        this.paramLayouts = new ArrayList<>();
         this.paramNames = new ArrayList<>();
-        this.paramStack = new Stack<>();
-        this.whileNextStack = new Stack<>();
-        this.whileCondStack = new Stack<>();
+        this.paramIds = new ArrayList<>();
+        this.declareOnly = new HashSet<>();
     }
 
-    private Value getValue(String name) {
-        for (int i = this.variables.size() - 1; i >= 0; i--) {
-            Map<String, Value> tmp = this.variables.get(i);
-            if (tmp.containsKey(name)) {
-                return tmp.get(name);
-            }
-        }
-        return null;
+    private Value getValue(TerminalNode node) {
+        return this.variables.get(ident(node));
+    }
+
+    private void define(int name, Value value, ConstantInt constant) {
+        variables.put(name, value);
+        constants.put(name, constant);
+        arrays.put(name, null);
+    }
+
+    private void defineArray(int name, Value value, ArrayLayout layout) {
+        variables.put(name, value);
+        constants.put(name, null);
+        arrays.put(name, layout);
+    }
+
+    // 词法分析时已经驻留过的 IDENT 直接取 id, 否则现在驻留
+    private int ident(TerminalNode node) {
+        Token token = node.getSymbol();
+        if (token instanceof IdentToken && ((IdentToken) token).getIdentTable() == identTable)
+            return ((IdentToken) token).getIdent();
+        return identTable.intern(token.getText());
     }
 
     // private Value getValueInCurScope(String name) {
@@ -72,18 +108,18 @@ public class VisitorForIR extends SysYParserBaseVisitor<Value> {
     @Override
     public Value visitConstDef(SysYParser.ConstDefContext ctx) {
         String varName = ctx.IDENT().getText();
-        Value rValue = visit(ctx.constInitVal().constExp().exp());
-        if (variables.size() > 1) {
-            Value localVar = builder.buildAlloca(i32, Option.of(varName));
-            builder.buildStore(localVar, rValue);
-            variables.peek().put(varName, localVar);
+        if (!ctx.constExp().isEmpty()) {
+            arrayDef(ctx.IDENT(), ctx.constExp(), ctx.constInitVal(), true);
+            return null;
+        }
+        SysYParser.ExpContext init = ctx.constInitVal().constExp().exp();
+        if (variables.depth() > 0) {
+            Value rValue = visit(init);
+            Integer constant = ConstantFolder.valueOf(rValue);
+            define(ident(ctx.IDENT()), emitter.local(varName, rValue), constant == null ? null : emitter.constant(constant));
         } else {
-            var gVal = module.addGlobalVariable(varName, i32, Option.empty()).unwrap();
-            if (!(rValue instanceof Constant)) {
-                Constant evalRValue = evalCaculate(ctx.constInitVal().constExp().exp());
-                gVal.setInitializer(evalRValue);
-            } else gVal.setInitializer((Constant) rValue);
-            variables.peek().put(varName, gVal);
+            ConstantInt constantInt = emitter.constant(init, exps);
+            define(ident(ctx.IDENT()), emitter.global(varName, constantInt), constantInt);
         }
         return null;
     }
@@ -91,34 +127,95 @@ public class VisitorForIR extends SysYParserBaseVisitor<Value> {
     @Override
     public Value visitVarDef(SysYParser.VarDefContext ctx) {
         String varName = ctx.IDENT().getText();
-        Value rValue = null;
-        if (ctx.ASSIGN() != null) rValue = visit(ctx.initVal().exp()); 
-        if (variables.size() > 1) {
-            Value localVar = builder.buildAlloca(i32, Option.of(varName));
-            if (rValue != null) builder.buildStore(localVar, rValue);
-            variables.peek().put(varName, localVar);
+        if (!ctx.constExp().isEmpty()) {
+            arrayDef(ctx.IDENT(), ctx.constExp(), ctx.initVal(), false);
+            return null;
+        }
+        if (variables.depth() > 0) {
+            Value rValue = ctx.ASSIGN() != null ? visit(ctx.initVal().exp()) : null;
+            define(ident(ctx.IDENT()), emitter.local(varName, rValue), null);
         } else {
-            var gVal = module.addGlobalVariable(varName, i32, Option.empty()).unwrap();
-            if (rValue != null) {
-                Constant evalRValue = evalCaculate(ctx.initVal().exp());
-                gVal.setInitializer(evalRValue);
-            } else gVal.setInitializer(zero);
-            variables.peek().put(varName, gVal);
+            Constant init = ctx.ASSIGN() != null ? emitter.constant(ctx.initVal().exp(), exps) : emitter.getZero();
+            define(ident(ctx.IDENT()), emitter.global(varName, init), null);
         }
         return null;
     }
 
+    // 数组定义, 全局数组的初始值必须是常量; init 为 null 表示没有初始值。const 数组记下元素的值, 常量下标的访问直接取值
+    private void arrayDef(TerminalNode ident, List<SysYParser.ConstExpContext> dimCtxs, ParserRuleContext init, boolean isConst) {
+        int[] dims = new int[dimCtxs.size()];
+        for (int i = 0; i < dims.length; i++)
+            dims[i] = emitter.constantValue(dimCtxs.get(i).exp(), exps);
+        ArrayLayout layout = new ArrayLayout(emitter.getI32(), dims, false);
+        boolean global = variables.depth() == 0;
+        Value[] elements = null;
+        if (init != null) {
+            elements = new Value[layout.size()];
+            flatten(init, layout, 0, 0, elements, global);
+        }
+        if (isConst)
+            layout.setConstants(elements);
+        defineArray(ident(ident), emitter.array(ident.getText(), layout, elements, global), layout);
+    }
+
+    // 把 initVal / constInitVal 列表摊平到 elements 的 [offset, offset + layout.sizeOf(level)) 里:
+    // 表达式依次填下一个元素, 嵌套的花括号对齐到下一个子数组的开头并填满它, 多出来的初始值忽略
+    private void flatten(ParserRuleContext ctx, ArrayLayout layout, int level, int offset, Value[] elements, boolean global) {
+        int pos = offset;
+        int end = offset + layout.sizeOf(level);
+        for (ParserRuleContext item : initItems(ctx)) {
+            if (pos >= end)
+                break;
+            SysYParser.ExpContext exp = initExp(item);
+            if (exp != null) {
+                elements[pos++] = global ? emitter.constant(exp, exps) : visit(exp);
+            } else {
+                int start = layout.nestedStart(offset, pos, level);
+                if (start >= end)
+                    break;
+                flatten(item, layout, level + 1, start, elements, global);
+                pos = start + layout.sizeOf(level + 1);
+            }
+        }
+    }
+
+    private static List<? extends ParserRuleContext> initItems(ParserRuleContext ctx) {
+        if (ctx instanceof SysYParser.ConstInitValContext)
+            return ((SysYParser.ConstInitValContext) ctx).constInitVal();
+        return ((SysYParser.InitValContext) ctx).initVal();
+    }
+
+    private static SysYParser.ExpContext initExp(ParserRuleContext ctx) {
+        if (ctx instanceof SysYParser.ConstInitValContext)
+            return ((SysYParser.ConstInitValContext) ctx).constExp() == null ? null : ((SysYParser.ConstInitValContext) ctx).constExp().exp();
+        return ((SysYParser.InitValContext) ctx).exp();
+    }
+
+    // 数组元素的地址; 下标不足时是退化成的指针
+    private Value elementPointer(SysYParser.LValContext ctx, ArrayLayout layout) {
+        Value base = emitter.arrayBase(layout, getValue(ctx.IDENT()), ctx.IDENT().getText());
+        Value[] indices = new Value[ctx.exp().size()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = visit(ctx.exp(i));
+        return emitter.elementPointer(layout, base, indices);
+    }
+
     @Override
     public Value visitFuncDef(SysYParser.FuncDefContext ctx) {
         String funcName = ctx.IDENT().getText();
         if (ctx.funcFParams() != null)
             visit(ctx.funcFParams());
-        Type funcType = ctx.funcType().VOID() != null ? voidType : i32;
-        var func = module.addFunction(funcName, context.getFunctionType(funcType, paramTypes.toArray(new Type[0]), false));
-        function = func;
-        var entryBlock = context.newBasicBlock(func.getName() + "Entry");
-        func.addBasicBlock(entryBlock);
-        builder.positionAfter(entryBlock);
+        boolean returnsVoid = ctx.funcType().VOID() != null;
+        Function func = emitter.addFunction(funcName, returnsVoid, paramTypes.toArray(new LLVMTypeRef[0]));
+        // 增量编译命中缓存的函数只生成声明, 函数体由 IncrementalCompiler 从缓存中拼回
+        if (declareOnly.contains(funcName)) {
+            paramNames.clear();
+            paramIds.clear();
+            paramTypes.clear();
+            paramLayouts.clear();
+            return null;
+        }
+        emitter.beginBody(func, returnsVoid);
         visit(ctx.block());
         return null;
     }
@@ -128,31 +225,47 @@ public class VisitorForIR extends SysYParserBaseVisitor<Value> {
         for (SysYParser.FuncFParamContext funcFParamCtx : ctx.funcFParam()) {
             String varName = funcFParamCtx.IDENT().getText();
             paramNames.add(varName);
-            paramTypes.add(i32);
+            paramIds.add(ident(funcFParamCtx.IDENT()));
+            if (funcFParamCtx.L_BRACKT().isEmpty()) {
+                paramTypes.add(emitter.getI32());
+                paramLayouts.add(null);
+                continue;
+            }
+            // 第一维长度省略, 其余各维是常量表达式
+            int[] dims = new int[funcFParamCtx.exp().size() + 1];
+            for (int i = 1; i < dims.length; i++)
+                dims[i] = emitter.constantValue(funcFParamCtx.exp(i - 1), exps);
+            ArrayLayout layout = new ArrayLayout(emitter.getI32(), dims, true);
+            paramTypes.add(layout.getType());
+            paramLayouts.add(layout);
         }
         return null;
     }
 
     @Override
     public Value visitBlock(SysYParser.BlockContext ctx) {
-        variables.push(new HashMap<>());
+        variables.enterScope();
+        constants.enterScope();
+        arrays.enterScope();
         for (int i = 0; i < paramNames.size(); i++) {
-            String paramName = paramNames.get(i);
-            Value paramValue = function.getParameter(i).unwrap();
-            Value paramAlloca = builder.buildAlloca(i32, Option.of(paramName));
-            builder.buildStore(paramAlloca, paramValue);
-            variables.peek().put(paramName, paramAlloca);
+            ArrayLayout layout = paramLayouts.get(i);
+            Value paramSlot = emitter.parameter(i, paramNames.get(i), paramTypes.get(i));
+            if (layout == null)
+                define(paramIds.get(i), paramSlot, null);
+            else
+                defineArray(paramIds.get(i), paramSlot, layout);
         }
         paramNames.clear();
+        paramIds.clear();
         paramTypes.clear();
+        paramLayouts.clear();
         for (SysYParser.BlockItemContext blockItemContext : ctx.blockItem())
             visit(blockItemContext);
-        if (variables.size() == 2 && (ctx.blockItem().size() == 0 || ctx.blockItem(ctx.blockItem().size() - 1).stmt() == null || ctx.blockItem(ctx.blockItem().size() - 1).stmt().RETURN() == null)) { 
-            if (function.getType().getAsString().contains("void"))
-                builder.buildReturn(Option.empty());
-            else builder.buildReturn(Option.of(zero));
-        }
-        variables.pop();
+        if (variables.depth() == 1 && (ctx.blockItem().size() == 0 || ctx.blockItem(ctx.blockItem().size() - 1).stmt() == null || ctx.blockItem(ctx.blockItem().size() - 1).stmt().RETURN() == null))
+            emitter.defaultReturn();
+        arrays.exitScope();
+        constants.exitScope();
+        variables.exitScope();
         return null;
     }
 
@@ -169,243 +282,93 @@ public class VisitorForIR extends SysYParserBaseVisitor<Value> {
     @Override
     public Value visitStmt(SysYParser.StmtContext ctx) {
         if (ctx.RETURN() != null) {
-            String funcType = function.getType().getAsString();
-            if (funcType.contains("void")) {
-                builder.buildReturn(Option.empty());
-            } else {
-                Value returnValue = visit(ctx.exp());
-                builder.buildReturn(Option.of(returnValue));
-            }
+            emitter.ret(emitter.returnsVoid() ? null : visit(ctx.exp()));
         } else if (ctx.ASSIGN() != null) {
+            ArrayLayout layout = arrays.get(ident(ctx.lVal().IDENT()));
+            Value lValue = layout == null ? getValue(ctx.lVal().IDENT()) : elementPointer(ctx.lVal(), layout);
             Value rValue = visit(ctx.exp());
-            String varName = ctx.lVal().IDENT().getText();
-            builder.buildStore(getValue(varName), rValue);
+            emitter.store(lValue, rValue);
         } else if (ctx.exp() != null) {
             visit(ctx.exp());
         } else if (ctx.WHILE() != null) {
-            var condBlock = context.newBasicBlock("whileCond");
-            var bodyBlock = context.newBasicBlock("whileBody");
-            var nextBlock = context.newBasicBlock("whileNext");
-            whileCondStack.push(condBlock);
-            whileNextStack.push(nextBlock);
-            builder.buildBranch(condBlock);
-            function.addBasicBlock(condBlock);
-            builder.positionAfter(condBlock);
-            Value res = builder.buildIntCompare(IntPredicate.NotEqual, visit(ctx.cond()), zero, Option.of("cond"));
-            builder.buildConditionalBranch(res, bodyBlock, nextBlock);
-            function.addBasicBlock(bodyBlock);
-            builder.positionAfter(bodyBlock);
-            visit(ctx.stmt(0));
-            builder.buildBranch(condBlock);
-            function.addBasicBlock(nextBlock);
-            builder.positionAfter(nextBlock);
-            if (whileCondStack.size() > 1) whileCondStack.pop();
-            if (whileNextStack.size() > 1) whileNextStack.pop();
+            emitter.whileLoop(ctx.cond(), exps, () -> visit(ctx.stmt(0)));
         } else if (ctx.IF() != null) {
-            Value res = builder.buildIntCompare(IntPredicate.NotEqual, visit(ctx.cond()), zero, Option.of("cond"));
-            var thenBlock = context.newBasicBlock("if_true_");
-            var elseBlock = context.newBasicBlock("if_false_");
-            var nextBlock = context.newBasicBlock("if_next_");
-            builder.buildConditionalBranch(res, thenBlock, elseBlock);
-            function.addBasicBlock(thenBlock);
-            builder.positionAfter(thenBlock);
-            visit(ctx.stmt(0));
-            builder.buildBranch(nextBlock);
-            function.addBasicBlock(elseBlock);
-            builder.positionAfter(elseBlock);
-            if (ctx.ELSE() != null) {
-                visit(ctx.stmt(1));
-            }
-            builder.buildBranch(nextBlock);
-            function.addBasicBlock(nextBlock);
-            builder.positionAfter(nextBlock);
+            emitter.ifElse(ctx.cond(), exps, () -> visit(ctx.stmt(0)), ctx.ELSE() != null ? () -> visit(ctx.stmt(1)) : null);
         } else if (ctx.BREAK() != null) {
-            builder.buildBranch(whileNextStack.peek());
-            // whileNextStack.pop();
-            // whileCondStack.pop();
+            emitter.breakLoop();
         } else if (ctx.CONTINUE() != null) {
-            builder.buildBranch(whileCondStack.peek());
+            emitter.continueLoop();
         } else if (ctx.block() != null) {
             visit(ctx.block());
         }
         return null;
     }
 
+    // 只有比较运算的操作数会按值求 cond, 按文法的优先级它不会是 && 或 ||
     @Override
     public Value visitCond(SysYParser.CondContext ctx) {
-        if (ctx.exp() != null)
-            return visit(ctx.exp());
-        if (ctx.OR() != null || ctx.AND() != null) {
-            Value resultAlloca = builder.buildAlloca(i32, Option.of("logictmp"));
-            Value leftValue = visit(ctx.cond(0));
-            Value leftCond = builder.buildIntCompare(IntPredicate.NotEqual, leftValue, zero, Option.of("leftcond"));
-            BasicBlock evalRightBlock = context.newBasicBlock("eval_right");
-            BasicBlock mergeBlock = context.newBasicBlock("merge_logic");
-            if (ctx.OR() != null) {
-                builder.buildStore(resultAlloca, i32.getConstant(1, false));
-                builder.buildConditionalBranch(leftCond, mergeBlock, evalRightBlock);
-                function.addBasicBlock(evalRightBlock);
-                builder.positionAfter(evalRightBlock);
-                Value rightValue = visit(ctx.cond(1));
-                Value rightCond = builder.buildIntCompare(IntPredicate.NotEqual, rightValue, zero, Option.of("rightcond"));
-                Value rightResult = builder.buildZeroExt(rightCond, i32, Option.of("rightresult"));
-                builder.buildStore(resultAlloca, rightResult);
-                builder.buildBranch(mergeBlock);
-            } else if (ctx.AND() != null) {
-                builder.buildStore(resultAlloca, zero);
-                builder.buildConditionalBranch(leftCond, evalRightBlock, mergeBlock);
-                function.addBasicBlock(evalRightBlock);
-                builder.positionAfter(evalRightBlock);
-                Value rightValue = visit(ctx.cond(1));
-                Value rightCond = builder.buildIntCompare(IntPredicate.NotEqual, rightValue, zero, Option.of("rightcond"));
-                Value rightResult = builder.buildZeroExt(rightCond, i32, Option.of("rightresult"));
-                builder.buildStore(resultAlloca, rightResult);
-                builder.buildBranch(mergeBlock);
-            }
-            function.addBasicBlock(mergeBlock);
-            builder.positionAfter(mergeBlock);
-            return builder.buildLoad(resultAlloca, Option.of("logicresult"));
-        }
-        Value left = visit(ctx.cond(0));
-        Value right = visit(ctx.cond(1));
-        if (ctx.EQ() != null || ctx.NEQ() != null) {
-            if (ctx.EQ() != null) {
-                Value res = builder.buildIntCompare(IntPredicate.Equal, left, right, Option.of("eqtmp"));
-                return builder.buildZeroExt(res, i32, Option.of("extractcmp"));
-            } else if (ctx.NEQ() != null) {
-                Value res = builder.buildIntCompare(IntPredicate.NotEqual, left, right, Option.of("neqtmp"));
-                return builder.buildZeroExt(res, i32, Option.of("extractcmp"));
-            }
-        } else if (ctx.LT() != null || ctx.GT() != null || ctx.LE() != null || ctx.GE() != null) {
-            Value res = null;
-            if (ctx.LT() != null) {
-                res = builder.buildIntCompare(IntPredicate.SignedLessThan, left, right, Option.of("lttmp"));
-            } else if (ctx.GT() != null) {
-                res =  builder.buildIntCompare(IntPredicate.SignedGreaterThan, left, right, Option.of("gttmp"));
-            } else if (ctx.LE() != null) {
-                res = builder.buildIntCompare(IntPredicate.SignedLessEqual, left, right, Option.of("letmp"));
-            } else if (ctx.GE() != null) {
-                res = builder.buildIntCompare(IntPredicate.SignedGreaterEqual, left, right, Option.of("getmp"));
-            }
-            return builder.buildZeroExt(res, i32, Option.of("extractcmp"));
-        }
-        return null;
+        return emitter.value(ctx, exps);
     }
 
     @Override
     public Value visitExp(SysYParser.ExpContext ctx) {
-        if (ctx.L_PAREN() != null && ctx.exp().size() == 1) {
-            return visit(ctx.exp(0));
-        } else if (ctx.PLUS() != null || ctx.MINUS() != null) {
-            Value left = visit(ctx.exp(0));
-            Value right = visit(ctx.exp(1));
-            if (ctx.PLUS() != null) {
-                return builder.buildIntAdd(left, right, WrapSemantics.Unspecified, Option.of("addtmp"));
-            } else if (ctx.MINUS() != null) {
-                return builder.buildIntSub(left, right, WrapSemantics.Unspecified, Option.of("subtmp"));
-            }
-        } else if (ctx.MUL() != null || ctx.DIV() != null || ctx.MOD() != null) {
-            Value left = visit(ctx.exp(0));
-            Value right = visit(ctx.exp(1));
-            if (ctx.MUL() != null) {
-                return builder.buildIntMul(left, right, WrapSemantics.Unspecified, Option.of("multmp"));
-            } else if (ctx.DIV() != null) {
-                return builder.buildSignedDiv(left, right, false, Option.of("divtmp"));
-            } else if (ctx.MOD() != null) {
-                return builder.buildSignedRem(left, right, Option.of("modtmp"));
-            }
-        } else if (ctx.unaryOp() != null) {
-            Value operand = visit(ctx.exp(0));
-            if (ctx.unaryOp().getText().equals("-")) {
-                return builder.buildIntSub(zero, operand, WrapSemantics.Unspecified, Option.of("negtmp"));
-            } else if (ctx.unaryOp().getText().equals("!")) {
-                Value cmpResult = builder.buildIntCompare(IntPredicate.Equal, operand, zero, Option.of("cmptmp"));
-                return builder.buildZeroExt(cmpResult, i32, Option.of("unaryminus"));
-            } 
-            return operand;
-        } else if (ctx.lVal() != null) {
-            String varName = ctx.lVal().IDENT().getText();
-            Value value = getValue(varName);
-            if (value != null) {
-                return builder.buildLoad(value, Option.of(varName));
-            }
-        } else if (ctx.number() != null) {
-            String number = ctx.number().getText();
-            if (number.startsWith("0x") || number.startsWith("0X")) 
-                return i32.getConstant((int) Long.parseLong(number.substring(2), 16), false);
-            else if (number.startsWith("0"))
-                number = String.valueOf(Integer.parseInt(number, 8));
-            return i32.getConstant((int)Long.parseLong(number), false);
-        } else if (ctx.IDENT() != null) {
-            paramStack.push(new ArrayList<>());
-            String varName = ctx.IDENT().getText();
-            // System.out.println("varName: " + varName);
-            Function func = module.getFunction(varName).unwrap();
-            if (ctx.funcRParams() != null) visit(ctx.funcRParams());
-            ArrayList<Value> paramValues = paramStack.peek();
-            paramStack.pop();
-            if (func.getType().getAsString().contains("void")) {
-                builder.buildCall(func, paramValues.toArray(new Value[0]), Option.empty());
-                return null;
-            } else return builder.buildCall(func, paramValues.toArray(new Value[0]), Option.of("call"));
-        }
-        return null;
+        return emitter.value(ctx, exps);
     }
-    
-    @Override
-    public Value visitFuncRParams(SysYParser.FuncRParamsContext ctx) {
-        for (SysYParser.ParamContext paramContext : ctx.param()) {
-            Value paramValue = visit(paramContext.exp());
-            paramStack.peek().add(paramValue);
+
+    // 右值里的变量: const 直接用它的值, 不再生成 load; 数组下标不足时是退化成的指针
+    private Value lValue(SysYParser.LValContext ctx) {
+        String varName = ctx.IDENT().getText();
+        ConstantInt constant = constants.get(ident(ctx.IDENT()));
+        if (constant != null && ctx.exp().isEmpty())
+            return constant;
+        ArrayLayout layout = arrays.get(ident(ctx.IDENT()));
+        if (layout != null) {
+            Integer value = constantElement(ctx, layout);
+            if (value != null)
+                return emitter.constant(value);
+            Value element = elementPointer(ctx, layout);
+            if (ctx.exp().size() < layout.getDimCount())
+                return element;
+            return emitter.load(element, varName);
         }
-        return null;
+        Value value = getValue(ctx.IDENT());
+        return value == null ? null : emitter.load(value, varName);
     }
 
-    private ConstantInt evalCaculate(SysYParser.ExpContext etx) {
-        if (etx.L_PAREN() != null && etx.exp().size() == 1) {
-            return evalCaculate(etx.exp(0));
-        } else if (etx.PLUS() != null || etx.MINUS() != null) {
-            ConstantInt left = evalCaculate(etx.exp(0));
-            ConstantInt right = evalCaculate(etx.exp(1));
-            if (etx.PLUS() != null) {
-                return i32.getConstant((int)left.getSignExtendedValue() + (int)right.getSignExtendedValue(), false);
-            } else if (etx.MINUS() != null) {
-                return i32.getConstant((int) left.getSignExtendedValue() - (int) right.getSignExtendedValue(), false);
-            }
-        } else if (etx.MUL() != null || etx.DIV() != null || etx.MOD() != null) {
-            ConstantInt left = evalCaculate(etx.exp(0));
-            ConstantInt right = evalCaculate(etx.exp(1));
-            if (etx.MUL() != null) {
-                return i32.getConstant((int) left.getSignExtendedValue() * (int) right.getSignExtendedValue(), false);
-            } else if (etx.DIV() != null) {
-                return i32.getConstant((int) left.getSignExtendedValue() / (int) right.getSignExtendedValue(), false);
-            } else if (etx.MOD() != null) {
-                return i32.getConstant((int) left.getSignExtendedValue() % (int) right.getSignExtendedValue(), false);
-            }
-        } else if (etx.unaryOp() != null) {
-            ConstantInt operand = evalCaculate(etx.exp(0));
-            if (etx.unaryOp().getText().equals("-")) {
-                return i32.getConstant(0 - (int) operand.getSignExtendedValue(), false);
-            } else if (etx.unaryOp().getText().equals("!")) {
-                return i32.getConstant(operand.getSignExtendedValue() == 0 ? 1 : 0, false);
-            }
-            return operand;
-        } else if (etx.number() != null) {
-            String number = etx.number().getText();
-            if (number.startsWith("0x") || number.startsWith("0X")) 
-                number = String.valueOf(Integer.parseInt(number.substring(2), 16));
-            else if (number.startsWith("0")) 
-                number = String.valueOf(Integer.parseInt(number, 8));
-            return i32.getConstant(Integer.parseInt(number), false);
+    // const 数组里下标都是常量的元素, 否则返回 null
+    private Integer constantElement(SysYParser.LValContext ctx, ArrayLayout layout) {
+        int[] indices = new int[ctx.exp().size()];
+        for (int i = 0; i < indices.length; i++) {
+            Integer index = emitter.evaluate(ctx.exp(i), exps);
+            if (index == null)
+                return null;
+            indices[i] = index;
         }
-        return null;
+        return layout.constantAt(indices);
+    }
+
+    private Value call(SysYParser.ExpContext ctx) {
+        Function func = emitter.getModule().getFunction(ctx.IDENT().getText()).unwrap();
+        int argCount = ctx.funcRParams() == null ? 0 : ctx.funcRParams().param().size();
+        Value[] paramValues = new Value[argCount];
+        for (int i = 0; i < argCount; i++)
+            paramValues[i] = visit(ctx.funcRParams().param(i).exp());
+        return emitter.call(func, paramValues);
     }
-    
+
     public void generateIR(File outputFile) {
-        module.dump(Option.of(outputFile));
+        emitter.getModule().dump(Option.of(outputFile));
+    }
+
+    public void setDeclareOnly(Set<String> declareOnly) {
+        this.declareOnly = declareOnly;
     }
 
     public Module getModule() {
-        return this.module;
+        return emitter.getModule();
+    }
+
+    public void dispose() {
+        emitter.dispose();
     }
-}
\ No newline at end of file
+}
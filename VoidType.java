@@ -1,13 +1,11 @@
 public class VoidType extends Type {
-    private static VoidType voidTypeInstance;
+    // 类初始化时创建, 多线程下也只有这一个实例
+    private static final VoidType voidTypeInstance = new VoidType();
 
     private VoidType() {
     }
 
     public static VoidType getVoidType() {
-        if (voidTypeInstance == null) {
-            voidTypeInstance = new VoidType();
-        }
         return voidTypeInstance;
     }
 
@@ -0,0 +1,91 @@
+// 数据流求解用的工作表, 元素是 0 到 size - 1 的编号, 一般是块在逆后序里的位置。
+// 用位向量记录已经在表里的元素, 重复加入不会排两次。
+// 按逆后序 (编号从小到大) 取时, 一个块的前驱 (除了回边) 都先处理完, 循环里的块不会被反复排进来;
+// 后向问题用后序 (编号从大到小); FIFO 按加入的先后, 用来对比。同时统计加入、重复加入和取出的次数
+public class Worklist {
+    public enum Order {
+        REVERSE_POSTORDER, // 前向问题
+        POSTORDER, // 后向问题
+        FIFO
+    }
+
+    private Order order;
+    private long[] queued;
+    private int count = 0;
+    // FIFO 用的环形队列, 去重之后最多 size 个元素
+    private int[] ring;
+    private int head = 0;
+    // 按优先级取时, 编号比 cursor 小 (后序时是大) 的元素都已经不在表里了
+    private int cursor;
+
+    private int pushes = 0;
+    private int duplicates = 0;
+    private int pops = 0;
+
+    public Worklist(int size, Order order) {
+        this.order = order;
+        this.queued = new long[(size + 63) >>> 6];
+        if (order == Order.FIFO)
+            this.ring = new int[Math.max(size, 1)];
+        this.cursor = order == Order.POSTORDER ? queued.length - 1 : 0;
+    }
+
+    // 返回是否加入了, 已经在表里时不重复加入
+    public boolean add(int i) {
+        long bit = 1L << i;
+        if ((queued[i >>> 6] & bit) != 0) {
+            duplicates++;
+            return false;
+        }
+        queued[i >>> 6] |= bit;
+        pushes++;
+        if (order == Order.FIFO)
+            ring[(head + count) % ring.length] = i;
+        else if (order == Order.REVERSE_POSTORDER)
+            cursor = Math.min(cursor, i >>> 6);
+        else
+            cursor = Math.max(cursor, i >>> 6);
+        count++;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int poll() {
+        int i;
+        if (order == Order.FIFO) {
+            i = ring[head];
+            head = (head + 1) % ring.length;
+        } else if (order == Order.REVERSE_POSTORDER) {
+            while (queued[cursor] == 0)
+                cursor++;
+            i = (cursor << 6) + Long.numberOfTrailingZeros(queued[cursor]);
+        } else {
+            while (queued[cursor] == 0)
+                cursor--;
+            i = (cursor << 6) + 63 - Long.numberOfLeadingZeros(queued[cursor]);
+        }
+        queued[i >>> 6] &= ~(1L << i);
+        count--;
+        pops++;
+        return i;
+    }
+
+    public int getPushes() {
+        return pushes;
+    }
+
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    public int getPops() {
+        return pops;
+    }
+}